@@ -5,6 +5,20 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public abstract class AbstractEventController
 {
+    /**
+     * Header con el ultimo id de evento que recibio el navegador, enviado automaticamente por {@code EventSource} al
+     * reconectarse. Los controladores lo reciben con {@code @RequestHeader(value = LAST_EVENT_ID, required = false)} y
+     * lo pasan a {@link AbstractEventService#register(MarteSseClient, String)}.
+     */
+    public static final String LAST_EVENT_ID = "Last-Event-ID";
+
+    /**
+     * Parametro de la URL con la codificacion que pide el cliente, ver {@link StreamEncoding}. Va como parametro y no
+     * como header porque {@code EventSource} no permite agregar headers. Se pasa al servicio en
+     * {@link StreamSubscriptionOptions}.
+     */
+    public static final String CODEC = "codec";
+
     /**
      * @param ppal
      * @return
@@ -20,10 +34,26 @@ public abstract class AbstractEventController
             idUnidad = ctx.getIdUnidad();
         Long idUnidadJdn = null;
         if (ctx.getIdUnidadJdn() != null)
-            idUnidadJdn = ctx.getIdUnidad();
+            idUnidadJdn = ctx.getIdUnidadJdn();
         
 
         log.debug("Conectando a stream  ",ctx.toString());
         return new MarteSseClient(modulo, idEquipo, idUsuario, idUnidad, idUnidadJdn, idEjercicio, idClientSession);
     }
+
+    /**
+     * Cliente reactivo con los mismos identificadores que {@link #configureSseClient(StreamConfig, EnumModulo)}. Se
+     * registra con {@link AbstractEventService#register(ReactiveStreamClient, StreamSubscriptionOptions)} y el
+     * controlador devuelve su {@link ReactiveStreamClient#getFlux()} con
+     * {@code produces = MediaType.TEXT_EVENT_STREAM_VALUE}.
+     * @param ctx
+     * @param modulo
+     * @return
+     */
+    protected ReactiveStreamClient configureReactiveClient(StreamConfig ctx, EnumModulo modulo)
+    {
+        log.debug("Conectando a stream reactivo {}", ctx);
+        return new ReactiveStreamClient(modulo, ctx.getIdEquipo(), ctx.getIdUsuario(), ctx.getIdUnidad(),
+                ctx.getIdUnidadJdn(), ctx.getIdEjercicio(), ctx.getIdClientSession());
+    }
 }
@@ -3,21 +3,53 @@ package backend.core.lib.commons.stream;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import javax.annotation.PostConstruct;
-
+import javax.annotation.PreDestroy;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.MediaType;
+import org.springframework.beans.factory.config.SingletonBeanRegistry;
+import org.springframework.core.env.Environment;
 import org.springframework.jms.JmsException;
 import org.springframework.jms.annotation.JmsListener;
+import org.springframework.jms.annotation.JmsListenerConfigurer;
+import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+import org.springframework.jms.config.JmsListenerEndpointRegistrar;
+import org.springframework.jms.config.SimpleJmsListenerEndpoint;
 import org.springframework.jms.core.JmsTemplate;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import backend.core.lib.commons.jms.JmsMessage;
@@ -36,224 +68,982 @@ import backend.core.lib.commons.stream.ot.OTConectado;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-public abstract class AbstractEventService implements IStreamDisconnect
+public abstract class AbstractEventService
+        implements IStreamDisconnect, JmsListenerConfigurer, BeanNameAware, BeanFactoryAware
 {
 
     private static final String NO_HAY_CLLIENTES_CONECTADOS = "No hay cllientes conectados";
 
+    /**
+     * Valor de {@code clazz} del mensaje con varios {@link OTConectado} de un equipo, cuyo {@code data} es un arreglo.
+     * Solo se usa con {@code sisdef.stream.presence.batch}; sin el cada cambio se envia como un {@link OTConectado}.
+     */
+    public static final String PRESENCIA_LOTE = "OTConectado[]";
+
+    /**
+     * Nombre del bean con el identificador de la instancia. Lo registra el primer servicio stream de cada contexto de
+     * Spring y lo comparten todos los servicios del contexto, de modo que dos contextos en la misma JVM son instancias
+     * distintas del cluster.
+     */
+    public static final String INSTANCE_BEAN = "streamInstanceId";
+
+    /**
+     * Prefijo de las colas directas de cada instancia.
+     */
+    public static final String JMS_DIRECTO = "STREAM.";
+
+    private static final long INSTANCE_BASE = Instant.now().toEpochMilli() * 1000;
+
+    private static final AtomicInteger INSTANCE_SEQ = new AtomicInteger();
+
+    /**
+     * Propiedad JMS con la instancia que origino el mensaje.
+     */
+    public static final String JMS_INSTANCE = "streamInstance";
+
+    /**
+     * Propiedad JMS con el tipo del mensaje, o {@link #JMS_TIPO_LOTE} para lotes.
+     */
+    public static final String JMS_TIPO = "streamTipo";
+
+    public static final String JMS_TIPO_LOTE = "LOTE";
+
+    /**
+     * Propiedad JMS con el momento de publicacion en la instancia de origen, para medir la demora de replicacion.
+     */
+    public static final String JMS_ENVIADO = "streamEnviado";
+
+    /**
+     * Selector para los {@code @JmsListener} de los topicos de replicacion, descarta en el broker los mensajes
+     * originados por esta instancia:
+     * {@code @JmsListener(destination = "CHAT", selector = AbstractEventService.JMS_SELECTOR)}.
+     */
+    public static final String JMS_SELECTOR = JMS_INSTANCE + " IS NULL OR " + JMS_INSTANCE
+            + " <> #{@" + INSTANCE_BEAN + "}";
+
+    private static final Map<String, Class<?>> TIPOS_JMS = new HashMap<>();
+
+    static
+    {
+        TIPOS_JMS.put("MENSAJE_CONECTADO", JmsStreamMessageUserConnected.class);
+        TIPOS_JMS.put("MENSAJE_EQUIPO", JmsStreamMessageTeam.class);
+        TIPOS_JMS.put("MENSAJE_EJERCICIO", JmsStreamMessageExercise.class);
+        TIPOS_JMS.put("MENSAJE_EQUIPO_UNIDADES", JmsStreamMessageTeamUnits.class);
+        TIPOS_JMS.put("MENSAJE_EQUIPO_USUARIO", JmsStreamMessageTeamUser.class);
+        TIPOS_JMS.put("MENSAJE_EQUIPO_USUARIOS", JmsStreamMessageTeamUsers.class);
+        TIPOS_JMS.put("MENSAJE_UNIDAD", JmsStreamMessageUnit.class);
+        TIPOS_JMS.put("MENSAJE_UNIDAD_JDN", JmsStreamMessageJdnUnit.class);
+        TIPOS_JMS.put("MENSAJE_UNIDADES", JmsStreamMessageUnits.class);
+        TIPOS_JMS.put("MENSAJE_USUARIOS", JmsStreamMessageUsers.class);
+        TIPOS_JMS.put(StreamDirectoryMessage.TIPO, StreamDirectoryMessage.class);
+        TIPOS_JMS.put(StreamAudienceMessage.TIPO, StreamAudienceMessage.class);
+    }
+
     @Autowired
     public ObjectMapper mapper;
 
     @Value("${sisdef.activemq.enable:false}")
     public boolean activeMQEnable;
 
+    @Value("${sisdef.activemq.codec:JSON}")
+    private EnumJmsCodec activeMQCodec;
+
+    @Value("${sisdef.stream.delivery.virtual-threads:true}")
+    private boolean deliveryVirtualThreads;
+
+    @Value("${sisdef.stream.delivery.pool-size:16}")
+    private int deliveryPoolSize;
+
+    @Value("${sisdef.stream.delivery.capacity:10000}")
+    private int deliveryCapacity;
+
+    @Value("${sisdef.stream.delivery.parallel-threshold:8}")
+    private int deliveryParallelThreshold;
+
+    @Value("${sisdef.stream.delivery.priority-pool-size:4}")
+    private int deliveryPriorityPoolSize;
+
+    @Value("${sisdef.activemq.batch.max-messages:1}")
+    private int jmsBatchMaxMessages;
+
+    @Value("${sisdef.activemq.batch.max-delay-ms:5}")
+    private long jmsBatchMaxDelay;
+
+    @Value("${sisdef.activemq.publisher.threads:2}")
+    private int jmsPublisherThreads;
+
+    @Value("${sisdef.activemq.publisher.priority-threads:1}")
+    private int jmsPublisherPriorityThreads;
+
+    @Value("${sisdef.activemq.publisher.capacity:10000}")
+    private int jmsPublisherCapacity;
+
+    @Value("${sisdef.activemq.publisher.session-cache-size:10}")
+    private int jmsSessionCacheSize;
+
+    @Value("${sisdef.stream.presence.grace-ms:5000}")
+    private long presenceGrace;
+
+    /**
+     * Envia los cambios de presencia que vencen juntos como un solo {@link #PRESENCIA_LOTE}. Los clientes anteriores
+     * solo entienden {@link OTConectado} sueltos, por lo que se habilita recien cuando todos estan actualizados.
+     */
+    @Value("${sisdef.stream.presence.batch:false}")
+    private boolean presenceBatch;
+
+    @Value("${sisdef.stream.directory.refresh-ms:30000}")
+    private long directoryRefresh;
+
+    /**
+     * Publica y usa el directorio del cluster. Las instancias anteriores al directorio no entienden sus mensajes ni
+     * publican sus conexiones, por lo que se habilita recien cuando todo el cluster esta actualizado.
+     */
+    @Value("${sisdef.stream.directory.enable:false}")
+    private boolean directoryEnable;
+
+    /**
+     * Replica siempre con {@link StreamAudienceMessage}. Deshabilitado, las audiencias que tienen un
+     * {@code JmsStreamMessage*} equivalente se replican en ese formato para que las entiendan las instancias
+     * anteriores; se habilita recien cuando todo el cluster esta actualizado.
+     */
+    @Value("${sisdef.stream.jms.audience.enable:false}")
+    private boolean jmsAudienceEnable;
+
+    @Value("${sisdef.stream.jms.lane-capacity:10000}")
+    private int jmsLaneCapacity;
+
+    @Value("${sisdef.stream.replay.max-age-ms:300000}")
+    private long replayMaxAge;
+
+    @Value("${sisdef.stream.heartbeat.tick-ms:1000}")
+    private long heartbeatTick;
+
+    @Value("${sisdef.stream.heartbeat.wheel-size:512}")
+    private int heartbeatWheelSize;
+
+    @Value("${sisdef.stream.heartbeat.max-failures:3}")
+    private int heartbeatMaxFailures;
+
+    @Value("${sisdef.stream.codec.gzip-threshold:1024}")
+    private int gzipThreshold;
+
+    @Value("${sisdef.stream.delta.max-entities:10000}")
+    private int deltaMaxEntities;
+
+    @Value("${sisdef.stream.outbox.capacity:256}")
+    private int outboxCapacity;
+
+    @Value("${sisdef.stream.outbox.block-timeout-ms:200}")
+    private long outboxBlockTimeout;
+
+    @Value("${sisdef.stream.close.threads:2}")
+    private int closeThreads;
+
+    @Autowired
+    private Environment environment;
+
     @Autowired
     private JmsTemplate jmsTemplate;
 
-    protected final List<MarteSseClient> emitters = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Template con el que se publica la replicacion, ver {@link JmsReplicationPublisher}.
+     */
+    private JmsTemplate jmsPublisher;
+
+    /**
+     * Publicador que no se pudo registrar en el contexto, lo cierra este servicio.
+     */
+    private JmsReplicationPublisher jmsPublicadorPropio;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    protected StreamDeliveryExecutor deliveryExecutor;
+
+    /**
+     * Ejecutor de envio reservado a los mensajes de {@link EnumPrioridad#ALTA}, para que no esperen detras del trafico
+     * masivo.
+     */
+    protected StreamDeliveryExecutor priorityDeliveryExecutor;
+
+    /**
+     * Termina las conexiones de los clientes desalojados, fuera de los hilos que publican o atienden JMS.
+     */
+    private ThreadPoolExecutor closeExecutor;
+
+    private JmsReplicationBatcher jmsBatcher;
+
+    private JmsStreamCodec jmsCodec;
+
+    /**
+     * Copia CBOR del {@link #mapper}, para los clientes que negocian {@code cbor}.
+     */
+    private ObjectMapper cborMapper;
+
+    private StreamClusterDirectory directory;
+
+    private JmsReplicationLanes jmsLanes;
+
+    private StreamReplayBuffer replay;
+
+    private StreamHeartbeatWheel heartbeat;
+
+    private StreamMetrics metrics;
+
+    private StreamDeltaTracker deltas;
+
+    private StreamPresence presence;
+
+    private String beanName;
+
+    private BeanFactory beanFactory;
+
+    /**
+     * Cola por la que esta instancia del servicio recibe los mensajes dirigidos a sus usuarios. Es una cola y no un
+     * topico para que los mensajes enviados mientras la instancia no consume esperen en el broker; vencen segun
+     * {@link #qosDirecto(EnumModulo)}.
+     */
+    private String directQueue;
+
+    private ScheduledExecutorService scheduler;
 
-    protected final Long instanceId = Instant.now().toEpochMilli();
+    private final Map<String, Function<Object, ?>> clavesEntidad = new ConcurrentHashMap<>();
+
+    /**
+     * Clases con identificador de entidad, para obtener la entidad de los mensajes replicados en el formato anterior.
+     */
+    private final Map<String, Class<?>> clasesEntidad = new ConcurrentHashMap<>();
+
+    private final Set<String> clasesDelta = ConcurrentHashMap.newKeySet();
+
+    private final Map<EnumModulo, Boolean> conflacionModulos = new ConcurrentHashMap<>();
+
+    private final Map<String, EnumPrioridad> prioridadClases = new ConcurrentHashMap<>();
+
+    private final Map<EnumModulo, EnumPrioridad> prioridadModulos = new ConcurrentHashMap<>();
+
+    private final Map<EnumModulo, JmsQos> qosModulos = new ConcurrentHashMap<>();
+
+    private final Map<EnumModulo, JmsQos> qosDirectos = new ConcurrentHashMap<>();
+
+    /**
+     * Emitters SSE conectados. Es un conjunto concurrente para que quitar uno al desconectarse no recorra a todos; el
+     * indice de suscripciones es {@link #registry}.
+     */
+    protected final Set<MarteSseClient> emittersConectados = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Vista como lista de {@link #emittersConectados}, por compatibilidad con las subclases.
+     * @deprecated el acceso por indice recorre el conjunto, usar {@link #emittersConectados}
+     */
+    @Deprecated
+    protected final List<MarteSseClient> emitters = new StreamEmitterList(emittersConectados);
+
+    protected final StreamClientRegistry registry = new StreamClientRegistry();
+
+    /**
+     * Identificador de la instancia, ver {@link #INSTANCE_BEAN}.
+     */
+    protected Long instanceId;
+
+    private final AtomicLong publicadosJms = new AtomicLong();
+
+    private final AtomicLong fallidosJms = new AtomicLong();
+
+    private final AtomicLong aplicadosJms = new AtomicLong();
 
     @PostConstruct
     private void init()
     {
-        log.info("[STREAM] Servicio inicializado con exito {} de ActiveMQ",
-                activeMQEnable ? "conectado " : "desconectado");
+        metrics = new StreamMetrics(meterRegistry != null ? meterRegistry : Metrics.globalRegistry, beanName,
+                this::sloEntrega);
+        deliveryExecutor = new StreamDeliveryExecutor(deliveryVirtualThreads, deliveryPoolSize, deliveryCapacity,
+                deliveryParallelThreshold);
+        priorityDeliveryExecutor = new StreamDeliveryExecutor(deliveryVirtualThreads, deliveryPriorityPoolSize,
+                deliveryCapacity, deliveryParallelThreshold);
+        AtomicInteger cierres = new AtomicInteger();
+        closeExecutor = new ThreadPoolExecutor(Math.max(1, closeThreads), Math.max(1, closeThreads), 60L,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "stream-close-" + cierres.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        closeExecutor.allowCoreThreadTimeOut(true);
+        jmsCodec = new JmsStreamCodec(activeMQCodec, mapper);
+        cborMapper = StreamEncoding.cbor(mapper);
+        jmsPublisher = publicadorJms();
+        jmsBatcher = new JmsReplicationBatcher(jmsBatchMaxMessages, jmsBatchMaxDelay, jmsPublisherThreads,
+                jmsPublisherPriorityThreads, jmsPublisherCapacity, this::publishJms);
+        directory = new StreamClusterDirectory(directoryRefresh);
+        jmsLanes = new JmsReplicationLanes(this::carrilesJms, jmsLaneCapacity);
+        replay = new StreamReplayBuffer(instanceId, this::capacidadReplay, replayMaxAge);
+        deltas = new StreamDeltaTracker(mapper, deltaMaxEntities);
+        presence = new StreamPresence(presenceGrace, this::conexionesCluster, this::publicarPresencia);
+        heartbeat = new StreamHeartbeatWheel(heartbeatTick, heartbeatWheelSize, this::intervaloHeartbeat,
+                heartbeatMaxFailures, metrics);
+        metrics.bind(this);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stream-scheduler-" + directQueue);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (activeMQEnable && directoryEnable)
+        {
+            scheduler.scheduleAtFixedRate(this::sendDirectorio, 0, directoryRefresh, TimeUnit.MILLISECONDS);
+        }
+        long presenceTick = Math.max(100, presenceGrace / 4);
+        scheduler.scheduleAtFixedRate(presence::procesar, presenceTick, presenceTick, TimeUnit.MILLISECONDS);
+        long replayTick = Math.max(1000, replayMaxAge / 4);
+        scheduler.scheduleAtFixedRate(replay::purgar, replayTick, replayTick, TimeUnit.MILLISECONDS);
+        conflacion(OTConectado.class, OTConectado::getIdUsuario);
+        log.info("[STREAM] Servicio inicializado con exito {} de ActiveMQ, formato {}",
+                activeMQEnable ? "conectado " : "desconectado", activeMQCodec);
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        scheduler.shutdown();
+        heartbeat.shutdown();
+        jmsBatcher.shutdown();
+        if (jmsPublicadorPropio != null)
+        {
+            jmsPublicadorPropio.destroy();
+        }
+        jmsLanes.shutdown();
+        deliveryExecutor.shutdown();
+        priorityDeliveryExecutor.shutdown();
+        closeExecutor.shutdown();
     }
 
     public MarteSseClient register(MarteSseClient emitter)
     {
-        log.info("Registrando nuevo cliente stream {}", emitter.toString(), emitter.getTimeout());
-        emitters.add(emitter);
+        return register(emitter, StreamSubscriptionOptions.DEFAULT);
+    }
+
+    public MarteSseClient register(MarteSseClient emitter, String lastEventId)
+    {
+        return register(emitter, StreamSubscriptionOptions.builder().lastEventId(lastEventId).build());
+    }
+
+    /**
+     * Registra el cliente. Si trae {@code Last-Event-ID} se le reenvian los eventos que se perdio, indicando
+     * {@link StreamReplayBuffer#REANUDADO} en el mensaje CONNECTED, o {@link StreamReplayBuffer#RESINCRONIZAR} si ya no
+     * estan disponibles y debe pedir el estado completo.
+     * Con {@link StreamSubscriptionOptions#getCodec()} el cliente recibe los mensajes en otra {@link StreamEncoding}.
+     * @param emitter
+     * @param opciones
+     *            opciones pedidas por el cliente
+     * @return
+     */
+    public MarteSseClient register(MarteSseClient emitter, StreamSubscriptionOptions opciones)
+    {
+        log.info("Registrando nuevo cliente stream {} {}", emitter.toString(), opciones);
+        StreamSubscriber subscriber = nuevoSubscriber(new SseEmitterStreamClient(emitter), opciones);
+        emittersConectados.add(emitter);
         emitter.onError(e -> {
             emitter.complete();
-            emitters.remove(emitter);
-            sendDisconnect(emitter);
+            if (unregister(subscriber))
+                sendDisconnect(subscriber);
 
         });
         emitter.onTimeout(() -> {
             emitter.complete();
-            emitters.remove(emitter);
-            sendDisconnect(emitter);
+            if (unregister(subscriber))
+                sendDisconnect(subscriber);
 
         });
         emitter.onCompletion(() -> {
-            emitters.remove(emitter);
             log.debug("Removiendo client x  finalizacion de la conexion  {}", emitter.toString());
-            sendDisconnect(emitter);
+            if (unregister(subscriber))
+                sendDisconnect(subscriber);
 
         });
-        try
-        {
-            MessageSendToClient ctr = MessageSendToClient.builder().modulo(emitter.modulo)
-                    .operacion(EnumOperacion.CONNECTED).build();
-            emitter.send(ctr, MediaType.APPLICATION_JSON);
+        return conectar(subscriber, opciones.getLastEventId()) ? emitter : null;
+    }
 
-            try
-            {
-                JmsStreamMessageUserConnected jms = new JmsStreamMessageUserConnected();
-                jms.setInstance(instanceId);
-                jms.setModulo(emitter.modulo);
-                jms.setOperacion(EnumOperacion.CONNECTED);
-                log.debug("Enviando a topico {} el mensaje JMS {}", emitter.modulo.name(), jms);
+    /**
+     * Registra un cliente reactivo. Recibe los mismos mensajes que un {@link MarteSseClient} con los mismos
+     * identificadores; el controlador devuelve {@link ReactiveStreamClient#getFlux()}.
+     * @param client
+     * @param opciones
+     *            opciones pedidas por el cliente
+     * @return
+     */
+    public ReactiveStreamClient register(ReactiveStreamClient client, StreamSubscriptionOptions opciones)
+    {
+        log.info("Registrando nuevo cliente stream reactivo {} {}", client, opciones);
+        return register(client, client::onTermination, opciones) ? client : null;
+    }
 
-                sendJms(emitter.modulo, mapper.writeValueAsString(jms));
+    /**
+     * Registra un cliente WebSocket. Recibe los mismos mensajes que un {@link MarteSseClient} con los mismos
+     * identificadores.
+     * @param client
+     * @param opciones
+     * @return
+     */
+    public WebSocketStreamClient register(WebSocketStreamClient client, StreamSubscriptionOptions opciones)
+    {
+        log.info("Registrando nuevo cliente stream websocket {} {}", client, opciones);
+        return register(client, client::onTermination, opciones) ? client : null;
+    }
+
+    /**
+     * Registra un cliente que avisa su finalizacion con un unico callback.
+     * @param client
+     * @param alTerminar
+     *            recibe la accion a ejecutar cuando termina la conexion
+     * @param opciones
+     * @return
+     */
+    private boolean register(IStreamClient client, Consumer<Runnable> alTerminar, StreamSubscriptionOptions opciones)
+    {
+        StreamSubscriber subscriber = nuevoSubscriber(client, opciones);
+        alTerminar.accept(() -> {
+            log.debug("Removiendo cliente x finalizacion de la conexion {}", client);
+            if (unregister(subscriber))
+                sendDisconnect(subscriber);
+        });
+        return conectar(subscriber, opciones.getLastEventId());
+    }
+
+    private StreamSubscriber nuevoSubscriber(IStreamClient client, StreamSubscriptionOptions opciones)
+    {
+        StreamSubscriber subscriber = new StreamSubscriber(client, this::ejecutorEnvio, metrics, closeExecutor,
+                politicaConsumidorLento(client.getModulo()),
+                StreamEncoding.of(opciones.getCodec(), gzipThreshold, mapper, cborMapper), outboxCapacity,
+                outboxBlockTimeout);
+        client.alPedir(subscriber::demanda);
+        return subscriber;
+    }
 
+    /**
+     * Indexa al suscriptor y le envia el mensaje CONNECTED. Si trae {@code Last-Event-ID} se le reenvian los eventos
+     * que se perdio, indicando {@link StreamReplayBuffer#REANUDADO} en el mensaje CONNECTED, o
+     * {@link StreamReplayBuffer#RESINCRONIZAR} si ya no estan disponibles y debe pedir el estado completo.
+     * @param subscriber
+     * @param lastEventId
+     * @return false si no se pudo armar el mensaje de conexion
+     */
+    private boolean conectar(StreamSubscriber subscriber, String lastEventId)
+    {
+        boolean reanudar = lastEventId != null && !lastEventId.isEmpty();
+        // Lo que llegue mientras se arma el mensaje CONNECTED y los eventos perdidos se encola despues de ellos
+        subscriber.retener();
+        registry.add(subscriber);
+        heartbeat.add(subscriber);
+        metrics.bindModulo(subscriber.getModulo(), registry);
+        if (subscriber.isCerrado())
+        {
+            // La conexion termino antes de quedar indexada
+            unregister(subscriber);
+            return false;
+        }
+        try
+        {
+            if (reanudar)
+            {
+                List<SseFrame> perdidos = replay.desde(lastEventId, subscriber);
+                MessageSendToClient ctr = MessageSendToClient.builder().modulo(subscriber.getModulo())
+                        .operacion(EnumOperacion.CONNECTED)
+                        .clazz(perdidos == null ? StreamReplayBuffer.RESINCRONIZAR : StreamReplayBuffer.REANUDADO)
+                        .build();
+                List<SseFrame> frames = new ArrayList<>();
+                frames.add(SseFrame.of(mapper, ctr));
+                if (perdidos != null)
+                {
+                    frames.addAll(perdidos);
+                }
+                log.debug("Reanudando cliente stream desde {} con {} eventos", lastEventId,
+                        perdidos == null ? "resincronizacion" : perdidos.size());
+                subscriber.conectar(frames);
             }
-            catch (JmsException e)
+            else
             {
-                log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
+                MessageSendToClient ctr = MessageSendToClient.builder().modulo(subscriber.getModulo())
+                        .operacion(EnumOperacion.CONNECTED).build();
+                subscriber.conectar(Collections.singletonList(SseFrame.of(mapper, ctr)));
+            }
 
+            sendConexion(subscriber, true);
+            if (presencia(subscriber.getModulo()))
+            {
+                presence.cambio(subscriber);
             }
-            return emitter;
+            return true;
         }
         catch (IOException e1)
         {
             e1.printStackTrace();
-            return null;
+            // Sin mensaje CONNECTED el suscriptor quedaria reteniendo frames
+            unregister(subscriber);
+            return false;
         }
     }
 
+    @Override
+    public void setBeanName(String name)
+    {
+        beanName = name;
+    }
+
     /**
-     * Envia emnsaje a equipo en modulo chat, para conectado o desconectado.
-     * @param emitter
+     * Toma el identificador de instancia del contexto, registrandolo si es el primer servicio stream.
+     */
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory)
+    {
+        this.beanFactory = beanFactory;
+        if (beanFactory instanceof SingletonBeanRegistry)
+        {
+            SingletonBeanRegistry singletons = (SingletonBeanRegistry) beanFactory;
+            synchronized (singletons)
+            {
+                if (!singletons.containsSingleton(INSTANCE_BEAN))
+                {
+                    singletons.registerSingleton(INSTANCE_BEAN, INSTANCE_BASE + INSTANCE_SEQ.incrementAndGet());
+                }
+                instanceId = (Long) singletons.getSingleton(INSTANCE_BEAN);
+            }
+        }
+        else
+        {
+            instanceId = INSTANCE_BASE + INSTANCE_SEQ.incrementAndGet();
+        }
+        directQueue = JMS_DIRECTO + instanceId + "." + beanName;
+    }
+
+    /**
+     * Registra el listener de la cola directa de esta instancia, por donde llegan los mensajes a usuarios conectados
+     * aqui segun el directorio del cluster. Usa su propio container, ya que el del contexto escucha topicos.
      */
-    private void sendDisconnect(MarteSseClient emitter)
+    @Override
+    public void configureJmsListeners(JmsListenerEndpointRegistrar registrar)
     {
-        disconnected(emitter);
-        if (EnumModulo.CHAT.equals(emitter.modulo))
+        if (activeMQEnable)
         {
-            OTConectado otMensje = OTConectado.builder().conectado(false).idEjercicio(emitter.getIdEjercicio())
-                    .idEquipo(emitter.getIdEquipo()).idUsuario(emitter.getIdPerfilUsuario()).build();
-            this.mensajeEquipo(EnumModulo.CHAT, EnumOperacion.UPDATE, emitter.idEquipo, OTConectado.class, otMensje);
+            SimpleJmsListenerEndpoint endpoint = new SimpleJmsListenerEndpoint();
+            endpoint.setId(directQueue);
+            endpoint.setDestination(directQueue);
+            endpoint.setMessageListener(this::processJmsMessage);
+            DefaultJmsListenerContainerFactory cola = new DefaultJmsListenerContainerFactory();
+            cola.setConnectionFactory(jmsTemplate.getConnectionFactory());
+            cola.setDestinationResolver(jmsTemplate.getDestinationResolver());
+            cola.setPubSubDomain(false);
+            registrar.registerEndpoint(endpoint, cola);
         }
     }
 
-    public <T> void mensajeUsuarios(EnumModulo modulo, EnumOperacion operacion, List<Long> idperfilUsuario,
-            Class<T> clazz, T input)
+    /**
+     * Quita el cliente de la lista y del indice de suscripciones y descarta sus mensajes pendientes.
+     * @param subscriber
+     * @return true si el cliente seguia registrado
+     */
+    private boolean unregister(StreamSubscriber subscriber)
+    {
+        subscriber.close();
+        heartbeat.remove(subscriber);
+        if (subscriber.getClient() instanceof SseEmitterStreamClient)
+        {
+            emittersConectados.remove(((SseEmitterStreamClient) subscriber.getClient()).getEmitter());
+        }
+        if (registry.remove(subscriber))
+        {
+            sendConexion(subscriber, false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Informa al directorio del cluster la conexion o desconexion de un cliente en esta instancia.
+     * @param subscriber
+     * @param conectado
+     */
+    private void sendConexion(StreamSubscriber subscriber, boolean conectado)
+    {
+        if (!activeMQEnable || !directoryEnable || subscriber.getIdPerfilUsuario() == null)
+        {
+            return;
+        }
+        StreamDirectoryMessage jms = new StreamDirectoryMessage();
+        jms.setInstance(instanceId);
+        jms.setDestino(directQueue);
+        jms.setModulo(subscriber.getModulo());
+        jms.setIdPerfilUsuario(subscriber.getIdPerfilUsuario());
+        jms.setConectado(conectado);
+        log.debug("Enviando a topico {} el mensaje JMS {}", subscriber.getModulo().name(), jms);
+        sendJms(subscriber.getModulo(), jms);
+    }
+
+    /**
+     * Publica la foto de conexiones de esta instancia para cada modulo y purga del directorio los destinos caidos.
+     */
+    private void sendDirectorio()
     {
         try
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoUsuarios(modulo, operacion, idperfilUsuario, clazz.getSimpleName(), messageString, true);
+            // Los usuarios de una instancia caida no recibieron desconexion, se reevalua su presencia
+            directory.purgar().forEach(presence::revisar);
+            for (EnumModulo modulo : registry.modulos())
+            {
+                StreamDirectoryMessage jms = new StreamDirectoryMessage();
+                jms.setInstance(instanceId);
+                jms.setDestino(directQueue);
+                jms.setModulo(modulo);
+                jms.setUsuarios(registry.conexionesPorUsuario(modulo));
+                sendJms(modulo, jms);
+            }
         }
-        catch (Exception e)
+        catch (RuntimeException e)
         {
-            log.error("Error al enviar mensaje a usuarios ", e);
+            log.error("[STREAM] Problema al publicar el directorio de conexiones", e);
         }
     }
 
-    private <T> void mensajeJmsUsuarios(EnumModulo modulo, EnumOperacion operacion, List<Long> idperfilUsuario,
-            String clazz, String input, boolean replicate)
+    /**
+     * Politica a aplicar cuando se llena la cola de salida de un cliente del modulo. Se configura con
+     * {@code sisdef.stream.outbox.policy.<MODULO>} o en forma general con {@code sisdef.stream.outbox.policy}.
+     * @param modulo
+     * @return
+     */
+    protected EnumPoliticaConsumidorLento politicaConsumidorLento(EnumModulo modulo)
+    {
+        EnumPoliticaConsumidorLento general = environment.getProperty("sisdef.stream.outbox.policy",
+                EnumPoliticaConsumidorLento.class, EnumPoliticaConsumidorLento.DISCONNECT);
+        return environment.getProperty("sisdef.stream.outbox.policy." + modulo.name(),
+                EnumPoliticaConsumidorLento.class, general);
+    }
+
+    /**
+     * Prioridad de los mensajes del modulo. Se configura con {@code sisdef.stream.priority.<MODULO>}, por ejemplo
+     * {@code sisdef.stream.priority.ALARMA=ALTA}; por defecto {@link EnumPrioridad#NORMAL}.
+     * @param modulo
+     * @return
+     */
+    protected EnumPrioridad prioridad(EnumModulo modulo)
     {
-        mensajeInternoUsuarios(modulo, operacion, idperfilUsuario, clazz, input, replicate);
+        return environment.getProperty("sisdef.stream.priority." + modulo.name(), EnumPrioridad.class,
+                EnumPrioridad.NORMAL);
     }
 
     /**
-     * Envia mensajes a la lista de ids de perfil de usuario
+     * QoS con que se replican los mensajes del modulo. Se configura con {@code sisdef.activemq.qos.persistent},
+     * {@code sisdef.activemq.qos.priority} y {@code sisdef.activemq.qos.ttl-ms}, en forma general o con el sufijo
+     * {@code .<MODULO>}. Por defecto los mensajes son persistentes, no expiran y la prioridad JMS sale de la
+     * {@link EnumPrioridad} del modulo.
+     * @param modulo
+     * @return
+     */
+    protected JmsQos qosJms(EnumModulo modulo)
+    {
+        Boolean persistente = environment.getProperty("sisdef.activemq.qos.persistent", Boolean.class, true);
+        Integer prioridad = environment.getProperty("sisdef.activemq.qos.priority", Integer.class,
+                prioridad(modulo).getPrioridadJms());
+        Long ttl = environment.getProperty("sisdef.activemq.qos.ttl-ms", Long.class, 0L);
+        return new JmsQos(
+                environment.getProperty("sisdef.activemq.qos.persistent." + modulo.name(), Boolean.class, persistente),
+                environment.getProperty("sisdef.activemq.qos.priority." + modulo.name(), Integer.class, prioridad),
+                environment.getProperty("sisdef.activemq.qos.ttl-ms." + modulo.name(), Long.class, ttl));
+    }
+
+    /**
+     * Indica si se publica la presencia ({@link OTConectado}) de los usuarios del modulo. Se configura con
+     * {@code sisdef.stream.presence.<MODULO>}; por defecto solo en el chat.
+     * @param modulo
+     * @return
+     */
+    protected boolean presencia(EnumModulo modulo)
+    {
+        return environment.getProperty("sisdef.stream.presence." + modulo.name(), Boolean.class,
+                EnumModulo.CHAT.equals(modulo));
+    }
+
+    /**
+     * Latencia objetivo en milisegundos de entrega de los mensajes de la prioridad, publicada en el histograma
+     * {@code sisdef.stream.delivery.latency}. Se configura con {@code sisdef.stream.priority.slo-ms.<PRIORIDAD>}.
+     * @param prioridad
+     * @return
+     */
+    protected long sloEntrega(EnumPrioridad prioridad)
+    {
+        return environment.getProperty("sisdef.stream.priority.slo-ms." + prioridad.name(), Long.class,
+                prioridad.getSloMillis());
+    }
+
+    /**
+     * Cantidad de carriles en que se aplican los mensajes replicados del modulo. Se configura con
+     * {@code sisdef.stream.jms.lanes.<MODULO>} o en forma general con {@code sisdef.stream.jms.lanes}; por defecto un
+     * carril por procesador.
+     * @param modulo
+     * @return
+     */
+    protected int carrilesJms(EnumModulo modulo)
+    {
+        Integer general = environment.getProperty("sisdef.stream.jms.lanes", Integer.class,
+                Runtime.getRuntime().availableProcessors());
+        return environment.getProperty("sisdef.stream.jms.lanes." + modulo.name(), Integer.class, general);
+    }
+
+    /**
+     * Intervalo en milisegundos del heartbeat de los clientes del modulo. Se configura con
+     * {@code sisdef.stream.heartbeat.interval-ms.<MODULO>} o en forma general con
+     * {@code sisdef.stream.heartbeat.interval-ms}; 0 lo desactiva.
+     * @param modulo
+     * @return
+     */
+    protected long intervaloHeartbeat(EnumModulo modulo)
+    {
+        Long general = environment.getProperty("sisdef.stream.heartbeat.interval-ms", Long.class, 15000L);
+        return environment.getProperty("sisdef.stream.heartbeat.interval-ms." + modulo.name(), Long.class, general);
+    }
+
+    /**
+     * Eventos que se guardan por ejercicio (y en el anillo general) del modulo para reanudar clientes que se
+     * reconectan. La reanudacion es opcional por modulo, se habilita con
+     * {@code sisdef.stream.replay.capacity.<MODULO>}, por ejemplo {@code sisdef.stream.replay.capacity.CHAT=1024}, o
+     * en forma general con {@code sisdef.stream.replay.capacity}. Por defecto 0, desactivada: un modulo sin reanudacion
+     * no serializa los mensajes que no tienen destinatarios conectados ni se replican, y sus clientes que se
+     * reconectan con {@code Last-Event-ID} reciben {@link StreamReplayBuffer#RESINCRONIZAR}.
+     * @param modulo
+     * @return
+     */
+    protected int capacidadReplay(EnumModulo modulo)
+    {
+        Integer general = environment.getProperty("sisdef.stream.replay.capacity", Integer.class, 0);
+        return environment.getProperty("sisdef.stream.replay.capacity." + modulo.name(), Integer.class, general);
+    }
+
+    /**
+     * Registra como identificar la entidad de los mensajes de la clase, para que en los modulos con conflacion
+     * habilitada ({@code sisdef.stream.conflation.<MODULO>=true}) un cliente atrasado reciba solo el ultimo UPDATE
+     * pendiente de cada entidad.
      * @param <T>
-     * @param operacion
-     * @param idEquipo
-     * @param idperfilUsuario
      * @param clazz
-     * @param input
+     *            clase del objeto enviado
+     * @param id
+     *            funcion que obtiene el identificador de la entidad
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> void conflacion(Class<T> clazz, Function<T, ?> id)
+    {
+        clavesEntidad.put(clazz.getSimpleName(), (Function<Object, ?>) id);
+        clasesEntidad.put(clazz.getSimpleName(), clazz);
+    }
+
+    /**
+     * Registra la clase para enviar los UPDATE repetidos de una misma entidad como parche JSON (RFC 6902) contra la
+     * version anterior, en lugar del objeto completo. Ver {@link StreamDeltaTracker}.
+     * @param <T>
+     * @param clazz
+     *            clase del objeto enviado
+     * @param id
+     *            funcion que obtiene el identificador de la entidad
+     */
+    @SuppressWarnings("unchecked")
+    protected <T> void delta(Class<T> clazz, Function<T, ?> id)
+    {
+        clavesEntidad.put(clazz.getSimpleName(), (Function<Object, ?>) id);
+        clasesEntidad.put(clazz.getSimpleName(), clazz);
+        clasesDelta.add(clazz.getSimpleName());
+    }
+
+    /**
+     * Asigna a los mensajes de la clase una prioridad distinta de la de su modulo, por ejemplo para que una alarma
+     * enviada por un modulo de trafico masivo no espere detras de los listados.
+     * @param <T>
+     * @param clazz
+     *            clase del objeto enviado
+     * @param prioridad
+     */
+    protected <T> void prioridad(Class<T> clazz, EnumPrioridad prioridad)
+    {
+        prioridadClases.put(clazz.getSimpleName(), prioridad);
+    }
+
+    /**
+     * Prioridad del mensaje: la de su clase si se registro una, o la del modulo.
+     */
+    private EnumPrioridad prioridad(EnumModulo modulo, String clazz)
+    {
+        EnumPrioridad prioridad = clazz == null ? null : prioridadClases.get(clazz);
+        return prioridad != null ? prioridad : prioridadModulos.computeIfAbsent(modulo, this::prioridad);
+    }
+
+    private StreamDeliveryExecutor ejecutorEnvio(EnumPrioridad prioridad)
+    {
+        return EnumPrioridad.ALTA.equals(prioridad) ? priorityDeliveryExecutor : deliveryExecutor;
+    }
+
+    /**
+     * Entidad (modulo, clase, id) del mensaje, o null si no corresponde conflacion ni delta: la clase no tiene
+     * identificador registrado, o el modulo no usa conflacion y la clase no usa deltas.
+     */
+    private StreamEntityKey claveEntidad(EnumModulo modulo, String clazz, Object input)
+    {
+        Function<Object, ?> id = clavesEntidad.get(clazz);
+        if (id == null || input == null)
+        {
+            return null;
+        }
+        boolean conflacion = conflacionHabilitada(modulo);
+        boolean delta = clasesDelta.contains(clazz);
+        Object idEntidad = conflacion || delta ? id.apply(input) : null;
+        return idEntidad == null ? null
+                : new StreamEntityKey(modulo.name() + ":" + clazz + ":" + idEntidad, conflacion, delta);
+    }
+
+    /**
+     * Entidad de un mensaje replicado en un {@code JmsStreamMessage*}, que no la incluye: se obtiene del JSON con la
+     * clase registrada, de modo que los clientes reciben el mismo formato en cualquier instancia.
+     * El JSON se lee solo si el modulo usa conflacion o la clase usa deltas.
+     * @return null si la clase no tiene identificador registrado o el mensaje no es una unica entidad
      */
-    private void mensajeInternoUsuarios(EnumModulo modulo, EnumOperacion operacion, List<Long> idperfilUsuario,
-            String clazz, String input, boolean replicate)
+    private StreamEntityKey claveReplicada(EnumModulo modulo, String clazz, String json)
     {
+        Class<?> clase = clazz == null ? null : clasesEntidad.get(clazz);
+        if (clase == null || json == null || !conflacionHabilitada(modulo) && !clasesDelta.contains(clazz))
+        {
+            return null;
+        }
         try
         {
-            log.debug(String.format("Enviando mensaje a usuarios %s", input.toString()));
+            return claveEntidad(modulo, clazz, mapper.readValue(json, clase));
+        }
+        catch (IOException e)
+        {
+            // Una lista de objetos no representa una unica entidad
+            log.debug("[STREAM] Mensaje replicado de {} sin entidad: {}", clazz, e.getMessage());
+            return null;
+        }
+    }
 
-            if (emitters.isEmpty())
-            {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
-            }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream()
-                    .filter(e -> e.getModulo().equals(modulo) && idperfilUsuario.contains(e.getIdPerfilUsuario()))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug("Mensaje enviado al usuario [{}]", emitter.getIdPerfilUsuario());
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn("error enviando mensaje a usuarios , al usuario {} error:{}",
-                                    emitter.idPerfilUsuario, e.getCause().getMessage());
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
-            {
-                try
-                {
-                    JmsStreamMessageUsers jms = new JmsStreamMessageUsers();
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setIds(idperfilUsuario);
-                    jms.setClazz(clazz);
-                    log.debug("Enviando a topico {} el mensaje JMS ", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
+    private boolean conflacionHabilitada(EnumModulo modulo)
+    {
+        return conflacionModulos.computeIfAbsent(modulo,
+                m -> environment.getProperty("sisdef.stream.conflation." + m.name(), Boolean.class, false));
+    }
 
-                }
-            }
+    /**
+     * Avisa la desconexion al {@link IStreamDisconnect} y, en los modulos con presencia, la deja pendiente en
+     * {@link StreamPresence} para informarla al equipo si al vencer la ventana de gracia el usuario no volvio.
+     * @param subscriber
+     */
+    private void sendDisconnect(StreamSubscriber subscriber)
+    {
+        if (subscriber.getClient() instanceof SseEmitterStreamClient)
+        {
+            disconnected(((SseEmitterStreamClient) subscriber.getClient()).getEmitter());
         }
-        catch (Exception e1)
+        if (presencia(subscriber.getModulo()))
         {
-            e1.printStackTrace();
+            presence.cambio(subscriber);
         }
+    }
 
+    /**
+     * Conexiones del usuario en esta instancia y, con ActiveMQ, en las demas segun el directorio del cluster.
+     */
+    private int conexionesCluster(EnumModulo modulo, Long idPerfilUsuario)
+    {
+        int locales = registry.porUsuario(modulo, idPerfilUsuario).size();
+        return activeMQEnable ? locales + directory.conexiones(modulo, idPerfilUsuario, directQueue) : locales;
     }
 
     /**
-     * 
+     * Envia al equipo los cambios de presencia que vencieron juntos, replicandolos a las demas instancias.
+     * @param modulo
+     * @param idEquipo
+     * @param cambios
+     */
+    private void publicarPresencia(EnumModulo modulo, Long idEquipo, List<OTConectado> cambios)
+    {
+        if (presenceBatch && cambios.size() > 1)
+        {
+            mensajeEquipo(modulo, EnumOperacion.UPDATE, idEquipo, PRESENCIA_LOTE, cambios);
+            return;
+        }
+        for (OTConectado cambio : cambios)
+        {
+            mensajeEquipo(modulo, EnumOperacion.UPDATE, idEquipo, OTConectado.class, cambio);
+        }
+    }
+
+    /**
+     * Envia el objeto a los suscriptores del modulo que forman la audiencia y lo replica a las demas instancias en un
+     * unico {@link StreamAudienceMessage}. Los destinatarios se buscan en el indice segun
+     * {@link StreamClientRegistry#porAudiencia(EnumModulo, StreamAudience)}.
      * @param <T>
      * @param modulo
      *            Modulo {@link EnumModulo}
      * @param operacion
-     *            OPeracion {@link EnumOperacion}
-     * @param idEquipo
-     *            id de equipo
+     *            Operacion {@link EnumOperacion}
+     * @param audiencia
+     *            destinatarios, por ejemplo {@code StreamAudience.equipo(idEquipo).y(StreamAudience.usuarios(ids))}
      * @param clazz
      *            clase del objeto a enviar
      * @param input
-     *            Objecto a enviar
+     *            Objeto a enviar
      */
-    public <T> void mensajeEquipo(EnumModulo modulo, EnumOperacion operacion, Long idEquipo, String clazz, T input)
+    public <T> void publish(EnumModulo modulo, EnumOperacion operacion, StreamAudience audiencia, Class<T> clazz,
+            T input)
+    {
+        publish(modulo, operacion, audiencia, clazz.getSimpleName(), input);
+    }
 
+    public <T> void publish(EnumModulo modulo, EnumOperacion operacion, StreamAudience audiencia, String clazz,
+            T input)
     {
         try
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoEquipo(modulo, operacion, idEquipo, clazz, messageString, true);
+            publicarInterno(modulo, operacion, audiencia, clazz, StreamPayload.of(mapper, input), true,
+                    claveEntidad(modulo, clazz, input));
         }
         catch (Exception e)
         {
-            log.error("Error al enviar mensaje a usuarios ", e);
+            log.error("Error al enviar mensaje a {}", audiencia, e);
         }
     }
 
-    private void mensajeJmsEquipo(EnumModulo modulo, EnumOperacion operacion, Long idEquipo, String clazz, String input,
-            boolean replicate)
+    /**
+     * Envia una lista de objetos sin conflacion ni delta, ya que no representa una unica entidad.
+     */
+    private <T> void publishLista(EnumModulo modulo, EnumOperacion operacion, StreamAudience audiencia,
+            Class<T> clazz, List<T> inputs, boolean replicate)
     {
-        mensajeInternoEquipo(modulo, operacion, idEquipo, clazz, input, replicate);
+        publicarInterno(modulo, operacion, audiencia, clazz.getSimpleName(), StreamPayload.of(mapper, inputs),
+                replicate, null);
+    }
 
+    public <T> void mensajeUsuarios(EnumModulo modulo, EnumOperacion operacion, List<Long> idperfilUsuario,
+            Class<T> clazz, T input)
+    {
+        publish(modulo, operacion, StreamAudience.usuarios(idperfilUsuario), clazz, input);
+    }
+
+    /**
+     * 
+     * @param <T>
+     * @param modulo
+     *            Modulo {@link EnumModulo}
+     * @param operacion
+     *            OPeracion {@link EnumOperacion}
+     * @param idEquipo
+     *            id de equipo
+     * @param clazz
+     *            clase del objeto a enviar
+     * @param input
+     *            Objecto a enviar
+     */
+    public <T> void mensajeEquipo(EnumModulo modulo, EnumOperacion operacion, Long idEquipo, String clazz, T input)
+    {
+        publish(modulo, operacion, StreamAudience.equipo(idEquipo), clazz, input);
     }
 
     public <T> void mensajeEquipo(EnumModulo modulo, EnumOperacion operacion, Long idEquipo, Class<T> clazz, T input)
     {
-        mensajeEquipo(modulo, operacion, idEquipo, clazz.getSimpleName(), input);
+        publish(modulo, operacion, StreamAudience.equipo(idEquipo), clazz, input);
     }
 
     /**
@@ -268,148 +1058,132 @@ public abstract class AbstractEventService implements IStreamDisconnect
     public void mensajeInternoEquipo(EnumModulo modulo, EnumOperacion operacion, Long idEquipo, String clazz,
             String input, boolean replicate)
     {
-        try
-        {
-            // String messageString = mapper.writeValueAsString(input);
-            log.debug("Enviando mensaje a equipo {} {}", idEquipo, input.toString());
+        publicarInterno(modulo, operacion, StreamAudience.equipo(idEquipo), clazz, StreamPayload.of(input),
+                replicate, null);
+    }
 
-            if (emitters.isEmpty())
-            {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
-            }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream()
-                    .filter(e -> e.getModulo().equals(modulo) && Objects.equals(e.getIdEquipo(), idEquipo))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug("Mensaje enviado al equipo {} al usuario {}", idEquipo,
-                                    emitter.getIdPerfilUsuario());
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn("error enviando mensaje equipo al equipo {} al usuario: {} error:{}", idEquipo,
-                                    emitter.getIdPerfilUsuario(), e.getCause().getMessage());
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
-            {
-                try
-                {
-                    JmsStreamMessageTeam jms = new JmsStreamMessageTeam();
-                    jms.setInstance(instanceId);
+    public <T> void mensajeEjercicio(EnumModulo modulo, EnumOperacion operacion, Long idEjercicio, Class<T> clazz,
+            T input)
+    {
+        publish(modulo, operacion, StreamAudience.ejercicio(idEjercicio), clazz, input);
+    }
+
+    public <T> void mensajeUnidad(EnumModulo modulo, EnumOperacion operacion, Long idUnidad, Class<T> clazz, T input)
+    {
+        publish(modulo, operacion, StreamAudience.unidad(idUnidad), clazz, input);
+    }
 
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setTeamId(idEquipo);
-                    jms.setClazz(clazz);
+    public <T> void mensajeUnidadJDN(EnumModulo modulo, EnumOperacion operacion, Long idUnidadJdn, Class<T> clazz,
+            T input)
+    {
+        publish(modulo, operacion, StreamAudience.unidadJdn(idUnidadJdn), clazz, input);
+    }
 
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
+    /**
+     * Mensaje a usuarios que cumplan idEquipo, Lista de idPerfilUsuario
+     */
+    public <T> void mensajeEquipoUsuarios(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
+            List<Long> idperfilUsuario, Class<T> clazz, T input)
+    {
+        publish(modulo, operacion, StreamAudience.equipo(idEquipo).y(StreamAudience.usuarios(idperfilUsuario)), clazz,
+                input);
+    }
 
-                }
-            }
-        }
-        catch (Exception e1)
-        {
-            e1.printStackTrace();
-        }
+    public <T> void mensajeEquipoUsuario(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
+            Long idperfilUsuario, Class<T> clazz, T input)
+    {
+        publish(modulo, operacion, StreamAudience.equipo(idEquipo).y(StreamAudience.usuario(idperfilUsuario)), clazz,
+                input);
+    }
 
+    /**
+     * Envia la lista a usuarios conectados a las unidades, sin replicar a las demas instancias.
+     */
+    public <T> void mensajeUnidades(EnumModulo modulo, EnumOperacion operacion, List<Long> idUnidad, Class<T> clazz,
+            List<T> inputs)
+    {
+        publishLista(modulo, operacion, StreamAudience.unidades(idUnidad), clazz, inputs, false);
     }
 
-    public <T> void mensajeEjercicio(EnumModulo modulo, EnumOperacion operacion, Long idEjercicio, Class<T> clazz,
+    public <T> void mensajeUnidades(EnumModulo modulo, EnumOperacion operacion, List<Long> idUnidad, Class<T> clazz,
             T input)
     {
-        try
-        {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoEjercicio(modulo, operacion, idEjercicio, clazz.getSimpleName(), messageString, true);
-        }
-        catch (Exception e)
-        {
-            log.error("Error al enviar mensaje a usuarios ", e);
-        }
+        publish(modulo, operacion, StreamAudience.unidades(idUnidad), clazz, input);
     }
 
-    private void mensajeJmsEjercicio(EnumModulo modulo, EnumOperacion operacion, Long idEjercicio, String clazz,
-            String input, boolean replicate)
+    /**
+     * Envia mensajes a usuarios conectados a las unidades y equipos
+     */
+    public <T> void mensajeEquipoUnidades(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
+            List<Long> idsUnidad, Class<T> clazz, List<T> input)
     {
-        mensajeInternoEjercicio(modulo, operacion, idEjercicio, clazz, input, replicate);
+        publishLista(modulo, operacion, StreamAudience.equipo(idEquipo).y(StreamAudience.unidades(idsUnidad)), clazz,
+                input, true);
+    }
 
+    public <T> void mensajeEquipoUnidades(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
+            List<Long> idsUnidad, Class<T> clazz, T input)
+    {
+        publish(modulo, operacion, StreamAudience.equipo(idEquipo).y(StreamAudience.unidades(idsUnidad)), clazz,
+                input);
     }
 
     /**
-     * Envia mensajes a Equipo
-     * @param <T>
+     * Envia el mensaje a los destinatarios de la audiencia conectados a esta instancia y, si corresponde, lo replica.
+     * Los mensajes a usuarios se replican solo a las instancias donde estan conectados.
      * @param modulo
      * @param operacion
-     * @param idEquipo
+     * @param audiencia
      * @param clazz
      * @param input
+     * @param replicate
+     *            false para los mensajes que llegan replicados de otra instancia
+     * @param clave
+     *            entidad del mensaje, null si no corresponde conflacion ni delta
      */
-    private void mensajeInternoEjercicio(EnumModulo modulo, EnumOperacion operacion, Long idEjercicio, String clazz,
-            String input, boolean replicate)
+    private void publicarInterno(EnumModulo modulo, EnumOperacion operacion, StreamAudience audiencia, String clazz,
+            StreamPayload input, boolean replicate, StreamEntityKey clave)
     {
         try
         {
-            log.debug("Enviando mensaje a ejercicio :{}", input);
+            log.debug("Enviando mensaje a {} {}", audiencia, input);
 
-            if (emitters.isEmpty())
+            Collection<StreamSubscriber> procesar = registry.porAudiencia(modulo, audiencia);
+            boolean replicar = replicate && activeMQEnable;
+            if (!replicar && sinDestino(modulo, procesar))
             {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+                return;
             }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream()
-                    .filter(e -> e.getModulo().equals(modulo) && Objects.equals(e.getIdEjercicio(), idEjercicio))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje a Ejercicio  enviado al cliente [%s]",
-                                    emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn(String.format("error enviando mensaje a Ejercicio al cliente [%s]",
-                                    e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
+            String json = input.get();
+            deliver(modulo, audiencia.getIdEjercicio(), audiencia::toString, audiencia::test, procesar,
+                    MessageSendToClient.builder().modulo(modulo).operacion(operacion).data(json).clazz(clazz).build(),
+                    clave);
+
+            if (replicar)
             {
-                try
+                Object jms = jmsAudienceEnable ? null : mensajeAnterior(modulo, operacion, audiencia, clazz, json);
+                if (jms == null)
                 {
-                    JmsStreamMessageExercise jms = new JmsStreamMessageExercise();
-                    jms.setInstance(instanceId);
-
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setExerciseId(idEjercicio);
-                    jms.setClazz(clazz);
+                    StreamAudienceMessage mensaje = new StreamAudienceMessage();
+                    mensaje.setInstance(instanceId);
+                    mensaje.setModulo(modulo);
+                    mensaje.setOperacion(operacion);
+                    mensaje.setAudiencia(audiencia);
+                    mensaje.setClazz(clazz);
+                    mensaje.setMessage(json);
+                    mensaje.setEntidad(clave);
+                    jms = mensaje;
+                }
 
-                    log.debug("Enviando a topico {} el mensaje JMS ", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
+                log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
+                Set<Long> usuarios = audiencia.getUsuarios();
+                if (usuarios != null)
+                {
+                    sendJmsUsuarios(modulo, usuarios, jms, prioridad(modulo, clazz));
                 }
-                catch (JmsException e)
+                else
                 {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
-
+                    sendJms(modulo, jms, prioridad(modulo, clazz));
                 }
             }
         }
@@ -420,667 +1194,722 @@ public abstract class AbstractEventService implements IStreamDisconnect
 
     }
 
-    public <T> void mensajeUnidad(EnumModulo modulo, EnumOperacion operacion, Long idUnidad, Class<T> clazz, T input)
+    /**
+     * Mensaje de replicacion en el formato anterior a {@link StreamAudienceMessage}, para las audiencias que se pueden
+     * expresar con un {@code JmsStreamMessage*}.
+     * @param modulo
+     * @param operacion
+     * @param audiencia
+     * @param clazz
+     * @param json
+     * @return null si la audiencia no tiene un mensaje equivalente
+     */
+    private JmsMessage mensajeAnterior(EnumModulo modulo, EnumOperacion operacion, StreamAudience audiencia,
+            String clazz, String json)
     {
-        try
+        List<Long> ids = audiencia.getIds();
+        switch (audiencia.getCriterio())
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoUnidad(modulo, operacion, idUnidad, clazz.getSimpleName(), messageString, true);
+            case EQUIPO:
+                if (ids.size() != 1)
+                    return null;
+                JmsStreamMessageTeam equipo = new JmsStreamMessageTeam();
+                equipo.setTeamId(ids.get(0));
+                return completar(equipo, modulo, operacion, clazz, json);
+            case EJERCICIO:
+                if (ids.size() != 1)
+                    return null;
+                JmsStreamMessageExercise ejercicio = new JmsStreamMessageExercise();
+                ejercicio.setExerciseId(ids.get(0));
+                return completar(ejercicio, modulo, operacion, clazz, json);
+            case UNIDAD:
+                if (ids.size() == 1)
+                {
+                    JmsStreamMessageUnit unidad = new JmsStreamMessageUnit();
+                    unidad.setUnitId(ids.get(0));
+                    return completar(unidad, modulo, operacion, clazz, json);
+                }
+                JmsStreamMessageUnits unidades = new JmsStreamMessageUnits();
+                unidades.setUnitId(ids);
+                return completar(unidades, modulo, operacion, clazz, json);
+            case UNIDAD_JDN:
+                if (ids.size() != 1)
+                    return null;
+                JmsStreamMessageJdnUnit unidadJdn = new JmsStreamMessageJdnUnit();
+                unidadJdn.setUnitId(ids.get(0));
+                return completar(unidadJdn, modulo, operacion, clazz, json);
+            case USUARIO:
+                JmsStreamMessageUsers usuarios = new JmsStreamMessageUsers();
+                usuarios.setIds(ids);
+                return completar(usuarios, modulo, operacion, clazz, json);
+            case Y:
+                return mensajeAnteriorEquipo(modulo, operacion, audiencia.getPartes(), clazz, json);
+            default:
+                return null;
         }
-        catch (Exception e)
+    }
+
+    /**
+     * Mensajes anteriores a un equipo combinado con unidades o usuarios.
+     */
+    private JmsMessage mensajeAnteriorEquipo(EnumModulo modulo, EnumOperacion operacion,
+            List<StreamAudience> partes, String clazz, String json)
+    {
+        if (partes.size() != 2)
+        {
+            return null;
+        }
+        StreamAudience equipo = partes.get(0);
+        StreamAudience otra = partes.get(1);
+        if (otra.getCriterio() == StreamAudience.Criterio.EQUIPO)
+        {
+            equipo = otra;
+            otra = partes.get(0);
+        }
+        if (equipo.getCriterio() != StreamAudience.Criterio.EQUIPO || equipo.getIds().size() != 1)
+        {
+            return null;
+        }
+        Long idEquipo = equipo.getIds().get(0);
+        switch (otra.getCriterio())
         {
-            log.error("Error al enviar mensaje a usuarios ", e);
+            case UNIDAD:
+                JmsStreamMessageTeamUnits unidades = new JmsStreamMessageTeamUnits();
+                unidades.setTeamId(idEquipo);
+                unidades.setUnitId(otra.getIds());
+                return completar(unidades, modulo, operacion, clazz, json);
+            case USUARIO:
+                if (otra.getIds().size() == 1)
+                {
+                    JmsStreamMessageTeamUser usuario = new JmsStreamMessageTeamUser();
+                    usuario.setTeamId(idEquipo);
+                    usuario.setUserId(otra.getIds().get(0));
+                    return completar(usuario, modulo, operacion, clazz, json);
+                }
+                JmsStreamMessageTeamUsers usuarios = new JmsStreamMessageTeamUsers();
+                usuarios.setTeamId(idEquipo);
+                usuarios.setUsersId(otra.getIds());
+                return completar(usuarios, modulo, operacion, clazz, json);
+            default:
+                return null;
         }
     }
 
-    private void mensajeJmsUnidad(EnumModulo modulo, EnumOperacion operacion, Long idUnidad, String clazz, String input,
-            boolean replicate)
+    private JmsMessage completar(JmsMessage jms, EnumModulo modulo, EnumOperacion operacion, String clazz,
+            String json)
     {
-        mensajeInternoUnidad(modulo, operacion, idUnidad, clazz, input, replicate);
+        jms.setInstance(instanceId);
+        jms.setModulo(modulo);
+        jms.setOperacion(operacion);
+        jms.setClazz(clazz);
+        jms.setMessage(json);
+        return jms;
+    }
 
+    /**
+     * Indica que el mensaje no tiene a quien llegar en esta instancia: no hay destinatarios conectados y el modulo no
+     * guarda eventos para reanudar. En ese caso, si tampoco se replica, no hace falta serializarlo.
+     * @param modulo
+     * @param procesar
+     * @return
+     */
+    private boolean sinDestino(EnumModulo modulo, Collection<StreamSubscriber> procesar)
+    {
+        if (procesar.isEmpty() && !replay.isHabilitado(modulo))
+        {
+            log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+            return true;
+        }
+        return false;
     }
 
     /**
-     * Envia mensajes a usuarios conectados de la unidad
-     * @param <T>
+     * Serializa el mensaje, lo guarda para reanudaciones si el modulo lo usa y lo encola a los destinatarios. Con la
+     * reanudacion habilitada el mensaje se guarda aunque no haya destinatarios conectados, porque pueden estar por
+     * reconectarse.
      * @param modulo
-     * @param operacion
-     * @param idEquipo
-     * @param clazz
-     * @param input
+     * @param idEjercicio
+     *            ejercicio al que va dirigido el mensaje, null si no va a un ejercicio
+     * @param ambito
+     *            destinatarios del mensaje, para llevar las versiones de las entidades con deltas
+     * @param destino
+     *            criterio de destinatarios, para reenviar el mensaje a quien se reconecte
+     * @param procesar
+     *            clientes destino conectados
+     * @param msg
+     * @param clave
+     *            entidad del mensaje, null si no corresponde conflacion ni delta
+     * @throws IOException
      */
-    private void mensajeInternoUnidad(EnumModulo modulo, EnumOperacion operacion, Long idUnidad, String clazz,
-            String input, boolean replicate)
+    private void deliver(EnumModulo modulo, Long idEjercicio, Supplier<String> ambito,
+            Predicate<StreamSubscriber> destino, Collection<StreamSubscriber> procesar, MessageSendToClient msg,
+            StreamEntityKey clave) throws IOException
     {
-        try
+        boolean guardar = replay.isHabilitado(modulo);
+        if (procesar.isEmpty())
+        {
+            log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+            if (!guardar)
+            {
+                return;
+            }
+        }
+        SseFrame frame = clave != null && clave.isDelta() ? deltas.frame(ambito.get(), clave, msg)
+                : SseFrame.of(mapper, msg, clave == null ? null : clave.getClaveConflacion());
+        frame = frame.withPrioridad(prioridad(modulo, msg.getClazz()));
+        if (guardar)
         {
-            log.debug(String.format("Enviando mensaje a unidad  %s", input.toString()));
+            frame = replay.registrar(modulo, idEjercicio, destino, frame);
+        }
+        if (!procesar.isEmpty())
+        {
+            long inicio = System.nanoTime();
+            deliver(procesar, frame);
+            metrics.fanout(modulo, procesar.size(), System.nanoTime() - inicio);
+        }
+    }
 
-            if (emitters.isEmpty())
+    /**
+     * Encola el frame, serializado una sola vez, en la cola de salida de cada uno de los destinatarios. La escritura al
+     * socket la hace el escritor de cada cliente, por lo que un cliente lento no frena al resto. Los frames de
+     * prioridad alta se reparten con su propio ejecutor.
+     * @param procesar
+     *            clientes destino
+     * @param frame
+     *            evento ya serializado
+     */
+    private void deliver(Collection<StreamSubscriber> procesar, SseFrame frame)
+    {
+        ejecutorEnvio(frame.getPrioridad()).forEach(procesar, subscriber -> {
+            if (subscriber.offer(frame))
             {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+                log.debug("Mensaje {} encolado al usuario [{}]", frame.getClazz(), subscriber.getIdPerfilUsuario());
             }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream()
-                    .filter(e -> e.getModulo().equals(modulo) && Objects.equals(e.getIdUnidad(), idUnidad))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje a Unidad enviado al cliente [%s]",
-                                    emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn(String.format("error enviando mensaje a unidad  al cliente [%s]",
-                                    e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
+            else
             {
-                try
-                {
-                    JmsStreamMessageUnit jms = new JmsStreamMessageUnit();
-                    jms.setInstance(instanceId);
-
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setUnitId(idUnidad);
-                    jms.setClazz(clazz);
-
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
-
-                }
+                log.debug("Mensaje {} descartado para el usuario [{}]", frame.getClazz(),
+                        subscriber.getIdPerfilUsuario());
             }
+        });
+    }
+
+    protected void processJmsMessage(String message)
+    {
+        try
+        {
+            processJmsTree(jmsCodec.decode(message));
         }
-        catch (Exception e1)
+        catch (IOException e)
         {
-            e1.printStackTrace();
+            e.printStackTrace();
         }
-
     }
 
-    public <T> void mensajeUnidadJDN(EnumModulo modulo, EnumOperacion operacion, Long idUnidadJdn, Class<T> clazz,
-            T input)
+    protected void processJmsMessage(byte[] message)
     {
         try
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoUnidadJDN(modulo, operacion, idUnidadJdn, clazz.getSimpleName(), messageString, true);
+            processJmsTree(jmsCodec.decode(message));
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            log.error("Error al enviar mensaje a usuarios ", e);
+            e.printStackTrace();
         }
     }
 
-    private void mensajeJmsUnidadJDN(EnumModulo modulo, EnumOperacion operacion, Long idUnidadJdn, String clazz,
-            String input, boolean replicate)
-    {
-        mensajeInternoUnidadJDN(modulo, operacion, idUnidadJdn, clazz, input, replicate);
-
-    }
-
     /**
-     * Envia mensajes a usuarios conectados de la unidad JDN
-     * @param <T>
-     * @param modulo
-     * @param operacion
-     * @param idEquipo
-     * @param clazz
-     * @param input
+     * Procesa un mensaje de replicacion en cualquiera de los formatos de {@link EnumJmsCodec}. Los listeners de los
+     * servicios que usen {@code sisdef.activemq.codec=SMILE} deben recibir el {@link Message} y delegar en este metodo,
+     * ya que el cuerpo llega como BytesMessage. Si el mensaje trae el tipo como propiedad JMS se decodifica
+     * directamente a la clase concreta.
+     * @param message
      */
-    private void mensajeInternoUnidadJDN(EnumModulo modulo, EnumOperacion operacion, Long idUnidadJdn, String clazz,
-            String input, boolean replicate)
+    protected void processJmsMessage(Message message)
     {
         try
         {
-            log.debug(String.format("Enviando mensaje unidad JDN %s", input.toString()));
-
-            if (emitters.isEmpty())
+            if (message.propertyExists(JMS_INSTANCE) && instanceId.equals(message.getLongProperty(JMS_INSTANCE)))
             {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+                return;// Llega solo si el listener no usa JMS_SELECTOR
             }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream()
-                    .filter(e -> e.getModulo().equals(modulo) && Objects.equals(e.getIdUnidadJdn(), idUnidadJdn))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje enviado a unidad JDN al cliente [%s]",
-                                    emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn(String.format("error enviando mensaje a unidad JDN al cliente [%s]",
-                                    e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
+            Class<?> clase = TIPOS_JMS.get(message.getStringProperty(JMS_TIPO));
+            if (clase != null)
             {
-                try
-                {
-                    JmsStreamMessageJdnUnit jms = new JmsStreamMessageJdnUnit();
-                    jms.setInstance(instanceId);
-
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setUnitId(idUnidadJdn);
-
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
-                }
-                catch (JmsException e)
+                // Sin arbol intermedio el retraso se toma de la propiedad, los demas caminos lo leen del mensaje
+                if (message.propertyExists(JMS_ENVIADO))
                 {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
-
+                    metrics.replicacion(System.currentTimeMillis() - message.getLongProperty(JMS_ENVIADO));
                 }
+                applyReplicado(jmsCodec.decode(message, clase));
+            }
+            else
+            {
+                processJmsTree(jmsCodec.decode(message));
             }
         }
-        catch (Exception e1)
+        catch (IOException | JMSException e)
         {
-            e1.printStackTrace();
+            e.printStackTrace();
         }
-
     }
 
-    public <T> void mensajeEquipoUsuarios(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idperfilUsuario, Class<T> clazz, T input)
+    private void processJmsTree(JsonNode nodo)
     {
-        try
+        if (nodo.isArray())
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoEquipoUsuarios(modulo, operacion, idEquipo, idperfilUsuario, clazz.getSimpleName(),
-                    messageString, true);
+            // Lote de mensajes agrupados por el publicador de otra instancia
+            for (JsonNode item : nodo)
+            {
+                processJmsNode(item);
+            }
         }
-        catch (Exception e)
+        else
         {
-            log.error("Error al enviar mensaje", e);
+            processJmsNode(nodo);
         }
     }
 
-    private void mensajeJmsEquipoUsuarios(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idperfilUsuario, String clazz, String input, boolean replicate)
-    {
-        mensajeInternoEquipoUsuarios(modulo, operacion, idEquipo, idperfilUsuario, clazz, input, replicate);
-    }
-
     /**
-     * Mensaje a usuarios que cumplan idEquipo, Lista de idPerfilUsuario
-     * @param <T>
-     * @param operacion
-     * @param idEquipo
-     * @param idperfilUsuario
-     * @param clazz
-     * @param input
+     * Decodifica un mensaje de replicacion en una sola pasada: el tipo se lee del arbol y se convierte directamente a
+     * la clase concreta.
+     * @param message
      */
-    private void mensajeInternoEquipoUsuarios(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idperfilUsuario, String clazz, String input, boolean replicate)
+    private void processJmsNode(JsonNode message)
     {
         try
         {
-            log.debug(String.format("Enviando mensaje a usuarios de un equipo %s", input.toString()));
-
-            if (emitters.isEmpty())
+            if (instanceId.equals(message.path("instance").asLong()))
             {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+                return;// No se procesa por que es originado por esta misma instancia
             }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream().filter(e -> e.getModulo().equals(modulo)
-                    && Objects.equals(e.getIdEquipo(), idEquipo) && idperfilUsuario.contains(e.getIdPerfilUsuario()))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje enviado usuarios de un equipo al cliente [%s]",
-                                    emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.debug(String.format("error enviando mensaje a usuarios de un equipo al cliente [%s]",
-                                    e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
+            Long enviado = JmsStreamCodec.enviado(message);
+            if (enviado != null)
             {
-                try
-                {
-                    JmsStreamMessageTeamUsers jms = new JmsStreamMessageTeamUsers();
-                    jms.setInstance(instanceId);
-
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setTeamId(idEquipo);
-                    jms.setUsersId(idperfilUsuario);
-                    jms.setClazz(clazz);
-                    String jsonJms = mapper.writeValueAsString(jms);
-
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jsonJms);
-                    sendJms(modulo, jsonJms);
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
-
-                }
+                metrics.replicacion(System.currentTimeMillis() - enviado);
+            }
+            Class<?> clase = TIPOS_JMS.get(message.path("tipo").asText());
+            if (clase == null)
+            {
+                log.warn("No se pudo procesar el mensaje {}", message);
+                return;
             }
+            applyReplicado(mapper.treeToValue(message, clase));
         }
-        catch (Exception e1)
+        catch (JsonProcessingException e)
         {
-            e1.printStackTrace();
+            e.printStackTrace();
         }
-
     }
 
-    public <T> void mensajeEquipoUsuario(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            Long idperfilUsuario, Class<T> clazz, T input)
+    private void applyReplicado(Object mensaje)
     {
-        try
+        if (mensaje instanceof StreamDirectoryMessage)
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoEquipoUsuario(modulo, operacion, idEquipo, idperfilUsuario, clazz.getSimpleName(),
-                    messageString, true);
+            StreamDirectoryMessage directorio = (StreamDirectoryMessage) mensaje;
+            if (!instanceId.equals(directorio.getInstance()))
+                directory.apply(directorio);
         }
-        catch (Exception e)
+        else if (mensaje instanceof StreamAudienceMessage)
+        {
+            applyAudiencia((StreamAudienceMessage) mensaje);
+        }
+        else
         {
-            log.error("Error al enviar mensaje", e);
+            applyJms((JmsMessage) mensaje);
         }
     }
 
-    private void mensajeJmsEquipoUsuario(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            Long idperfilUsuario, String clazz, String input, boolean replicate)
+    /**
+     * Aplica localmente un envio a una audiencia replicado por otra instancia.
+     * @param mensaje
+     */
+    private void applyAudiencia(StreamAudienceMessage mensaje)
     {
-        mensajeInternoEquipoUsuario(modulo, operacion, idEquipo, idperfilUsuario, clazz, input, replicate);
+        if (Objects.equals(mensaje.getInstance(), instanceId))
+        {
+            return;
+        }
+        aplicadosJms.incrementAndGet();
+        aplicarReplicado(mensaje.getModulo(), mensaje.getAudiencia().getClaveOrden(), mensaje.getOperacion(),
+                mensaje.getAudiencia(), mensaje.getClazz(), mensaje.getMessage(), mensaje.getEntidad());
     }
 
     /**
-     * Mensaje a usuarios que cumplan idEquipo, Lista de idPerfilUsuario
-     * @param <T>
-     * @param operacion
-     * @param idEquipo
-     * @param idperfilUsuario
-     * @param clazz
-     * @param input
+     * Mensaje replicado en un {@code JmsStreamMessage*}, con la entidad obtenida del JSON.
      */
-    private void mensajeInternoEquipoUsuario(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            Long idperfilUsuario, String clazz, String input, boolean replicate)
+    private void aplicarReplicado(EnumModulo modulo, Object ambito, EnumOperacion operacion,
+            StreamAudience audiencia, String clazz, String mensaje)
     {
-        try
-        {
-            log.debug(String.format("Enviando mensaje a usuarios de un equipo %s", input.toString()));
+        aplicarReplicado(modulo, ambito, operacion, audiencia, clazz, mensaje, claveReplicada(modulo, clazz, mensaje));
+    }
 
-            if (emitters.isEmpty())
+    /**
+     * Encola el mensaje replicado en el carril de su ambito y lo envia a los destinatarios locales sin volver a
+     * replicarlo. Los cambios de presencia publicados por otra instancia se aplican ademas a {@link StreamPresence}.
+     * La conflacion y los deltas se resuelven en esta instancia con la entidad recibida, como en la de origen.
+     */
+    private void aplicarReplicado(EnumModulo modulo, Object ambito, EnumOperacion operacion,
+            StreamAudience audiencia, String clazz, String mensaje, StreamEntityKey clave)
+    {
+        jmsLanes.execute(modulo, ambito, () -> {
+            if ((PRESENCIA_LOTE.equals(clazz) || OTConectado.class.getSimpleName().equals(clazz))
+                    && presencia(modulo))
             {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
+                aplicarPresencia(modulo, mensaje);
             }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream()
-                    .filter(e -> e.getModulo().equals(modulo) && Objects.equals(e.getIdEquipo(), idEquipo)
-                            && Objects.equals(idperfilUsuario, e.getIdPerfilUsuario()))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje enviado usuarios de un equipo al cliente [%s]",
-                                    emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.debug(String.format("error enviando mensaje a usuarios de un equipo al cliente [%s]",
-                                    e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
-            {
-                try
-                {
-                    JmsStreamMessageTeamUser jms = new JmsStreamMessageTeamUser();
-                    jms.setInstance(instanceId);
-
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setTeamId(idEquipo);
-                    jms.setClazz(clazz);
-
-                    jms.setUserId(idperfilUsuario);
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
+            publicarInterno(modulo, operacion, audiencia, clazz, StreamPayload.of(mensaje), false, clave);
+        });
+    }
 
-                }
+    /**
+     * @param modulo
+     * @param mensaje
+     *            JSON de un {@link OTConectado} o de un arreglo de ellos
+     */
+    private void aplicarPresencia(EnumModulo modulo, String mensaje)
+    {
+        try
+        {
+            JsonNode nodo = mapper.readTree(mensaje);
+            for (JsonNode cambio : nodo.isArray() ? nodo : Collections.singletonList(nodo))
+            {
+                presence.remoto(modulo, idJson(cambio, "idEquipo"), idJson(cambio, "idEjercicio"),
+                        idJson(cambio, "idUsuario"), cambio.path("conectado").asBoolean());
             }
         }
-        catch (Exception e1)
+        catch (IOException e)
         {
-            e1.printStackTrace();
+            log.warn("[STREAM] No se pudo aplicar la presencia replicada {}: {}", mensaje, e.getMessage());
         }
+    }
 
+    private static Long idJson(JsonNode nodo, String campo)
+    {
+        JsonNode valor = nodo.get(campo);
+        return valor == null || valor.isNull() ? null : valor.asLong();
     }
 
-    public <T> void mensajeUnidades(EnumModulo modulo, EnumOperacion operacion, List<Long> idUnidad, Class<T> clazz,
-            List<T> inputs)
+    /**
+     * Aplica localmente un mensaje replicado por otra instancia en el formato anterior a {@link StreamAudienceMessage},
+     * que se sigue aceptando mientras haya instancias sin actualizar en el cluster.
+     * @param mensaje
+     */
+    private void applyJms(JmsMessage mensaje)
     {
-        try
+        if (Objects.equals(mensaje.getInstance(), instanceId))
         {
-            String messageString = mapper.writeValueAsString(inputs);
-            mensajeInternoUnidades(modulo, operacion, idUnidad, clazz.getSimpleName(), messageString, false);
+            return;// No se procesa por que es originado por esta misma instancia
         }
-        catch (Exception e)
+        aplicadosJms.incrementAndGet();
+
+        switch (mensaje.getTipo())
         {
-            log.error("Error al enviar mensaje", e);
+            case MENSAJE_CONECTADO:
+                // Enviado por instancias anteriores, el directorio del cluster usa StreamDirectoryMessage
+                break;
+            case MENSAJE_EQUIPO:
+                JmsStreamMessageTeam msg1 = (JmsStreamMessageTeam) mensaje;
+                aplicarReplicado(msg1.getModulo(), msg1.getTeamId(), msg1.getOperacion(),
+                        StreamAudience.equipo(msg1.getTeamId()), msg1.getClazz(), msg1.getMessage());
+                break;
+            case MENSAJE_EJERCICIO:
+                JmsStreamMessageExercise msg2 = (JmsStreamMessageExercise) mensaje;
+                aplicarReplicado(msg2.getModulo(), msg2.getExerciseId(), msg2.getOperacion(),
+                        StreamAudience.ejercicio(msg2.getExerciseId()), msg2.getClazz(), msg2.getMessage());
+                break;
+            case MENSAJE_EQUIPO_UNIDADES:
+                JmsStreamMessageTeamUnits msg3 = (JmsStreamMessageTeamUnits) mensaje;
+                aplicarReplicado(msg3.getModulo(), msg3.getTeamId(), msg3.getOperacion(),
+                        StreamAudience.equipo(msg3.getTeamId()).y(StreamAudience.unidades(msg3.getUnitId())),
+                        msg3.getClazz(), msg3.getMessage());
+                break;
+            case MENSAJE_EQUIPO_USUARIO:
+                JmsStreamMessageTeamUser msg4 = (JmsStreamMessageTeamUser) mensaje;
+                aplicarReplicado(msg4.getModulo(), msg4.getTeamId(), msg4.getOperacion(),
+                        StreamAudience.equipo(msg4.getTeamId()).y(StreamAudience.usuario(msg4.getUserId())),
+                        msg4.getClazz(), msg4.getMessage());
+                break;
+            case MENSAJE_EQUIPO_USUARIOS:
+                JmsStreamMessageTeamUsers msg5 = (JmsStreamMessageTeamUsers) mensaje;
+                aplicarReplicado(msg5.getModulo(), msg5.getTeamId(), msg5.getOperacion(),
+                        StreamAudience.equipo(msg5.getTeamId()).y(StreamAudience.usuarios(msg5.getUsersId())),
+                        msg5.getClazz(), msg5.getMessage());
+                break;
+            case MENSAJE_UNIDAD:
+                JmsStreamMessageUnit msg6 = (JmsStreamMessageUnit) mensaje;
+                aplicarReplicado(msg6.getModulo(), msg6.getUnitId(), msg6.getOperacion(),
+                        StreamAudience.unidad(msg6.getUnitId()), msg6.getClazz(), msg6.getMessage());
+                break;
+            case MENSAJE_UNIDAD_JDN:
+                JmsStreamMessageJdnUnit msg7 = (JmsStreamMessageJdnUnit) mensaje;
+                aplicarReplicado(msg7.getModulo(), msg7.getUnitId(), msg7.getOperacion(),
+                        StreamAudience.unidadJdn(msg7.getUnitId()), msg7.getClazz(), msg7.getMessage());
+                break;
+            case MENSAJE_UNIDADES:
+                JmsStreamMessageUnits msg8 = (JmsStreamMessageUnits) mensaje;
+                aplicarReplicado(msg8.getModulo(), msg8.getUnitId(), msg8.getOperacion(),
+                        StreamAudience.unidades(msg8.getUnitId()), msg8.getClazz(), msg8.getMessage());
+                break;
+            case MENSAJE_USUARIOS:
+                JmsStreamMessageUsers msg9 = (JmsStreamMessageUsers) mensaje;
+                aplicarReplicado(msg9.getModulo(), msg9.getIds(), msg9.getOperacion(),
+                        StreamAudience.usuarios(msg9.getIds()), msg9.getClazz(), msg9.getMessage());
+                break;
+
+            default:
+                log.warn("No se pudo procesar el mensaje {}", mensaje);
+                break;
         }
     }
 
-    public <T> void mensajeUnidades(EnumModulo modulo, EnumOperacion operacion, List<Long> idUnidad, Class<T> clazz,
-            T input)
+    /**
+     * Replica un mensaje dirigido a usuarios. Con el directorio habilitado y caliente se envia solo a las colas
+     * directas de las instancias donde los usuarios estan conectados. Se envia al topico del modulo si el directorio
+     * esta deshabilitado o se calienta, o si alguno de los usuarios no figura en el: puede estar conectado a una
+     * instancia que no publico su foto.
+     * @param topico
+     * @param idsPerfilUsuario
+     * @param mensaje
+     * @param prioridad
+     */
+    private void sendJmsUsuarios(EnumModulo topico, Collection<Long> idsPerfilUsuario, Object mensaje,
+            EnumPrioridad prioridad)
     {
-        try
+        if (!activeMQEnable)
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoUnidades(modulo, operacion, idUnidad, clazz.getSimpleName(), messageString, true);
+            return;
         }
-        catch (Exception e)
+        if (!directoryEnable || !directory.isCaliente() || !directory.conocidos(topico, idsPerfilUsuario))
         {
-            log.error("Error al enviar mensaje", e);
+            sendJms(topico, mensaje, prioridad);
+            return;
+        }
+        for (String destino : directory.destinos(topico, idsPerfilUsuario))
+        {
+            log.debug("[ActiveMQ] Enviando al destino {} el mensaje:{}", destino, mensaje);
+            jmsBatcher.add(destino, mensaje, qosDirectos.computeIfAbsent(topico, this::qosDirecto),
+                    EnumPrioridad.ALTA.equals(prioridad));
         }
     }
 
-    private void mensajeJmsUnidades(EnumModulo modulo, EnumOperacion operacion, List<Long> idUnidad, String clazz,
-            String input, boolean replicate)
+    /**
+     * QoS de los mensajes a las colas directas: la del modulo, venciendo a lo sumo cuando el directorio descarta una
+     * instancia que no responde. Asi no se acumulan en el broker los mensajes a la cola de una instancia que no
+     * vuelve, ya que cada arranque usa una cola nueva.
+     * @param modulo
+     * @return
+     */
+    private JmsQos qosDirecto(EnumModulo modulo)
+    {
+        return qosModulos.computeIfAbsent(modulo, this::qosJms).conVencimientoMaximo(directory.getExpiracionMillis());
+    }
+
+    private void sendJms(EnumModulo topico, Object mensaje)
     {
-        mensajeInternoUnidades(modulo, operacion, idUnidad, clazz, input, replicate);
+        sendJms(topico, mensaje, EnumPrioridad.NORMAL);
     }
 
     /**
-     * Envia mensajes a usuarios conectados a las unidades
-     * @param <T>
-     * @param modulo
-     * @param operacion
-     * @param idEquipo
-     * @param clazz
-     * @param input
+     * Los mensajes de prioridad alta se publican sin esperar a completar el lote del topico.
+     * @param topico
+     * @param mensaje
+     * @param prioridad
      */
-    private void mensajeInternoUnidades(EnumModulo modulo, EnumOperacion operacion, List<Long> idUnidad, String clazz,
-            String input, boolean replicate)
+    private void sendJms(EnumModulo topico, Object mensaje, EnumPrioridad prioridad)
     {
-        try
+        if (activeMQEnable)
         {
-            log.debug(String.format("Enviando mensaje %s", input.toString()));
-
-            if (emitters.isEmpty())
-            {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
-            }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream().filter(e -> e.getModulo().equals(modulo) && idUnidad.contains(e.getIdUnidad()))
-                    .forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(input).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje enviado al cliente [%s]", emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn(String.format("error enviando datos al cliente [%s]", e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
-            {
-                try
-                {
-                    JmsStreamMessageUnits jms = new JmsStreamMessageUnits();
-                    jms.setInstance(instanceId);
-
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(input);
-                    jms.setUnitId(idUnidad);
-                    jms.setClazz(clazz);
+            log.debug("[ActiveMQ] Enviando al topico {} el mensaje:{}", topico.name(), mensaje);
+            jmsBatcher.add(topico.name(), mensaje, qosModulos.computeIfAbsent(topico, this::qosJms),
+                    EnumPrioridad.ALTA.equals(prioridad));
+        }
 
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
+    }
 
-                }
-            }
+    private static String tipoJms(Object mensaje)
+    {
+        if (mensaje instanceof JmsMessage)
+        {
+            return ((JmsMessage) mensaje).getTipo().name();
         }
-        catch (Exception e1)
+        if (mensaje instanceof StreamDirectoryMessage)
         {
-            e1.printStackTrace();
+            return StreamDirectoryMessage.TIPO;
         }
-
+        if (mensaje instanceof StreamAudienceMessage)
+        {
+            return StreamAudienceMessage.TIPO;
+        }
+        return null;
     }
 
-    public <T> void mensajeEquipoUnidades(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idsUnidad, Class<T> clazz, List<T> input)
+    /**
+     * Template para publicar la replicacion, compartido por los servicios stream del contexto.
+     * @return
+     */
+    private JmsTemplate publicadorJms()
     {
-        try
+        if (!activeMQEnable)
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoEquipoUnidades(modulo, operacion, idEquipo, idsUnidad, clazz.getSimpleName(), messageString,
-                    true);
+            return jmsTemplate;
         }
-        catch (Exception e)
+        JmsReplicationPublisher publicador = JmsReplicationPublisher.compartido(beanFactory, jmsTemplate,
+                jmsSessionCacheSize);
+        if (!(beanFactory instanceof SingletonBeanRegistry))
         {
-            log.error("Error al enviar mensaje", e);
+            jmsPublicadorPropio = publicador;
         }
+        return publicador.getTemplate();
     }
 
-    public <T> void mensajeEquipoUnidades(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idsUnidad, Class<T> clazz, T input)
+    /**
+     * Publica un lote de mensajes de replicacion. Un lote de un solo mensaje se envia como antes, un objeto; los lotes
+     * mayores se envian como un arreglo que {@link #processJmsMessage(String)} desarma. Con el formato JSON se envia un
+     * TextMessage y con SMILE un BytesMessage. Se ejecuta en los hilos de envio de {@link JmsReplicationBatcher}; los
+     * errores se cuentan en {@code sisdef.stream.jms.errors} y en el diagnostico.
+     * @param topico
+     * @param mensajes
+     * @param qos
+     *            modo de entrega, prioridad y tiempo de vida del lote
+     */
+    private void publishJms(String topico, List<Object> mensajes, JmsQos qos)
     {
+        long inicio = System.nanoTime();
+        boolean error = false;
         try
         {
-            String messageString = mapper.writeValueAsString(input);
-            mensajeInternoEquipoUnidades(modulo, operacion, idEquipo, idsUnidad, clazz.getSimpleName(), messageString,
-                    true);
+            long enviado = System.currentTimeMillis();
+            Object payload = jmsCodec.encode(mensajes.size() == 1 ? mensajes.get(0) : mensajes, enviado);
+            String tipo = mensajes.size() == 1 ? tipoJms(mensajes.get(0)) : JMS_TIPO_LOTE;
+            jmsPublisher.execute(session -> {
+                // Los destinos directos de cada instancia son colas
+                Destination destino = jmsPublisher.getDestinationResolver().resolveDestinationName(session, topico,
+                        jmsPublisher.isPubSubDomain() && !topico.startsWith(JMS_DIRECTO));
+                Message m = jmsPublisher.getMessageConverter().toMessage(payload, session);
+                m.setLongProperty(JMS_INSTANCE, instanceId);
+                m.setStringProperty(JMS_TIPO, tipo);
+                m.setLongProperty(JMS_ENVIADO, enviado);
+                MessageProducer producer = session.createProducer(destino);
+                try
+                {
+                    producer.send(m, qos.getDeliveryMode(), qos.getPrioridad(), qos.getTtlMillis());
+                }
+                finally
+                {
+                    producer.close();
+                }
+                return null;
+            }, false);
+            publicadosJms.addAndGet(mensajes.size());
+        }
+        catch (IOException | JmsException e)
+        {
+            error = true;
+            fallidosJms.addAndGet(mensajes.size());
+            log.error("Problema al enviar {} mensajes por JMS a ActiveMQ en {}: {}", mensajes.size(), topico,
+                    e.getMessage());
         }
-        catch (Exception e)
+        finally
         {
-            log.error("Error al enviar mensaje", e);
+            metrics.jms(topico, System.nanoTime() - inicio, error);
         }
     }
 
-    private void mensajeJmsEquipoUnidades(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idsUnidad, String clazz, String input, boolean replicate)
+    /**
+     * @return ejecutor de envio, para exponer su nivel de saturacion
+     */
+    public StreamDeliveryExecutor getDeliveryExecutor()
     {
-        mensajeInternoEquipoUnidades(modulo, operacion, idEquipo, idsUnidad, clazz, input, replicate);
-
+        return deliveryExecutor;
     }
 
     /**
-     * Envia mensajes a usuarios conectados a las unidades y equipos
-     * @param <T>
-     * @param modulo
-     * @param operacion
-     * @param idEquipo
-     * @param clazz
-     * @param input
+     * @return ejecutor de envio de los mensajes de prioridad alta
      */
-    private void mensajeInternoEquipoUnidades(EnumModulo modulo, EnumOperacion operacion, Long idEquipo,
-            List<Long> idsUnidad, String clazz, String messageString, boolean replicate)
+    public StreamDeliveryExecutor getPriorityDeliveryExecutor()
     {
-        try
-        {
-            log.debug(String.format("Enviando mensaje %s", messageString));
-
-            if (emitters.isEmpty())
-            {
-                log.debug(NO_HAY_CLLIENTES_CONECTADOS);
-            }
-            List<MarteSseClient> procesar = new ArrayList<>(emitters);
-            procesar.parallelStream().filter(e -> e.getModulo().equals(modulo) && e.getIdEquipo().equals(idEquipo)
-                    && idsUnidad.contains(e.getIdUnidad())).forEach(emitter -> {
-                        try
-                        {
-                            MessageSendToClient msg = MessageSendToClient.builder().modulo(modulo).operacion(operacion)
-                                    .data(messageString).clazz(clazz).build();
-                            emitter.send(msg, MediaType.APPLICATION_JSON);
-                            log.debug(String.format("Mensaje enviado al cliente [%s]", emitter.getIdPerfilUsuario()));
-
-                        }
-                        catch (IOException e)
-                        {
-                            log.warn(String.format("error enviando datos al cliente [%s]", e.getCause().getMessage()));
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            if (replicate)
-            {
-                try
-                {
-                    JmsStreamMessageTeamUnits jms = new JmsStreamMessageTeamUnits();
-                    jms.setInstance(instanceId);
+        return priorityDeliveryExecutor;
+    }
 
-                    jms.setModulo(modulo);
-                    jms.setOperacion(operacion);
-                    jms.setMessage(messageString);
-                    jms.setUnitId(idsUnidad);
-                    jms.setTeamId(idEquipo);
-                    jms.setClazz(clazz);
+    /**
+     * @return lotes de replicacion esperando un hilo de envio al broker
+     */
+    public int getJmsPendientesPublicacion()
+    {
+        return jmsBatcher.getPendientes();
+    }
 
-                    log.debug("Enviando a topico {} el mensaje JMS {}", modulo.name(), jms);
-                    sendJms(modulo, mapper.writeValueAsString(jms));
+    /**
+     * @return mensajes replicados pendientes de aplicar por carril
+     */
+    public Map<String, Integer> getJmsBacklog()
+    {
+        return jmsLanes.getBacklog();
+    }
 
-                }
-                catch (JmsException e)
-                {
-                    log.error("Problema al enviar mensaje por JMS a ActiveMQ", e);
+    /**
+     * @return indice de clientes conectados, con los contadores de cola de cada uno
+     */
+    public StreamClientRegistry getRegistry()
+    {
+        return registry;
+    }
 
-                }
-            }
-        }
-        catch (Exception e1)
-        {
-            e1.printStackTrace();
-        }
+    public StreamHeartbeatWheel getHeartbeat()
+    {
+        return heartbeat;
+    }
 
+    /**
+     * @return eventos guardados para reanudar clientes
+     */
+    public int getReplaySize()
+    {
+        return replay.size();
     }
 
-    protected void processJmsMessage(String message)
+    /**
+     * @return foto del estado del servicio para pruebas de carga
+     */
+    public StreamDiagnostico getDiagnostico()
     {
-        try
+        StreamDiagnostico diagnostico = new StreamDiagnostico();
+        diagnostico.setInstance(instanceId);
+        diagnostico.setDestino(directQueue);
+        diagnostico.setEmitters(emittersConectados.size());
+        diagnostico.setRegistrados(registry.size());
+        diagnostico.setEnHeartbeat(heartbeat.size());
+        diagnostico.setEventosReplay(replay.size());
+        diagnostico.setPublicadosJms(publicadosJms.get());
+        diagnostico.setPresenciasPendientes(presence.getPendientes());
+        diagnostico.setPresenciasPublicadas(presence.getPublicados());
+        diagnostico.setFallidosJms(fallidosJms.get());
+        diagnostico.setPendientesPublicacionJms(jmsBatcher.getPendientes());
+        diagnostico.setAplicadosJms(aplicadosJms.get());
+        diagnostico.setEnviosEnCurso(deliveryExecutor.getInFlight());
+        diagnostico.setEnviosPrioritariosEnCurso(priorityDeliveryExecutor.getInFlight());
+        diagnostico.setBacklogJms(jmsLanes.getBacklog());
+        for (StreamSubscriber subscriber : registry.todos())
         {
-            JmsMessage mensaje = mapper.readValue(message, JmsMessage.class);
-            if (mensaje.getInstance() == instanceId)
+            if (subscriber.getClient() instanceof SseEmitterStreamClient)
             {
-                return;// No se procesa por que es originado por esta misma instancia
+                diagnostico.setRegistradosSse(diagnostico.getRegistradosSse() + 1);
             }
-
-            switch (mensaje.getTipo())
+            else if (subscriber.getClient() instanceof ReactiveStreamClient)
             {
-                case MENSAJE_CONECTADO:
-                    // JmsStreamMessageUserConnected msg = mapper.readValue(message,
-                    // JmsStreamMessageUserConnected.class);
-                    break;
-                case MENSAJE_EQUIPO:
-                    JmsStreamMessageTeam msg1 = mapper.readValue(message, JmsStreamMessageTeam.class);
-                    mensajeJmsEquipo(msg1.getModulo(), msg1.getOperacion(), msg1.getTeamId(), msg1.getClazz(),
-                            msg1.getMessage(), false);
-                    break;
-                case MENSAJE_EJERCICIO:
-                    JmsStreamMessageExercise msg2 = mapper.readValue(message, JmsStreamMessageExercise.class);
-                    mensajeJmsEjercicio(msg2.getModulo(), msg2.getOperacion(), msg2.getExerciseId(), msg2.getClazz(),
-                            msg2.getMessage(), false);
-                    break;
-                case MENSAJE_EQUIPO_UNIDADES:
-                    JmsStreamMessageTeamUnits msg3 = mapper.readValue(message, JmsStreamMessageTeamUnits.class);
-                    mensajeJmsEquipoUnidades(msg3.getModulo(), msg3.getOperacion(), msg3.getTeamId(), msg3.getUnitId(),
-                            msg3.getClazz(), msg3.getMessage(), false);
-
-                    break;
-                case MENSAJE_EQUIPO_USUARIO:
-                    JmsStreamMessageTeamUser msg4 = mapper.readValue(message, JmsStreamMessageTeamUser.class);
-                    mensajeJmsEquipoUsuario(msg4.getModulo(), msg4.getOperacion(), msg4.getTeamId(), msg4.getUserId(),
-                            msg4.getClazz(), msg4.getMessage(), false);
-                    break;
-                case MENSAJE_EQUIPO_USUARIOS:
-                    JmsStreamMessageTeamUsers msg5 = mapper.readValue(message, JmsStreamMessageTeamUsers.class);
-                    mensajeJmsEquipoUsuarios(msg5.getModulo(), msg5.getOperacion(), msg5.getTeamId(), msg5.getUsersId(),
-                            msg5.getClazz(), msg5.getMessage(), false);
-                    break;
-                case MENSAJE_UNIDAD:
-                    JmsStreamMessageUnit msg6 = mapper.readValue(message, JmsStreamMessageUnit.class);
-                    mensajeJmsUnidad(msg6.getModulo(), msg6.getOperacion(), msg6.getUnitId(), msg6.getClazz(),
-                            msg6.getMessage(), false);
-                    break;
-                case MENSAJE_UNIDAD_JDN:
-                    JmsStreamMessageJdnUnit msg7 = mapper.readValue(message, JmsStreamMessageJdnUnit.class);
-                    mensajeJmsUnidadJDN(msg7.getModulo(), msg7.getOperacion(), msg7.getUnitId(), msg7.getClazz(),
-                            msg7.getMessage(), false);
-                    break;
-                case MENSAJE_UNIDADES:
-                    JmsStreamMessageUnits msg8 = mapper.readValue(message, JmsStreamMessageUnits.class);
-                    mensajeJmsUnidades(msg8.getModulo(), msg8.getOperacion(), msg8.getUnitId(), msg8.getClazz(),
-                            msg8.getMessage(), false);
-                    break;
-                case MENSAJE_USUARIOS:
-                    JmsStreamMessageUsers msg9 = mapper.readValue(message, JmsStreamMessageUsers.class);
-                    mensajeJmsUsuarios(msg9.getModulo(), msg9.getOperacion(), msg9.getIds(), msg9.getClazz(),
-                            msg9.getMessage(), false);
-                    break;
-
-                default:
-                    log.warn("No se pudo procesar el mensaje {}", message);
-                    break;
+                diagnostico.setRegistradosReactivos(diagnostico.getRegistradosReactivos() + 1);
             }
+            else if (subscriber.getClient() instanceof WebSocketStreamClient)
+            {
+                diagnostico.setRegistradosWebSocket(diagnostico.getRegistradosWebSocket() + 1);
+            }
+            diagnostico.setEncolados(diagnostico.getEncolados() + subscriber.getEncolados());
+            diagnostico.setEnviados(diagnostico.getEnviados() + subscriber.getEnviados());
+            diagnostico.setDescartados(diagnostico.getDescartados() + subscriber.getDescartados());
+            diagnostico.setConflacionados(diagnostico.getConflacionados() + subscriber.getConflacionados());
+            diagnostico.setPendientes(diagnostico.getPendientes() + subscriber.getPendientes());
         }
-        catch (JsonProcessingException e)
-        {
-            e.printStackTrace();
-        }
-    }
-
-    private void sendJms(EnumModulo topico, String mensaje)
-    {
-        if (activeMQEnable)
-        {
-            log.debug("[ActiveMQ] Enviando al topico {} el mensaje:{}", topico.name(), mensaje);
-            jmsTemplate.convertAndSend(topico.name(), mensaje);
-        }
-
+        return diagnostico;
     }
 
     public List<MarteSseClient> getEmitters()
@@ -1091,47 +1920,51 @@ public abstract class AbstractEventService implements IStreamDisconnect
 
     protected void removeSession(JmsMessageSession mensaje)
     {
-        if (emitters.isEmpty())
+        removeSessions(Collections.singletonList(mensaje.getIdClientSession()));
+    }
+
+    /**
+     * Cierra los clientes de todas las sesiones en una sola pasada por el indice de sesiones.
+     * @param idsClientSession
+     */
+    protected void removeSessions(Collection<Long> idsClientSession)
+    {
+        List<StreamSubscriber> closeSessions = registry.porSesiones(idsClientSession);
+        if (closeSessions.isEmpty())
         {
             log.debug(NO_HAY_CLLIENTES_CONECTADOS);
         }
 
-        List<MarteSseClient> analizeList = new ArrayList<>(emitters);
-
-//        for (MarteSseClient cliente : analizeList)
-//        {
-//            log.debug("[STREAM-JMS] analize "+cliente);
-//        }
-
-        List<MarteSseClient> closeSessions = analizeList.stream()
-                .filter(c -> c.getIdClientSession().equals(mensaje.getIdClientSession())).collect(Collectors.toList());
-        for (MarteSseClient sseClient : closeSessions)
+        for (StreamSubscriber subscriber : closeSessions)
         {
-            try
-            {
-                log.debug("[STREAM-JMS] Remove Session  {}", sseClient);
-
-                sseClient.complete();
-
-            }
-            catch (Throwable e)
-            {
-                sseClient.completeWithError(e);
-            }
-
+            log.debug("[STREAM-JMS] Remove Session  {}", subscriber.getClient());
+            // La conexion se termina en el ejecutor de cierres, el callback de finalizacion lo quita del indice
+            subscriber.desalojar(null);
         }
 
     }
 
+    /**
+     * Recibe cierres de sesion, de a uno o en lote como arreglo JSON de {@link JmsMessageSession}. Los lotes se
+     * resuelven con una sola busqueda en el indice de sesiones.
+     * @param strMessage
+     */
     @JmsListener(destination = "SESSION", concurrency = "1-1")
     public void sessionClose(String strMessage)
     {
         try
         {
             log.debug("[STREAM-JMS] {} Recibiendo mensaje d session desde jms {}", instanceId, strMessage);
-            JmsMessageSession mensaje = mapper.readValue(strMessage, JmsMessageSession.class);
-            if (!mensaje.isConnected())
-                removeSession(mensaje);
+            JsonNode nodo = mapper.readTree(strMessage);
+            List<Long> cerradas = new ArrayList<>();
+            for (JsonNode item : nodo.isArray() ? nodo : Collections.singletonList(nodo))
+            {
+                JmsMessageSession mensaje = mapper.treeToValue(item, JmsMessageSession.class);
+                if (!mensaje.isConnected() && mensaje.getIdClientSession() != null)
+                    cerradas.add(mensaje.getIdClientSession());
+            }
+            if (!cerradas.isEmpty())
+                removeSessions(cerradas);
 
         }
         catch (Throwable e)
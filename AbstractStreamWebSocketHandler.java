@@ -0,0 +1,63 @@
+package backend.core.lib.commons.stream;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Endpoint WebSocket del stream, segundo transporte junto a los controladores SSE. Cada sesion se registra en el
+ * {@link AbstractEventService} como un {@link WebSocketStreamClient} con los mismos identificadores que arma
+ * {@link AbstractEventController#configureSseClient(StreamConfig, EnumModulo)}, por lo que los metodos
+ * {@code mensaje*} alcanzan por igual a clientes WebSocket y SSE.
+ * <p>
+ * Las subclases indican el servicio, el modulo y como obtener el {@link StreamConfig} de la sesion, normalmente
+ * guardado en los atributos por un {@code HandshakeInterceptor}. La codificacion se pide con el parametro
+ * {@code codec} de la URL. La compresion {@code permessage-deflate} la negocia el contenedor (Tomcat y Jetty la
+ * soportan) al registrar el handler con el {@code DefaultHandshakeHandler}. Los mensajes que envie el cliente se
+ * ignoran.
+ */
+@Slf4j
+public abstract class AbstractStreamWebSocketHandler extends AbstractWebSocketHandler
+{
+
+    private static final String CLIENTE = AbstractStreamWebSocketHandler.class.getName() + ".cliente";
+
+    protected abstract AbstractEventService getService();
+
+    protected abstract EnumModulo getModulo(WebSocketSession session);
+
+    protected abstract StreamConfig getStreamConfig(WebSocketSession session);
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception
+    {
+        StreamConfig ctx = getStreamConfig(session);
+        log.debug("Conectando a stream websocket {}", ctx);
+        WebSocketStreamClient client = new WebSocketStreamClient(session, getModulo(session), ctx.getIdEquipo(),
+                ctx.getIdUsuario(), ctx.getIdUnidad(), ctx.getIdUnidadJdn(), ctx.getIdEjercicio(),
+                ctx.getIdClientSession());
+        session.getAttributes().put(CLIENTE, client);
+        // Los frames binarios no llevan id de evento, por lo que el cliente no puede pedir reanudacion
+        String codec = session.getUri() == null ? null
+                : UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams()
+                        .getFirst(AbstractEventController.CODEC);
+        if (getService().register(client, StreamSubscriptionOptions.builder().codec(codec).build()) == null)
+        {
+            session.close(CloseStatus.SERVER_ERROR);
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception
+    {
+        WebSocketStreamClient client = (WebSocketStreamClient) session.getAttributes().remove(CLIENTE);
+        if (client != null)
+        {
+            log.debug("Removiendo cliente websocket x cierre de la sesion {} {}", client, status);
+            client.terminar();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package backend.core.lib.commons.stream;
+
+/**
+ * Formato de los mensajes de replicacion entre instancias.
+ */
+public enum EnumJmsCodec
+{
+    /**
+     * Texto JSON en un TextMessage, el formato original.
+     */
+    JSON,
+    /**
+     * Smile (JSON binario) en un BytesMessage. El mensaje interno viaja como bytes UTF-8 sin escapar.
+     */
+    SMILE
+}
@@ -0,0 +1,20 @@
+package backend.core.lib.commons.stream;
+
+/**
+ * Que hacer cuando la cola de salida de un cliente stream esta llena.
+ */
+public enum EnumPoliticaConsumidorLento
+{
+    /**
+     * Descarta el mensaje pendiente mas antiguo para hacer lugar al nuevo.
+     */
+    DROP_OLDEST,
+    /**
+     * Cierra la conexion del cliente, que debera reconectarse.
+     */
+    DISCONNECT,
+    /**
+     * Bloquea al productor hasta que haya lugar o se cumpla el tiempo maximo, luego descarta el mensaje nuevo.
+     */
+    BLOCK
+}
@@ -0,0 +1,50 @@
+package backend.core.lib.commons.stream;
+
+/**
+ * Clase de prioridad de un mensaje stream. Se asigna por modulo con {@code sisdef.stream.priority.<MODULO>} y se puede
+ * cambiar por clase de mensaje con {@link AbstractEventService#prioridad(Class, EnumPrioridad)}.
+ * <p>
+ * La cola de salida de cada cliente se vacia en orden estricto de prioridad, los mensajes de prioridad alta tienen su
+ * propio ejecutor de envio y se replican por JMS sin esperar a completar un lote.
+ */
+public enum EnumPrioridad
+{
+    /**
+     * Alarmas y mensajes que no pueden esperar detras del trafico masivo.
+     */
+    ALTA(250, 7),
+    /**
+     * Valor por defecto.
+     */
+    NORMAL(1000, 4),
+    /**
+     * Trafico masivo, como los listados de unidades.
+     */
+    BAJA(5000, 1);
+
+    private final long sloMillis;
+
+    private final int prioridadJms;
+
+    EnumPrioridad(long sloMillis, int prioridadJms)
+    {
+        this.sloMillis = sloMillis;
+        this.prioridadJms = prioridadJms;
+    }
+
+    /**
+     * @return latencia objetivo por defecto desde que el mensaje se encola hasta que se escribe al cliente
+     */
+    public long getSloMillis()
+    {
+        return sloMillis;
+    }
+
+    /**
+     * @return prioridad JMS por defecto con que se replican los mensajes, de 0 a 9
+     */
+    public int getPrioridadJms()
+    {
+        return prioridadJms;
+    }
+}
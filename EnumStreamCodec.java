@@ -0,0 +1,16 @@
+package backend.core.lib.commons.stream;
+
+/**
+ * Formato de los mensajes que recibe un cliente stream, negociado al conectarse.
+ */
+public enum EnumStreamCodec
+{
+    /**
+     * Texto JSON del {@link MessageSendToClient}, el formato original.
+     */
+    JSON,
+    /**
+     * CBOR (JSON binario). El campo {@code data} viaja como objeto y no como un JSON dentro de un string.
+     */
+    CBOR
+}
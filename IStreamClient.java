@@ -0,0 +1,58 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+
+/**
+ * Conexion de un cliente stream, independiente del transporte. {@link AbstractEventService} indexa y envia a los
+ * clientes solo a traves de esta interfaz, por lo que los metodos de envio por equipo, ejercicio, unidad o usuario
+ * alcanzan por igual a clientes {@link MarteSseClient} y {@link ReactiveStreamClient}.
+ */
+public interface IStreamClient
+{
+    EnumModulo getModulo();
+
+    Long getIdEquipo();
+
+    Long getIdEjercicio();
+
+    Long getIdUnidad();
+
+    Long getIdUnidadJdn();
+
+    Long getIdPerfilUsuario();
+
+    Long getIdClientSession();
+
+    /**
+     * Escribe el frame al cliente. Lo llama un unico escritor a la vez.
+     * @param frame
+     * @param encoding
+     *            codificacion negociada por el cliente
+     * @throws IOException
+     *             si la conexion ya no acepta escrituras
+     */
+    void send(SseFrame frame, StreamEncoding encoding) throws IOException;
+
+    /**
+     * Indica si el cliente acepta una escritura ahora. Los transportes con control de flujo devuelven false mientras
+     * no haya demanda: el escritor se detiene, los mensajes esperan en la cola de salida del suscriptor con su
+     * politica de consumidor lento, y se retoma cuando el cliente avisa por {@link #alPedir(Runnable)}.
+     * @return
+     */
+    default boolean isListo()
+    {
+        return true;
+    }
+
+    /**
+     * @param callback
+     *            accion a ejecutar cada vez que el cliente vuelve a pedir eventos
+     */
+    default void alPedir(Runnable callback)
+    {
+    }
+
+    void complete();
+
+    void completeWithError(Throwable e);
+}
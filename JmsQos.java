@@ -0,0 +1,99 @@
+package backend.core.lib.commons.stream;
+
+import javax.jms.DeliveryMode;
+
+import lombok.Getter;
+
+/**
+ * Calidad de servicio con la que se publica un mensaje de replicacion: modo de entrega, prioridad JMS y tiempo de vida.
+ * Se configura por modulo, por ejemplo no persistente y con vida corta para la presencia y persistente para las
+ * alarmas.
+ */
+@Getter
+public final class JmsQos
+{
+
+    private final int deliveryMode;
+
+    /**
+     * Prioridad JMS, de 0 a 9.
+     */
+    private final int prioridad;
+
+    /**
+     * Tiempo de vida en milisegundos, 0 si el mensaje no expira.
+     */
+    private final long ttlMillis;
+
+    public JmsQos(boolean persistente, int prioridad, long ttlMillis)
+    {
+        this.deliveryMode = persistente ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+        this.prioridad = Math.max(0, Math.min(9, prioridad));
+        this.ttlMillis = Math.max(0, ttlMillis);
+    }
+
+    private JmsQos(int deliveryMode, int prioridad, long ttlMillis)
+    {
+        this.deliveryMode = deliveryMode;
+        this.prioridad = prioridad;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param maximoMillis
+     *            tiempo de vida maximo
+     * @return QoS con el tiempo de vida limitado al maximo, incluso si no vencia
+     */
+    public JmsQos conVencimientoMaximo(long maximoMillis)
+    {
+        if (maximoMillis <= 0 || ttlMillis > 0 && ttlMillis <= maximoMillis)
+        {
+            return this;
+        }
+        return new JmsQos(deliveryMode, prioridad, maximoMillis);
+    }
+
+    /**
+     * QoS de un lote que junta mensajes de distinta QoS en un mismo topico: persistente si alguno lo es, la mayor
+     * prioridad y el mayor tiempo de vida, sin vencimiento si alguno no vence.
+     * @param otra
+     * @return
+     */
+    public JmsQos combinar(JmsQos otra)
+    {
+        if (otra == null || otra.equals(this))
+        {
+            return this;
+        }
+        long ttl = ttlMillis == 0 || otra.ttlMillis == 0 ? 0 : Math.max(ttlMillis, otra.ttlMillis);
+        return new JmsQos(Math.max(deliveryMode, otra.deliveryMode), Math.max(prioridad, otra.prioridad), ttl);
+    }
+
+    public boolean isPersistente()
+    {
+        return deliveryMode == DeliveryMode.PERSISTENT;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof JmsQos))
+        {
+            return false;
+        }
+        JmsQos otra = (JmsQos) obj;
+        return deliveryMode == otra.deliveryMode && prioridad == otra.prioridad && ttlMillis == otra.ttlMillis;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (deliveryMode * 31 + prioridad) * 31 + Long.hashCode(ttlMillis);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JmsQos [persistente=" + isPersistente() + ", prioridad=" + prioridad + ", ttlMillis=" + ttlMillis + "]";
+    }
+}
@@ -0,0 +1,335 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Agrupa los mensajes de replicacion por topico y los publica juntos cuando se juntan {@code maxMensajes} o pasan
+ * {@code maxEsperaMillis} desde el primero. Los lotes de un mismo topico se publican de a uno y en orden, por lo que se
+ * mantiene el orden de los mensajes dentro de cada topico.
+ * <p>
+ * La publicacion es asincronica: quien agrega un mensaje solo lo deja en el lote y los lotes listos los publican los
+ * hilos de envio, de modo que la latencia del broker no se suma al tiempo de respuesta de quien envia. Si la cola de
+ * envio se llena el lote se publica en el hilo que llama, frenando al productor en vez de acumular mensajes. Los
+ * mensajes inmediatos (prioridad alta) tienen sus propios hilos de envio para no esperar detras de los lotes masivos.
+ * <p>
+ * Cada publicacion lleva a lo sumo {@code maxMensajes}: si se acumularon mas, el lote se publica en partes. Los
+ * mensajes que llegan despues de {@link #shutdown()} se publican en el hilo que llama.
+ */
+@Slf4j
+public class JmsReplicationBatcher
+{
+
+    /**
+     * Recibe el topico, los mensajes del lote en orden y la QoS combinada del lote.
+     */
+    @FunctionalInterface
+    public interface Publicador
+    {
+        void publicar(String topico, List<Object> mensajes, JmsQos qos);
+    }
+
+    private final int maxMensajes;
+
+    private final long maxEsperaMillis;
+
+    private final Publicador publicador;
+
+    private final Map<String, Lote> lotes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ThreadPoolExecutor envio;
+
+    private final ThreadPoolExecutor envioPrioritario;
+
+    private final AtomicLong enHiloLlamador = new AtomicLong();
+
+    /**
+     * @param maxMensajes
+     *            cantidad de mensajes que dispara la publicacion del lote, 1 desactiva el agrupamiento
+     * @param maxEsperaMillis
+     *            tiempo maximo que un mensaje espera en el lote
+     * @param hilos
+     *            hilos de envio al broker
+     * @param hilosPrioritarios
+     *            hilos de envio de los mensajes inmediatos
+     * @param capacidad
+     *            lotes listos que pueden esperar un hilo de envio
+     * @param publicador
+     */
+    public JmsReplicationBatcher(int maxMensajes, long maxEsperaMillis, int hilos, int hilosPrioritarios,
+            int capacidad, Publicador publicador)
+    {
+        this.maxMensajes = Math.max(1, maxMensajes);
+        this.maxEsperaMillis = Math.max(1, maxEsperaMillis);
+        this.publicador = publicador;
+        this.scheduler = this.maxMensajes > 1 ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stream-jms-batch");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.envio = pool("stream-jms-send-", hilos, capacidad);
+        this.envioPrioritario = pool("stream-jms-send-alta-", hilosPrioritarios, capacidad);
+    }
+
+    private static ThreadPoolExecutor pool(String nombre, int hilos, int capacidad)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(Math.max(1, hilos), Math.max(1, hilos), 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, capacidad)), r -> {
+                    Thread thread = new Thread(r, nombre + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public void add(String topico, Object mensaje, JmsQos qos)
+    {
+        add(topico, mensaje, qos, false);
+    }
+
+    /**
+     * @param topico
+     * @param mensaje
+     * @param qos
+     * @param inmediato
+     *            publica el lote en el momento, con los mensajes que ya esperaban delante, en lugar de esperar a que
+     *            se complete, con los hilos de envio prioritarios
+     */
+    public void add(String topico, Object mensaje, JmsQos qos, boolean inmediato)
+    {
+        Lote lote;
+        boolean lleno;
+        while (true)
+        {
+            lote = lotes.computeIfAbsent(topico, Lote::new);
+            synchronized (lote)
+            {
+                // Un lote vacio retirado del mapa despues de tomarlo: se toma el nuevo
+                if (!lote.retirado)
+                {
+                    lleno = agregar(lote, mensaje, qos, inmediato);
+                    break;
+                }
+            }
+        }
+        if (lleno)
+        {
+            enviar(lote, inmediato ? envioPrioritario : envio);
+        }
+    }
+
+    /**
+     * Agrega el mensaje al lote y programa su publicacion. Se llama con el lock del lote tomado.
+     * @return true si hay que publicar el lote en el momento
+     */
+    private boolean agregar(Lote lote, Object mensaje, JmsQos qos, boolean inmediato)
+    {
+        lote.mensajes.add(mensaje);
+        lote.qos = qos.combinar(lote.qos);
+        boolean lleno = inmediato || lote.mensajes.size() >= maxMensajes;
+        if (!lleno && lote.programado == null)
+        {
+            try
+            {
+                lote.programado = scheduler.schedule(() -> enviar(lote, envio), maxEsperaMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Detenido: nadie publicaria el lote despues, se publica en el hilo que llama
+                log.debug("[ActiveMQ] Batcher detenido, se publica en el momento el mensaje para {}", lote.topico);
+                lleno = true;
+            }
+        }
+        return lleno;
+    }
+
+    /**
+     * Publica lo pendiente de todos los topicos en el hilo que llama.
+     */
+    public void flush()
+    {
+        lotes.values().forEach(this::flush);
+    }
+
+    /**
+     * @return lotes listos esperando un hilo de envio
+     */
+    public int getPendientes()
+    {
+        return envio.getQueue().size() + envioPrioritario.getQueue().size();
+    }
+
+    /**
+     * @return lotes publicados en el hilo que llama por estar llena la cola de envio
+     */
+    public long getEnHiloLlamador()
+    {
+        return enHiloLlamador.get();
+    }
+
+    public void shutdown()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdown();
+        }
+        envioPrioritario.shutdown();
+        envio.shutdown();
+        try
+        {
+            if (!envioPrioritario.awaitTermination(5, TimeUnit.SECONDS) || !envio.awaitTermination(5, TimeUnit.SECONDS))
+            {
+                log.warn("[ActiveMQ] Quedaron {} lotes sin publicar al detener el servicio", getPendientes());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Deja el lote para un hilo de envio, o lo publica en el hilo que llama si la cola de envio esta llena o detenida.
+     */
+    private void enviar(Lote lote, ThreadPoolExecutor hilos)
+    {
+        try
+        {
+            hilos.execute(() -> flush(lote));
+        }
+        catch (RejectedExecutionException e)
+        {
+            enHiloLlamador.incrementAndGet();
+            flush(lote);
+        }
+    }
+
+    /**
+     * Publica lo pendiente del lote en partes de a lo sumo {@code maxMensajes}, hasta vaciarlo.
+     */
+    private void flush(Lote lote)
+    {
+        // El lote se toma dentro del lock de publicacion para que dos lotes del mismo topico no se crucen
+        synchronized (lote.publicacion)
+        {
+            while (true)
+            {
+                JmsQos qos;
+                List<Object> mensajes;
+                synchronized (lote)
+                {
+                    qos = lote.qos;
+                    mensajes = lote.tomar(maxMensajes);
+                }
+                if (mensajes.isEmpty())
+                {
+                    retirar(lote);
+                    return;
+                }
+                try
+                {
+                    publicador.publicar(lote.topico, mensajes, qos);
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("[ActiveMQ] Problema al publicar lote de {} mensajes en el topico {}", mensajes.size(),
+                            lote.topico, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Quita del mapa el lote vacio, para que no se acumulen los de destinos que dejaron de usarse, como las colas
+     * directas de instancias que ya no estan.
+     */
+    private void retirar(Lote lote)
+    {
+        synchronized (lote)
+        {
+            if (lote.mensajes.isEmpty() && lote.programado == null)
+            {
+                lote.retirado = true;
+                lotes.remove(lote.topico, lote);
+            }
+        }
+    }
+
+    private static final class Lote
+    {
+        private final String topico;
+
+        private final Object publicacion = new Object();
+
+        private List<Object> mensajes = new ArrayList<>();
+
+        private JmsQos qos;
+
+        private ScheduledFuture<?> programado;
+
+        /**
+         * El lote ya no esta en el mapa, los mensajes nuevos van a otro.
+         */
+        private boolean retirado;
+
+        private Lote(String topico)
+        {
+            this.topico = topico;
+        }
+
+        /**
+         * Toma los primeros mensajes del lote. La QoS combinada se conserva hasta que el lote queda vacio, por lo que
+         * todas las partes se publican con ella.
+         * @param maximo
+         * @return
+         */
+        private synchronized List<Object> tomar(int maximo)
+        {
+            if (programado != null)
+            {
+                programado.cancel(false);
+                programado = null;
+            }
+            if (mensajes.isEmpty())
+            {
+                qos = null;
+                return Collections.emptyList();
+            }
+            List<Object> tomados;
+            if (mensajes.size() <= maximo)
+            {
+                tomados = mensajes;
+                mensajes = new ArrayList<>();
+            }
+            else
+            {
+                List<Object> parte = mensajes.subList(0, maximo);
+                tomados = new ArrayList<>(parte);
+                parte.clear();
+            }
+            if (mensajes.isEmpty())
+            {
+                qos = null;
+            }
+            return tomados;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package backend.core.lib.commons.stream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Carriles de aplicacion de los mensajes replicados. Cada modulo tiene N carriles de un solo hilo y cada mensaje se
+ * asigna a un carril por el hash de su ambito (equipo, ejercicio, unidad), de modo que los mensajes de un mismo ambito
+ * se aplican en el orden en que llegaron mientras ambitos distintos se aplican en paralelo.
+ * <p>
+ * Si la cola de un carril se llena el hilo del listener JMS espera, frenando el consumo del topico en vez de perder
+ * mensajes o alterar su orden.
+ */
+@Slf4j
+public class JmsReplicationLanes
+{
+
+    private final ToIntFunction<EnumModulo> carrilesPorModulo;
+
+    private final int capacidad;
+
+    private final Map<EnumModulo, ThreadPoolExecutor[]> modulos = new ConcurrentHashMap<>();
+
+    /**
+     * @param carrilesPorModulo
+     *            cantidad de carriles de cada modulo
+     * @param capacidad
+     *            mensajes pendientes por carril
+     */
+    public JmsReplicationLanes(ToIntFunction<EnumModulo> carrilesPorModulo, int capacidad)
+    {
+        this.carrilesPorModulo = carrilesPorModulo;
+        this.capacidad = Math.max(1, capacidad);
+    }
+
+    /**
+     * Encola la tarea en el carril que corresponde al ambito. Las tareas sin ambito van al primer carril.
+     * @param modulo
+     * @param ambito
+     * @param tarea
+     */
+    public void execute(EnumModulo modulo, Object ambito, Runnable tarea)
+    {
+        ThreadPoolExecutor[] carriles = modulos.computeIfAbsent(modulo, this::crear);
+        carriles[Math.floorMod(Objects.hashCode(ambito), carriles.length)].execute(tarea);
+    }
+
+    /**
+     * @return mensajes pendientes por carril, con claves {@code MODULO-n}
+     */
+    public Map<String, Integer> getBacklog()
+    {
+        Map<String, Integer> backlog = new LinkedHashMap<>();
+        modulos.forEach((modulo, carriles) -> {
+            for (int i = 0; i < carriles.length; i++)
+            {
+                backlog.put(modulo.name() + "-" + i, carriles[i].getQueue().size());
+            }
+        });
+        return backlog;
+    }
+
+    public void shutdown()
+    {
+        modulos.values().forEach(carriles -> {
+            for (ThreadPoolExecutor carril : carriles)
+            {
+                carril.shutdown();
+            }
+        });
+    }
+
+    private ThreadPoolExecutor[] crear(EnumModulo modulo)
+    {
+        int cantidad = Math.max(1, carrilesPorModulo.applyAsInt(modulo));
+        log.info("[STREAM] Aplicando replicacion de {} en {} carriles", modulo, cantidad);
+        ThreadPoolExecutor[] carriles = new ThreadPoolExecutor[cantidad];
+        for (int i = 0; i < cantidad; i++)
+        {
+            String nombre = "stream-jms-" + modulo.name().toLowerCase() + "-" + i;
+            carriles[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(capacidad), r -> {
+                        Thread thread = new Thread(r, nombre);
+                        thread.setDaemon(true);
+                        return thread;
+                    }, JmsReplicationLanes::esperarLugar);
+        }
+        return carriles;
+    }
+
+    /**
+     * Con la cola llena se espera lugar en lugar de ejecutar en el hilo que llama, que alteraria el orden del carril.
+     */
+    private static void esperarLugar(Runnable tarea, ThreadPoolExecutor carril)
+    {
+        if (carril.isShutdown())
+        {
+            throw new RejectedExecutionException("Carril de replicacion detenido");
+        }
+        try
+        {
+            carril.getQueue().put(tarea);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrumpido esperando lugar en el carril de replicacion", e);
+        }
+    }
+}
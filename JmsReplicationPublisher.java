@@ -0,0 +1,130 @@
+package backend.core.lib.commons.stream;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jms.ConnectionFactory;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.config.SingletonBeanRegistry;
+import org.springframework.beans.factory.support.DefaultSingletonBeanRegistry;
+import org.springframework.jms.connection.CachingConnectionFactory;
+import org.springframework.jms.core.JmsTemplate;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Template con el que los servicios stream publican la replicacion. Si la connection factory del contexto abre una
+ * conexion y una sesion por envio se la envuelve en un {@link CachingConnectionFactory}, que reutiliza la conexion, las
+ * sesiones y los productores.
+ * <p>
+ * Se registra en el contexto con el nombre {@link #BEAN} la primera vez que un servicio lo pide y lo comparten todos
+ * los servicios del contexto, de modo que se abre una sola conexion al broker para publicar. El contexto lo cierra al
+ * terminar, despues de los servicios que lo usan.
+ */
+@Slf4j
+public class JmsReplicationPublisher implements DisposableBean
+{
+
+    public static final String BEAN = "streamJmsPublisher";
+
+    /**
+     * Connection factories con pool conocidas, ya reutilizan conexiones y sesiones.
+     */
+    private static final Set<String> POOLS = new HashSet<>(Arrays.asList(
+            "org.messaginghub.pooled.jms.JmsPoolConnectionFactory",
+            "org.apache.activemq.jms.pool.PooledConnectionFactory",
+            "org.apache.activemq.pool.PooledConnectionFactory"));
+
+    @Getter
+    private final JmsTemplate template;
+
+    private final CachingConnectionFactory cache;
+
+    /**
+     * @param jmsTemplate
+     *            template del contexto
+     * @param sessionCacheSize
+     *            sesiones en cache si hay que envolver la connection factory
+     */
+    public JmsReplicationPublisher(JmsTemplate jmsTemplate, int sessionCacheSize)
+    {
+        ConnectionFactory connectionFactory = jmsTemplate.getConnectionFactory();
+        if (connectionFactory == null || isReutilizable(connectionFactory))
+        {
+            template = jmsTemplate;
+            cache = null;
+            return;
+        }
+        log.info("[ActiveMQ] Publicando con sesiones en cache sobre {}", connectionFactory.getClass().getSimpleName());
+        cache = new CachingConnectionFactory(connectionFactory);
+        cache.setSessionCacheSize(sessionCacheSize);
+        template = new JmsTemplate(cache);
+        template.setPubSubDomain(jmsTemplate.isPubSubDomain());
+        template.setMessageConverter(jmsTemplate.getMessageConverter());
+        template.setDestinationResolver(jmsTemplate.getDestinationResolver());
+    }
+
+    /**
+     * Publicador del contexto, registrandolo si es el primer servicio stream que lo pide.
+     * @param beanFactory
+     * @param jmsTemplate
+     * @param sessionCacheSize
+     * @return publicador compartido, o uno propio si el bean factory no admite registrar singletons; en ese caso lo
+     *         cierra quien lo pidio
+     */
+    public static JmsReplicationPublisher compartido(BeanFactory beanFactory, JmsTemplate jmsTemplate,
+            int sessionCacheSize)
+    {
+        if (!(beanFactory instanceof SingletonBeanRegistry))
+        {
+            return new JmsReplicationPublisher(jmsTemplate, sessionCacheSize);
+        }
+        SingletonBeanRegistry singletons = (SingletonBeanRegistry) beanFactory;
+        synchronized (singletons)
+        {
+            if (!singletons.containsSingleton(BEAN))
+            {
+                JmsReplicationPublisher publicador = new JmsReplicationPublisher(jmsTemplate, sessionCacheSize);
+                singletons.registerSingleton(BEAN, publicador);
+                if (singletons instanceof DefaultSingletonBeanRegistry)
+                {
+                    ((DefaultSingletonBeanRegistry) singletons).registerDisposableBean(BEAN, publicador);
+                }
+            }
+            return (JmsReplicationPublisher) singletons.getSingleton(BEAN);
+        }
+    }
+
+    /**
+     * @param connectionFactory
+     * @return true si ya reutiliza conexiones y sesiones: un {@link CachingConnectionFactory} o un pool conocido
+     */
+    static boolean isReutilizable(ConnectionFactory connectionFactory)
+    {
+        if (connectionFactory instanceof CachingConnectionFactory)
+        {
+            return true;
+        }
+        for (Class<?> clase = connectionFactory.getClass(); clase != null; clase = clase.getSuperclass())
+        {
+            if (POOLS.contains(clase.getName()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (cache != null)
+        {
+            cache.destroy();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package backend.core.lib.commons.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Codifica y decodifica los mensajes de replicacion {@code JmsStreamMessage*}. El formato de envio se elige con
+ * {@code sisdef.activemq.codec}; al recibir se aceptan ambos formatos para permitir actualizaciones escalonadas de las
+ * instancias.
+ * <p>
+ * Smile es solo el formato de bytes: se escribe y se lee con el {@link ObjectMapper} del contexto sobre un parser o
+ * generador Smile, por lo que ambos formatos usan la misma configuracion (modulos, nombres, propiedades desconocidas).
+ * <p>
+ * Cada mensaje lleva en {@link #CAMPO_ENVIADO} el instante en que se publico, para medir el retraso de la replicacion
+ * en cualquier listener, reciba el String, los bytes o el {@link Message}.
+ */
+public class JmsStreamCodec
+{
+
+    /**
+     * Encabezado de todo documento Smile: ":)\n".
+     */
+    private static final byte[] SMILE_HEADER = { 0x3A, 0x29, 0x0A };
+
+    /**
+     * Instante de publicacion en milisegundos. Las instancias anteriores lo ignoran como a cualquier propiedad
+     * desconocida.
+     */
+    public static final String CAMPO_ENVIADO = "enviado";
+
+    private final EnumJmsCodec codec;
+
+    private final ObjectMapper jsonMapper;
+
+    private final SmileFactory smileFactory = new SmileFactory();
+
+    public JmsStreamCodec(EnumJmsCodec codec, ObjectMapper jsonMapper)
+    {
+        this.codec = codec;
+        this.jsonMapper = jsonMapper;
+    }
+
+    /**
+     * @param mensaje
+     *            mensaje o lista de mensajes de replicacion
+     * @return String para JSON, byte[] para Smile
+     * @throws IOException
+     */
+    public Object encode(Object mensaje) throws IOException
+    {
+        if (codec == EnumJmsCodec.SMILE)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (JsonGenerator generator = smileFactory.createGenerator(out))
+            {
+                jsonMapper.writeValue(generator, mensaje);
+            }
+            return out.toByteArray();
+        }
+        return jsonMapper.writeValueAsString(mensaje);
+    }
+
+    /**
+     * Codifica el mensaje o lote agregando a cada mensaje el instante de publicacion.
+     * @param mensaje
+     *            mensaje o lista de mensajes de replicacion
+     * @param enviado
+     *            instante de publicacion en milisegundos
+     * @return String para JSON, byte[] para Smile
+     * @throws IOException
+     */
+    public Object encode(Object mensaje, long enviado) throws IOException
+    {
+        JsonNode nodo = jsonMapper.valueToTree(mensaje);
+        if (nodo.isArray())
+        {
+            for (JsonNode item : nodo)
+            {
+                sellar(item, enviado);
+            }
+        }
+        else
+        {
+            sellar(nodo, enviado);
+        }
+        return encode(nodo);
+    }
+
+    /**
+     * Quita del mensaje el instante de publicacion, para convertirlo luego a su clase.
+     * @param mensaje
+     * @return instante de publicacion en milisegundos, o null si el mensaje no lo trae
+     */
+    public static Long enviado(JsonNode mensaje)
+    {
+        JsonNode enviado = mensaje.isObject() ? ((ObjectNode) mensaje).remove(CAMPO_ENVIADO) : null;
+        return enviado == null || !enviado.canConvertToLong() ? null : enviado.asLong();
+    }
+
+    public JsonNode decode(String mensaje) throws IOException
+    {
+        return jsonMapper.readTree(mensaje);
+    }
+
+    public JsonNode decode(byte[] mensaje) throws IOException
+    {
+        return isSmile(mensaje) ? jsonMapper.readTree(smileFactory.createParser(mensaje))
+                : jsonMapper.readTree(mensaje);
+    }
+
+    /**
+     * Decodifica el cuerpo de un TextMessage (JSON) o de un BytesMessage (Smile o JSON).
+     * @param message
+     * @return
+     * @throws JMSException
+     * @throws IOException
+     */
+    public JsonNode decode(Message message) throws JMSException, IOException
+    {
+        if (message instanceof TextMessage)
+        {
+            return decode(((TextMessage) message).getText());
+        }
+        if (message instanceof BytesMessage)
+        {
+            return decode(body((BytesMessage) message));
+        }
+        throw new IllegalArgumentException("Tipo de mensaje JMS no soportado " + message.getClass().getName());
+    }
+
+    /**
+     * Decodifica el cuerpo directamente a la clase indicada, sin pasar por un arbol intermedio.
+     * @param <T>
+     * @param message
+     * @param clase
+     * @return
+     * @throws JMSException
+     * @throws IOException
+     */
+    public <T> T decode(Message message, Class<T> clase) throws JMSException, IOException
+    {
+        // El instante de publicacion no es una propiedad de la clase
+        ObjectReader reader = jsonMapper.readerFor(clase).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        if (message instanceof TextMessage)
+        {
+            return reader.readValue(((TextMessage) message).getText());
+        }
+        if (message instanceof BytesMessage)
+        {
+            byte[] body = body((BytesMessage) message);
+            return isSmile(body) ? reader.readValue(smileFactory.createParser(body)) : reader.readValue(body);
+        }
+        throw new IllegalArgumentException("Tipo de mensaje JMS no soportado " + message.getClass().getName());
+    }
+
+    public EnumJmsCodec getCodec()
+    {
+        return codec;
+    }
+
+    private static void sellar(JsonNode mensaje, long enviado)
+    {
+        if (mensaje.isObject())
+        {
+            ((ObjectNode) mensaje).put(CAMPO_ENVIADO, enviado);
+        }
+    }
+
+    private static byte[] body(BytesMessage message) throws JMSException
+    {
+        byte[] body = new byte[(int) message.getBodyLength()];
+        message.readBytes(body);
+        return body;
+    }
+
+    private static boolean isSmile(byte[] mensaje)
+    {
+        return mensaje.length >= SMILE_HEADER.length && mensaje[0] == SMILE_HEADER[0]
+                && mensaje[1] == SMILE_HEADER[1] && mensaje[2] == SMILE_HEADER[2];
+    }
+}
@@ -0,0 +1,156 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.http.codec.ServerSentEvent;
+
+import lombok.Getter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+/**
+ * Cliente stream sobre Reactor. El controlador devuelve {@link #getFlux()} y el servidor (WebFlux o Spring MVC con
+ * tipos reactivos) escribe los eventos sin dejar un hilo tomado por conexion; una conexion inactiva solo ocupa el
+ * buffer de su sink.
+ * <p>
+ * El cliente solo acepta escrituras mientras el suscriptor del flujo tiene demanda pendiente ({@link #isListo()}).
+ * Sin demanda el escritor del {@link StreamSubscriber} se detiene y los mensajes esperan en su cola de salida, con la
+ * politica de consumidor lento del modulo; cada {@code request} de la red lo retoma. El sink nunca recibe mas de lo
+ * pedido, su buffer solo cubre la entrega asincronica de Reactor.
+ */
+public class ReactiveStreamClient implements IStreamClient
+{
+
+    /**
+     * Eventos que se retienen en el sink hasta que Reactor los entrega al suscriptor.
+     */
+    public static final int BUFFER = 64;
+
+    @Getter
+    private final EnumModulo modulo;
+
+    @Getter
+    private final Long idEquipo;
+
+    @Getter
+    private final Long idPerfilUsuario;
+
+    @Getter
+    private final Long idUnidad;
+
+    @Getter
+    private final Long idUnidadJdn;
+
+    @Getter
+    private final Long idEjercicio;
+
+    @Getter
+    private final Long idClientSession;
+
+    private final Sinks.Many<ServerSentEvent<String>> sink;
+
+    @Getter
+    private final Flux<ServerSentEvent<String>> flux;
+
+    private volatile Runnable onTermination;
+
+    /**
+     * Eventos pedidos por el suscriptor del flujo y todavia no enviados, {@link Long#MAX_VALUE} si no tiene limite.
+     */
+    private final AtomicLong demanda = new AtomicLong();
+
+    private volatile Runnable alPedir;
+
+    public ReactiveStreamClient(EnumModulo modulo, Long idEquipo, Long idPerfilUsuario, Long idUnidad,
+            Long idUnidadJdn, Long idEjercicio, Long idClientSession)
+    {
+        this.modulo = modulo;
+        this.idEquipo = idEquipo;
+        this.idPerfilUsuario = idPerfilUsuario;
+        this.idUnidad = idUnidad;
+        this.idUnidadJdn = idUnidadJdn;
+        this.idEjercicio = idEjercicio;
+        this.idClientSession = idClientSession;
+        this.sink = Sinks.many().unicast().onBackpressureBuffer(Queues.<ServerSentEvent<String>> get(BUFFER).get());
+        this.flux = sink.asFlux().doOnRequest(this::pedido).doFinally(senal -> {
+            Runnable callback = onTermination;
+            if (callback != null)
+            {
+                callback.run();
+            }
+        });
+    }
+
+    /**
+     * Accion a ejecutar cuando el flujo termina: por cierre del servidor, error o cancelacion del cliente.
+     * @param callback
+     */
+    public void onTermination(Runnable callback)
+    {
+        this.onTermination = callback;
+    }
+
+    @Override
+    public boolean isListo()
+    {
+        return demanda.get() > 0;
+    }
+
+    @Override
+    public void alPedir(Runnable callback)
+    {
+        this.alPedir = callback;
+        if (isListo())
+        {
+            callback.run();
+        }
+    }
+
+    /**
+     * Suma la demanda del suscriptor y retoma al escritor.
+     * @param cantidad
+     */
+    private void pedido(long cantidad)
+    {
+        demanda.accumulateAndGet(cantidad, (actual, pedida) -> actual + pedida < 0 ? Long.MAX_VALUE : actual + pedida);
+        Runnable callback = alPedir;
+        if (callback != null)
+        {
+            callback.run();
+        }
+    }
+
+    @Override
+    public synchronized void send(SseFrame frame, StreamEncoding encoding) throws IOException
+    {
+        demanda.getAndUpdate(actual -> actual == Long.MAX_VALUE ? actual : Math.max(0, actual - 1));
+        ServerSentEvent<String> event = frame.isPing() ? ServerSentEvent.<String> builder().comment("ping").build()
+                : ServerSentEvent.<String> builder().id(frame.getId()).data(frame.getTexto(encoding)).build();
+        Sinks.EmitResult resultado = sink.tryEmitNext(event);
+        if (resultado.isFailure())
+        {
+            throw new IOException("No se pudo enviar al cliente reactivo: " + resultado);
+        }
+    }
+
+    @Override
+    public synchronized void complete()
+    {
+        sink.tryEmitComplete();
+    }
+
+    @Override
+    public synchronized void completeWithError(Throwable e)
+    {
+        sink.tryEmitError(e);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReactiveStreamClient [modulo=" + modulo + ", idEquipo=" + idEquipo + ", idPerfilUsuario="
+                + idPerfilUsuario + ", idEjercicio=" + idEjercicio + "]";
+    }
+}
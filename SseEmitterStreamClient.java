@@ -0,0 +1,86 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+
+import lombok.Getter;
+
+/**
+ * Adaptador de {@link MarteSseClient} (SseEmitter de servlet) a {@link IStreamClient}.
+ */
+public class SseEmitterStreamClient implements IStreamClient
+{
+
+    @Getter
+    private final MarteSseClient emitter;
+
+    public SseEmitterStreamClient(MarteSseClient emitter)
+    {
+        this.emitter = emitter;
+    }
+
+    @Override
+    public EnumModulo getModulo()
+    {
+        return emitter.getModulo();
+    }
+
+    @Override
+    public Long getIdEquipo()
+    {
+        return emitter.getIdEquipo();
+    }
+
+    @Override
+    public Long getIdEjercicio()
+    {
+        return emitter.getIdEjercicio();
+    }
+
+    @Override
+    public Long getIdUnidad()
+    {
+        return emitter.getIdUnidad();
+    }
+
+    @Override
+    public Long getIdUnidadJdn()
+    {
+        return emitter.getIdUnidadJdn();
+    }
+
+    @Override
+    public Long getIdPerfilUsuario()
+    {
+        return emitter.getIdPerfilUsuario();
+    }
+
+    @Override
+    public Long getIdClientSession()
+    {
+        return emitter.getIdClientSession();
+    }
+
+    @Override
+    public void send(SseFrame frame, StreamEncoding encoding) throws IOException
+    {
+        frame.writeTo(emitter, encoding);
+    }
+
+    @Override
+    public void complete()
+    {
+        emitter.complete();
+    }
+
+    @Override
+    public void completeWithError(Throwable e)
+    {
+        emitter.completeWithError(e);
+    }
+
+    @Override
+    public String toString()
+    {
+        return emitter.toString();
+    }
+}
@@ -0,0 +1,300 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Evento SSE ya serializado. Se construye una sola vez por mensaje y se escribe tal cual a todos los destinatarios,
+ * evitando que el conversor de Spring serialice el mismo {@link MessageSendToClient} por cada cliente.
+ */
+@Getter
+public final class SseFrame
+{
+
+    private static final SseFrame PING = new SseFrame(null, null, null, null, null, null, 0, null,
+            EnumPrioridad.NORMAL);
+
+    private final EnumModulo modulo;
+
+    private final EnumOperacion operacion;
+
+    private final String clazz;
+
+    /**
+     * JSON del {@link MessageSendToClient} en UTF-8. Es compartido entre todos los envios y no debe modificarse.
+     */
+    private final byte[] payload;
+
+    /**
+     * Clave (modulo, clase, id de entidad) para la conflacion de UPDATE en la cola de cada cliente, null si el frame no
+     * se puede conflacionar.
+     */
+    private final Object clave;
+
+    /**
+     * Id del evento SSE, que el cliente devuelve en {@code Last-Event-ID} al reconectarse. Null si el frame no quedo
+     * guardado en el {@link StreamReplayBuffer}.
+     */
+    private final String id;
+
+    /**
+     * Secuencia del id dentro de la instancia, 0 si el frame no tiene id.
+     */
+    private final long secuencia;
+
+    /**
+     * Version de la entidad para el envio de deltas, null si el mensaje no es de una clase con deltas.
+     */
+    private final Delta delta;
+
+    /**
+     * Orden en que se escribe respecto de otros pendientes del mismo cliente.
+     */
+    private final EnumPrioridad prioridad;
+
+    /**
+     * Payload como texto para los transportes que no escriben bytes, se arma la primera vez que se pide.
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile String texto;
+
+    /**
+     * Payload en cada {@link StreamEncoding} binaria pedida por algun destinatario. Se codifica una sola vez por
+     * codificacion y se comparte entre todos los clientes que la negociaron.
+     */
+    @Getter(AccessLevel.NONE)
+    private final AtomicReferenceArray<byte[]> codificados = new AtomicReferenceArray<>(StreamEncoding.cantidad());
+
+    private SseFrame(EnumModulo modulo, EnumOperacion operacion, String clazz, byte[] payload, Object clave, String id,
+            long secuencia, Delta delta, EnumPrioridad prioridad)
+    {
+        this.modulo = modulo;
+        this.operacion = operacion;
+        this.clazz = clazz;
+        this.payload = payload;
+        this.clave = clave;
+        this.id = id;
+        this.secuencia = secuencia;
+        this.delta = delta;
+        this.prioridad = prioridad;
+    }
+
+    public static SseFrame of(ObjectMapper mapper, MessageSendToClient msg) throws JsonProcessingException
+    {
+        return of(mapper, msg, null);
+    }
+
+    public static SseFrame of(ObjectMapper mapper, MessageSendToClient msg, Object clave)
+            throws JsonProcessingException
+    {
+        return new SseFrame(msg.getModulo(), msg.getOperacion(), msg.getClazz(), mapper.writeValueAsBytes(msg), clave,
+                null, 0, null, EnumPrioridad.NORMAL);
+    }
+
+    /**
+     * @return comentario SSE de heartbeat, lo ignora el {@code EventSource} del cliente
+     */
+    public static SseFrame ping()
+    {
+        return PING;
+    }
+
+    public boolean isPing()
+    {
+        return payload == null;
+    }
+
+    /**
+     * @param id
+     * @param secuencia
+     * @return copia del frame con el id de evento, comparte el payload
+     */
+    public SseFrame withId(String id, long secuencia)
+    {
+        Delta conId = delta == null || delta.completo == null ? delta
+                : new Delta(delta.clave, delta.version, delta.base, delta.completo.withId(id, secuencia));
+        return new SseFrame(modulo, operacion, clazz, payload, clave, id, secuencia, conId, prioridad);
+    }
+
+    /**
+     * @param clave
+     *            ambito y entidad
+     * @param version
+     *            version de la entidad en este frame, 0 si el frame la elimina
+     * @param base
+     *            version sobre la que aplica el parche, 0 si el frame lleva el objeto completo
+     * @param completo
+     *            frame con el objeto completo para los clientes que no tienen la base, null si este ya es completo
+     * @return copia del frame con la informacion de version
+     */
+    public SseFrame withDelta(String clave, long version, long base, SseFrame completo)
+    {
+        return new SseFrame(modulo, operacion, clazz, payload, this.clave, id, secuencia,
+                new Delta(clave, version, base, completo), prioridad);
+    }
+
+    /**
+     * @param prioridad
+     * @return copia del frame con la prioridad, o el mismo frame si ya la tiene
+     */
+    public SseFrame withPrioridad(EnumPrioridad prioridad)
+    {
+        if (this.prioridad == prioridad)
+        {
+            return this;
+        }
+        Delta conPrioridad = delta == null || delta.completo == null ? delta
+                : new Delta(delta.clave, delta.version, delta.base, delta.completo.withPrioridad(prioridad));
+        return new SseFrame(modulo, operacion, clazz, payload, clave, id, secuencia, conPrioridad, prioridad);
+    }
+
+    /**
+     * @return true si el frame reemplaza a un UPDATE pendiente de la misma entidad
+     */
+    public boolean isConflacionable()
+    {
+        return clave != null && EnumOperacion.UPDATE.equals(operacion);
+    }
+
+    /**
+     * @return JSON del mensaje como texto, compartido entre todos los clientes que lo piden
+     */
+    public String getTexto()
+    {
+        String resultado = texto;
+        if (resultado == null && payload != null)
+        {
+            resultado = new String(payload, StandardCharsets.UTF_8);
+            texto = resultado;
+        }
+        return resultado;
+    }
+
+    /**
+     * @param encoding
+     * @return payload en la codificacion del cliente
+     * @throws IOException
+     */
+    public byte[] getPayload(StreamEncoding encoding) throws IOException
+    {
+        if (encoding.isTexto() || payload == null)
+        {
+            return payload;
+        }
+        byte[] codificado = codificados.get(encoding.indice());
+        if (codificado == null)
+        {
+            codificado = encoding.codificar(payload);
+            codificados.compareAndSet(encoding.indice(), null, codificado);
+        }
+        return codificado;
+    }
+
+    /**
+     * Indica si el frame viaja a un transporte de texto como el JSON original. Solo los payloads comprimidos viajan en
+     * base64, ver {@link StreamEncoding}.
+     * @param encoding
+     * @return
+     * @throws IOException
+     */
+    public boolean isTexto(StreamEncoding encoding) throws IOException
+    {
+        // Sin gzip nunca se comprime: no hace falta codificar para saberlo
+        return encoding.isTexto() || payload == null || !encoding.isGzip()
+                || !encoding.isComprimido(getPayload(encoding));
+    }
+
+    /**
+     * @param encoding
+     * @return payload como texto: el JSON original o el payload comprimido en base64
+     * @throws IOException
+     */
+    public String getTexto(StreamEncoding encoding) throws IOException
+    {
+        return isTexto(encoding) ? getTexto() : Base64.getEncoder().encodeToString(getPayload(encoding));
+    }
+
+    /**
+     * Escribe el frame al cliente. Los bytes se envian sin pasar nuevamente por Jackson.
+     * @param emitter
+     * @throws IOException
+     */
+    public void writeTo(MarteSseClient emitter) throws IOException
+    {
+        writeTo(emitter, StreamEncoding.JSON);
+    }
+
+    /**
+     * Escribe el frame al cliente en su codificacion. Los payloads comprimidos viajan en base64 como texto plano y el
+     * resto como el JSON original.
+     * @param emitter
+     * @param encoding
+     * @throws IOException
+     */
+    public void writeTo(MarteSseClient emitter, StreamEncoding encoding) throws IOException
+    {
+        if (isPing())
+        {
+            emitter.send(SseEmitter.event().comment("ping"));
+            return;
+        }
+        SseEmitter.SseEventBuilder event = SseEmitter.event();
+        if (id != null)
+        {
+            event.id(id);
+        }
+        if (isTexto(encoding))
+        {
+            emitter.send(event.data(payload, MediaType.APPLICATION_JSON));
+        }
+        else
+        {
+            emitter.send(event.data(getTexto(encoding), MediaType.TEXT_PLAIN));
+        }
+    }
+
+    /**
+     * Version de una entidad con deltas. Ver {@link StreamDeltaTracker}.
+     */
+    @Getter
+    public static final class Delta
+    {
+        private final String clave;
+
+        private final long version;
+
+        private final long base;
+
+        private final SseFrame completo;
+
+        private Delta(String clave, long version, long base, SseFrame completo)
+        {
+            this.clave = clave;
+            this.version = version;
+            this.base = base;
+            this.completo = completo;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        if (isPing())
+        {
+            return "SseFrame [ping]";
+        }
+        return "SseFrame [id=" + id + ", modulo=" + modulo + ", operacion=" + operacion + ", clazz=" + clazz
+                + ", bytes=" + payload.length + "]";
+    }
+}
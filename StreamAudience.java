@@ -0,0 +1,374 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Destinatarios de un mensaje stream dentro de un modulo, expresados como criterios por ejercicio, equipo, unidad,
+ * unidad JDN y perfil de usuario combinados con {@link #y(StreamAudience...)} y {@link #o(StreamAudience...)}. Por
+ * ejemplo {@code StreamAudience.equipo(idEquipo).y(StreamAudience.usuarios(ids))}.
+ * <p>
+ * Es inmutable y se replica tal cual por JMS en {@link StreamAudienceMessage}, de modo que cada instancia resuelve los
+ * destinatarios con su propio {@link StreamClientRegistry#porAudiencia(EnumModulo, StreamAudience)}.
+ */
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class StreamAudience
+{
+
+    public enum Criterio
+    {
+        TODOS(s -> null),
+        EJERCICIO(StreamSubscriber::getIdEjercicio),
+        EQUIPO(StreamSubscriber::getIdEquipo),
+        UNIDAD(StreamSubscriber::getIdUnidad),
+        UNIDAD_JDN(StreamSubscriber::getIdUnidadJdn),
+        USUARIO(StreamSubscriber::getIdPerfilUsuario),
+        Y(s -> null),
+        O(s -> null);
+
+        private final Function<StreamSubscriber, Long> id;
+
+        Criterio(Function<StreamSubscriber, Long> id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * @param subscriber
+         * @return identificador del suscriptor que se compara con el criterio
+         */
+        public Long id(StreamSubscriber subscriber)
+        {
+            return id.apply(subscriber);
+        }
+    }
+
+    private static final StreamAudience TODOS = new StreamAudience(Criterio.TODOS, null, null);
+
+    private final Criterio criterio;
+
+    /**
+     * Identificadores aceptados por un criterio simple, sin repetidos y ordenados.
+     */
+    private final List<Long> ids;
+
+    /**
+     * Criterios combinados por {@link Criterio#Y} o {@link Criterio#O}.
+     */
+    private final List<StreamAudience> partes;
+
+    @Getter(AccessLevel.NONE)
+    private final Set<Long> conjunto;
+
+    @JsonCreator
+    private StreamAudience(@JsonProperty("criterio") Criterio criterio, @JsonProperty("ids") Collection<Long> ids,
+            @JsonProperty("partes") List<StreamAudience> partes)
+    {
+        this.criterio = criterio;
+        this.ids = ids == null ? null
+                : Collections.unmodifiableList(
+                        new ArrayList<>(ids.stream().filter(Objects::nonNull).collect(Collectors.toCollection(
+                                TreeSet::new))));
+        this.partes = partes == null ? null : Collections.unmodifiableList(new ArrayList<>(partes));
+        this.conjunto = this.ids == null || this.ids.size() < 2 ? null : new HashSet<>(this.ids);
+    }
+
+    /**
+     * @return todos los suscriptores del modulo
+     */
+    public static StreamAudience todos()
+    {
+        return TODOS;
+    }
+
+    public static StreamAudience ejercicio(Long idEjercicio)
+    {
+        return new StreamAudience(Criterio.EJERCICIO, Collections.singletonList(idEjercicio), null);
+    }
+
+    public static StreamAudience equipo(Long idEquipo)
+    {
+        return new StreamAudience(Criterio.EQUIPO, Collections.singletonList(idEquipo), null);
+    }
+
+    public static StreamAudience unidad(Long idUnidad)
+    {
+        return new StreamAudience(Criterio.UNIDAD, Collections.singletonList(idUnidad), null);
+    }
+
+    public static StreamAudience unidades(Collection<Long> idsUnidad)
+    {
+        return new StreamAudience(Criterio.UNIDAD, idsUnidad == null ? Collections.emptyList() : idsUnidad, null);
+    }
+
+    public static StreamAudience unidadJdn(Long idUnidadJdn)
+    {
+        return new StreamAudience(Criterio.UNIDAD_JDN, Collections.singletonList(idUnidadJdn), null);
+    }
+
+    public static StreamAudience usuario(Long idPerfilUsuario)
+    {
+        return new StreamAudience(Criterio.USUARIO, Collections.singletonList(idPerfilUsuario), null);
+    }
+
+    public static StreamAudience usuarios(Collection<Long> idsPerfilUsuario)
+    {
+        return new StreamAudience(Criterio.USUARIO,
+                idsPerfilUsuario == null ? Collections.emptyList() : idsPerfilUsuario, null);
+    }
+
+    /**
+     * @param partes
+     * @return suscriptores que cumplen todos los criterios
+     */
+    public static StreamAudience todas(StreamAudience... partes)
+    {
+        return combinar(Criterio.Y, partes);
+    }
+
+    /**
+     * @param partes
+     * @return suscriptores que cumplen alguno de los criterios
+     */
+    public static StreamAudience alguna(StreamAudience... partes)
+    {
+        return combinar(Criterio.O, partes);
+    }
+
+    /**
+     * @param otras
+     * @return suscriptores que cumplen este criterio y todos los otros
+     */
+    public StreamAudience y(StreamAudience... otras)
+    {
+        return combinar(Criterio.Y, concatenar(otras));
+    }
+
+    /**
+     * @param otras
+     * @return suscriptores que cumplen este criterio o alguno de los otros
+     */
+    public StreamAudience o(StreamAudience... otras)
+    {
+        return combinar(Criterio.O, concatenar(otras));
+    }
+
+    /**
+     * @param subscriber
+     * @return true si el suscriptor es destinatario
+     */
+    public boolean test(StreamSubscriber subscriber)
+    {
+        switch (criterio)
+        {
+            case TODOS:
+                return true;
+            case Y:
+                for (StreamAudience parte : partes)
+                {
+                    if (!parte.test(subscriber))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            case O:
+                for (StreamAudience parte : partes)
+                {
+                    if (parte.test(subscriber))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                Long id = criterio.id(subscriber);
+                return id != null && (conjunto != null ? conjunto.contains(id) : ids.contains(id));
+        }
+    }
+
+    /**
+     * Perfiles de usuario a los que se limita la audiencia, para replicar el mensaje solo a las instancias donde
+     * estan conectados.
+     * @return null si la audiencia no se limita a un conjunto de usuarios
+     */
+    @JsonIgnore
+    public Set<Long> getUsuarios()
+    {
+        switch (criterio)
+        {
+            case USUARIO:
+                return new LinkedHashSet<>(ids);
+            case Y:
+                Set<Long> menor = null;
+                for (StreamAudience parte : partes)
+                {
+                    Set<Long> usuarios = parte.getUsuarios();
+                    if (usuarios != null && (menor == null || usuarios.size() < menor.size()))
+                    {
+                        menor = usuarios;
+                    }
+                }
+                return menor;
+            case O:
+                Set<Long> union = new LinkedHashSet<>();
+                for (StreamAudience parte : partes)
+                {
+                    Set<Long> usuarios = parte.getUsuarios();
+                    if (usuarios == null)
+                    {
+                        return null;
+                    }
+                    union.addAll(usuarios);
+                }
+                return union;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return ejercicio al que se limita la audiencia, para el buffer de reanudacion, o null
+     */
+    @JsonIgnore
+    public Long getIdEjercicio()
+    {
+        return unico(Criterio.EJERCICIO);
+    }
+
+    /**
+     * Clave con la que se ordenan los mensajes replicados de la audiencia: el equipo o el ejercicio si la audiencia se
+     * limita a uno, y si no la propia audiencia.
+     * @return
+     */
+    @JsonIgnore
+    public Object getClaveOrden()
+    {
+        Long equipo = unico(Criterio.EQUIPO);
+        if (equipo != null)
+        {
+            return equipo;
+        }
+        Long ejercicio = unico(Criterio.EJERCICIO);
+        return ejercicio != null ? ejercicio : toString();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof StreamAudience))
+        {
+            return false;
+        }
+        StreamAudience otra = (StreamAudience) obj;
+        return criterio == otra.criterio && Objects.equals(ids, otra.ids) && Objects.equals(partes, otra.partes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(criterio, ids, partes);
+    }
+
+    /**
+     * Forma canonica, por ejemplo {@code Y(EQUIPO:[3],USUARIO:[7, 9])}. Se usa como ambito de las versiones de los
+     * deltas.
+     */
+    @Override
+    public String toString()
+    {
+        switch (criterio)
+        {
+            case TODOS:
+                return "TODOS";
+            case Y:
+            case O:
+                return criterio.name()
+                        + partes.stream().map(StreamAudience::toString).collect(Collectors.joining(",", "(", ")"));
+            default:
+                return criterio.name() + ":" + ids;
+        }
+    }
+
+    /**
+     * Identificador si la audiencia exige un unico valor del criterio, directamente o dentro de un {@link Criterio#Y}.
+     */
+    private Long unico(Criterio buscado)
+    {
+        if (criterio == buscado)
+        {
+            return ids.size() == 1 ? ids.get(0) : null;
+        }
+        if (criterio == Criterio.Y)
+        {
+            for (StreamAudience parte : partes)
+            {
+                Long id = parte.unico(buscado);
+                if (id != null)
+                {
+                    return id;
+                }
+            }
+        }
+        return null;
+    }
+
+    private StreamAudience[] concatenar(StreamAudience... otras)
+    {
+        StreamAudience[] todas = new StreamAudience[otras.length + 1];
+        todas[0] = this;
+        System.arraycopy(otras, 0, todas, 1, otras.length);
+        return todas;
+    }
+
+    /**
+     * Aplana las combinaciones del mismo tipo y simplifica {@link #todos()}: es neutro en un {@link Criterio#Y} y
+     * absorbe un {@link Criterio#O}.
+     */
+    private static StreamAudience combinar(Criterio criterio, StreamAudience... partes)
+    {
+        List<StreamAudience> planas = new ArrayList<>();
+        for (StreamAudience parte : Arrays.asList(partes))
+        {
+            if (parte.criterio == Criterio.TODOS)
+            {
+                if (criterio == Criterio.O)
+                {
+                    return TODOS;
+                }
+            }
+            else if (parte.criterio == criterio)
+            {
+                planas.addAll(parte.partes);
+            }
+            else
+            {
+                planas.add(parte);
+            }
+        }
+        if (planas.isEmpty())
+        {
+            return criterio == Criterio.Y ? TODOS : usuarios(Collections.emptyList());
+        }
+        return planas.size() == 1 ? planas.get(0) : new StreamAudience(criterio, null, planas);
+    }
+}
@@ -0,0 +1,37 @@
+package backend.core.lib.commons.stream;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Mensaje de replicacion de un envio a una {@link StreamAudience}. Reemplaza a los {@code JmsStreamMessage*} de cada
+ * combinacion de destinatarios: la instancia que lo recibe resuelve la audiencia contra su propio indice.
+ */
+@Data
+@NoArgsConstructor
+public class StreamAudienceMessage
+{
+    public static final String TIPO = "AUDIENCIA";
+
+    private String tipo = TIPO;
+
+    private Long instance;
+
+    private EnumModulo modulo;
+
+    private EnumOperacion operacion;
+
+    private StreamAudience audiencia;
+
+    private String clazz;
+
+    /**
+     * Objeto enviado, ya serializado a JSON.
+     */
+    private String message;
+
+    /**
+     * Entidad del mensaje para la conflacion y los deltas, null si no corresponde.
+     */
+    private StreamEntityKey entidad;
+}
@@ -0,0 +1,364 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indice de suscriptores stream conectados. Los suscriptores se agrupan por {@link EnumModulo} y dentro de cada
+ * modulo por equipo, ejercicio, unidad, unidad JDN, perfil de usuario y sesion, de modo que buscar los destinatarios
+ * de un mensaje cueste lo mismo que la cantidad de destinatarios y no la cantidad de conexiones.
+ */
+public class StreamClientRegistry
+{
+
+    private final Map<EnumModulo, IndiceModulo> modulos = new ConcurrentHashMap<>();
+
+    /**
+     * Agrega el suscriptor a todos los indices que correspondan segun sus identificadores.
+     * @param subscriber
+     */
+    public void add(StreamSubscriber subscriber)
+    {
+        IndiceModulo indice = modulos.computeIfAbsent(subscriber.getModulo(), m -> new IndiceModulo());
+        if (indice.todos.add(subscriber))
+        {
+            agregar(indice.equipos, subscriber.getIdEquipo(), subscriber);
+            agregar(indice.ejercicios, subscriber.getIdEjercicio(), subscriber);
+            agregar(indice.unidades, subscriber.getIdUnidad(), subscriber);
+            agregar(indice.unidadesJdn, subscriber.getIdUnidadJdn(), subscriber);
+            agregar(indice.usuarios, subscriber.getIdPerfilUsuario(), subscriber);
+            agregar(indice.sesiones, subscriber.getIdClientSession(), subscriber);
+        }
+    }
+
+    /**
+     * Quita el suscriptor de todos los indices.
+     * @param subscriber
+     * @return true si el suscriptor estaba registrado, false si ya habia sido removido
+     */
+    public boolean remove(StreamSubscriber subscriber)
+    {
+        IndiceModulo indice = modulos.get(subscriber.getModulo());
+        if (indice == null || !indice.todos.remove(subscriber))
+        {
+            return false;
+        }
+        quitar(indice.equipos, subscriber.getIdEquipo(), subscriber);
+        quitar(indice.ejercicios, subscriber.getIdEjercicio(), subscriber);
+        quitar(indice.unidades, subscriber.getIdUnidad(), subscriber);
+        quitar(indice.unidadesJdn, subscriber.getIdUnidadJdn(), subscriber);
+        quitar(indice.usuarios, subscriber.getIdPerfilUsuario(), subscriber);
+        quitar(indice.sesiones, subscriber.getIdClientSession(), subscriber);
+        return true;
+    }
+
+    public Collection<StreamSubscriber> porModulo(EnumModulo modulo)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : indice.todos;
+    }
+
+    public Collection<StreamSubscriber> porEquipo(EnumModulo modulo, Long idEquipo)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : buscar(indice.equipos, idEquipo);
+    }
+
+    public Collection<StreamSubscriber> porEjercicio(EnumModulo modulo, Long idEjercicio)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : buscar(indice.ejercicios, idEjercicio);
+    }
+
+    public Collection<StreamSubscriber> porUnidad(EnumModulo modulo, Long idUnidad)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : buscar(indice.unidades, idUnidad);
+    }
+
+    public Collection<StreamSubscriber> porUnidades(EnumModulo modulo, Collection<Long> idsUnidad)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptyList() : unir(indice.unidades, idsUnidad);
+    }
+
+    public Collection<StreamSubscriber> porUnidadJdn(EnumModulo modulo, Long idUnidadJdn)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : buscar(indice.unidadesJdn, idUnidadJdn);
+    }
+
+    public Collection<StreamSubscriber> porUsuario(EnumModulo modulo, Long idPerfilUsuario)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : buscar(indice.usuarios, idPerfilUsuario);
+    }
+
+    public Collection<StreamSubscriber> porUsuarios(EnumModulo modulo, Collection<Long> idsPerfilUsuario)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptyList() : unir(indice.usuarios, idsPerfilUsuario);
+    }
+
+    /**
+     * Destinatarios de la audiencia en el modulo. Cada criterio simple es una busqueda en su indice, una combinacion
+     * {@code O} es la union sin repetidos de sus partes y una {@code Y} recorre solo la parte con menos suscriptores
+     * estimados, filtrandola con el resto de los criterios.
+     * @param modulo
+     * @param audiencia
+     * @return
+     */
+    public Collection<StreamSubscriber> porAudiencia(EnumModulo modulo, StreamAudience audiencia)
+    {
+        IndiceModulo indice = modulos.get(modulo);
+        return indice == null ? Collections.emptySet() : resolver(indice, audiencia);
+    }
+
+    /**
+     * @return suscriptores de todos los modulos
+     */
+    public List<StreamSubscriber> todos()
+    {
+        List<StreamSubscriber> resultado = new ArrayList<>();
+        for (IndiceModulo indice : modulos.values())
+        {
+            resultado.addAll(indice.todos);
+        }
+        return resultado;
+    }
+
+    /**
+     * Suscriptores de la sesion en todos los modulos.
+     * @param idClientSession
+     * @return
+     */
+    public List<StreamSubscriber> porSesion(Long idClientSession)
+    {
+        List<StreamSubscriber> resultado = new ArrayList<>();
+        for (IndiceModulo indice : modulos.values())
+        {
+            resultado.addAll(buscar(indice.sesiones, idClientSession));
+        }
+        return resultado;
+    }
+
+    /**
+     * Suscriptores de cualquiera de las sesiones en todos los modulos.
+     * @param idsClientSession
+     * @return
+     */
+    public List<StreamSubscriber> porSesiones(Collection<Long> idsClientSession)
+    {
+        List<StreamSubscriber> resultado = new ArrayList<>();
+        for (IndiceModulo indice : modulos.values())
+        {
+            resultado.addAll(unir(indice.sesiones, idsClientSession));
+        }
+        return resultado;
+    }
+
+    /**
+     * @return modulos que tuvieron clientes registrados
+     */
+    public Set<EnumModulo> modulos()
+    {
+        return modulos.keySet();
+    }
+
+    /**
+     * Cantidad de clientes conectados por perfil de usuario en el modulo.
+     * @param modulo
+     * @return
+     */
+    public Map<Long, Integer> conexionesPorUsuario(EnumModulo modulo)
+    {
+        Map<Long, Integer> conexiones = new HashMap<>();
+        IndiceModulo indice = modulos.get(modulo);
+        if (indice != null)
+        {
+            indice.usuarios.forEach((id, suscriptores) -> conexiones.put(id, suscriptores.size()));
+        }
+        return conexiones;
+    }
+
+    public int size()
+    {
+        int total = 0;
+        for (IndiceModulo indice : modulos.values())
+        {
+            total += indice.todos.size();
+        }
+        return total;
+    }
+
+    private static void agregar(Map<Long, Set<StreamSubscriber>> indice, Long id, StreamSubscriber subscriber)
+    {
+        if (id == null)
+        {
+            return;
+        }
+        indice.compute(id, (k, suscriptores) -> {
+            Set<StreamSubscriber> set = suscriptores == null ? ConcurrentHashMap.newKeySet() : suscriptores;
+            set.add(subscriber);
+            return set;
+        });
+    }
+
+    private static void quitar(Map<Long, Set<StreamSubscriber>> indice, Long id, StreamSubscriber subscriber)
+    {
+        if (id == null)
+        {
+            return;
+        }
+        indice.computeIfPresent(id, (k, suscriptores) -> {
+            suscriptores.remove(subscriber);
+            return suscriptores.isEmpty() ? null : suscriptores;
+        });
+    }
+
+    private static Set<StreamSubscriber> buscar(Map<Long, Set<StreamSubscriber>> indice, Long id)
+    {
+        if (id == null)
+        {
+            return Collections.emptySet();
+        }
+        return indice.getOrDefault(id, Collections.emptySet());
+    }
+
+    private static List<StreamSubscriber> unir(Map<Long, Set<StreamSubscriber>> indice, Collection<Long> ids)
+    {
+        List<StreamSubscriber> resultado = new ArrayList<>();
+        if (ids == null)
+        {
+            return resultado;
+        }
+        for (Long id : new LinkedHashSet<>(ids))
+        {
+            resultado.addAll(buscar(indice, id));
+        }
+        return resultado;
+    }
+
+    private static Collection<StreamSubscriber> resolver(IndiceModulo indice, StreamAudience audiencia)
+    {
+        switch (audiencia.getCriterio())
+        {
+            case TODOS:
+                return indice.todos;
+            case O:
+                Set<StreamSubscriber> union = new LinkedHashSet<>();
+                for (StreamAudience parte : audiencia.getPartes())
+                {
+                    union.addAll(resolver(indice, parte));
+                }
+                return union;
+            case Y:
+                StreamAudience guia = null;
+                int menor = Integer.MAX_VALUE;
+                for (StreamAudience parte : audiencia.getPartes())
+                {
+                    int estimado = estimar(indice, parte);
+                    if (estimado < menor)
+                    {
+                        guia = parte;
+                        menor = estimado;
+                    }
+                }
+                List<StreamSubscriber> resultado = new ArrayList<>();
+                if (guia == null || menor == 0)
+                {
+                    return resultado;
+                }
+                for (StreamSubscriber subscriber : resolver(indice, guia))
+                {
+                    if (audiencia.test(subscriber))
+                    {
+                        resultado.add(subscriber);
+                    }
+                }
+                return resultado;
+            default:
+                Map<Long, Set<StreamSubscriber>> porId = indice.de(audiencia.getCriterio());
+                List<Long> ids = audiencia.getIds();
+                return ids.size() == 1 ? buscar(porId, ids.get(0)) : unir(porId, ids);
+        }
+    }
+
+    /**
+     * Cota superior de la cantidad de suscriptores de la audiencia, sumando el tamano de los conjuntos del indice sin
+     * recorrerlos.
+     */
+    private static int estimar(IndiceModulo indice, StreamAudience audiencia)
+    {
+        switch (audiencia.getCriterio())
+        {
+            case TODOS:
+                return indice.todos.size();
+            case O:
+                long suma = 0;
+                for (StreamAudience parte : audiencia.getPartes())
+                {
+                    suma += estimar(indice, parte);
+                }
+                return (int) Math.min(Integer.MAX_VALUE, suma);
+            case Y:
+                int menor = Integer.MAX_VALUE;
+                for (StreamAudience parte : audiencia.getPartes())
+                {
+                    menor = Math.min(menor, estimar(indice, parte));
+                }
+                return menor;
+            default:
+                Map<Long, Set<StreamSubscriber>> porId = indice.de(audiencia.getCriterio());
+                long total = 0;
+                for (Long id : audiencia.getIds())
+                {
+                    total += buscar(porId, id).size();
+                }
+                return (int) Math.min(Integer.MAX_VALUE, total);
+        }
+    }
+
+    private static final class IndiceModulo
+    {
+        private final Set<StreamSubscriber> todos = ConcurrentHashMap.newKeySet();
+
+        private final Map<Long, Set<StreamSubscriber>> equipos = new ConcurrentHashMap<>();
+
+        private final Map<Long, Set<StreamSubscriber>> ejercicios = new ConcurrentHashMap<>();
+
+        private final Map<Long, Set<StreamSubscriber>> unidades = new ConcurrentHashMap<>();
+
+        private final Map<Long, Set<StreamSubscriber>> unidadesJdn = new ConcurrentHashMap<>();
+
+        private final Map<Long, Set<StreamSubscriber>> usuarios = new ConcurrentHashMap<>();
+
+        private final Map<Long, Set<StreamSubscriber>> sesiones = new ConcurrentHashMap<>();
+
+        private Map<Long, Set<StreamSubscriber>> de(StreamAudience.Criterio criterio)
+        {
+            switch (criterio)
+            {
+                case EJERCICIO:
+                    return ejercicios;
+                case EQUIPO:
+                    return equipos;
+                case UNIDAD:
+                    return unidades;
+                case UNIDAD_JDN:
+                    return unidadesJdn;
+                case USUARIO:
+                    return usuarios;
+                default:
+                    throw new IllegalArgumentException("Criterio sin indice: " + criterio);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package backend.core.lib.commons.stream;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Directorio replicado de conexiones de usuarios en el cluster: por modulo y usuario, los destinos JMS de las
+ * instancias donde el usuario tiene clientes conectados. Se arma con los eventos de conexion y desconexion y con las
+ * fotos periodicas que publica cada instancia; los destinos que dejan de enviar fotos se consideran caidos.
+ * <p>
+ * Mientras el directorio no esta caliente (no paso un ciclo completo de fotos desde el arranque) no se puede saber si
+ * un usuario esta conectado en otra instancia, y quien lo use debe recurrir al envio por topico a todas.
+ */
+@Slf4j
+public class StreamClusterDirectory
+{
+
+    private final long calentamientoMillis;
+
+    private final long expiracionMillis;
+
+    private final long inicio = System.currentTimeMillis();
+
+    /**
+     * modulo -> usuario -> destino -> cantidad de conexiones
+     */
+    private final Map<EnumModulo, Map<Long, Map<String, Integer>>> modulos = new ConcurrentHashMap<>();
+
+    /**
+     * destino -> ultima vez que se recibio algo de el
+     */
+    private final Map<String, Long> vistos = new ConcurrentHashMap<>();
+
+    /**
+     * @param refrescoMillis
+     *            intervalo con que cada instancia publica su foto
+     */
+    public StreamClusterDirectory(long refrescoMillis)
+    {
+        this.calentamientoMillis = refrescoMillis + refrescoMillis / 2;
+        this.expiracionMillis = refrescoMillis * 3;
+    }
+
+    /**
+     * @return tiempo sin fotos tras el cual se descarta un destino
+     */
+    public long getExpiracionMillis()
+    {
+        return expiracionMillis;
+    }
+
+    public void apply(StreamDirectoryMessage mensaje)
+    {
+        if (mensaje.getDestino() == null || mensaje.getModulo() == null)
+        {
+            return;
+        }
+        vistos.put(mensaje.getDestino(), System.currentTimeMillis());
+        Map<Long, Map<String, Integer>> usuarios = modulos.computeIfAbsent(mensaje.getModulo(),
+                m -> new ConcurrentHashMap<>());
+        if (mensaje.getUsuarios() != null)
+        {
+            reemplazar(usuarios, mensaje.getDestino(), mensaje.getUsuarios());
+        }
+        else if (mensaje.getIdPerfilUsuario() != null)
+        {
+            usuarios.compute(mensaje.getIdPerfilUsuario(), (id, destinos) -> {
+                Map<String, Integer> resultado = destinos == null ? new ConcurrentHashMap<>() : destinos;
+                resultado.merge(mensaje.getDestino(), mensaje.isConectado() ? 1 : -1, Integer::sum);
+                resultado.remove(mensaje.getDestino(), 0);
+                resultado.entrySet().removeIf(e -> e.getValue() < 0);
+                return resultado.isEmpty() ? null : resultado;
+            });
+        }
+    }
+
+    /**
+     * @return true si ya paso un ciclo completo de fotos desde el arranque
+     */
+    public boolean isCaliente()
+    {
+        return System.currentTimeMillis() - inicio >= calentamientoMillis;
+    }
+
+    /**
+     * Destinos con clientes conectados de alguno de los usuarios.
+     * @param modulo
+     * @param idsPerfilUsuario
+     * @return
+     */
+    public Set<String> destinos(EnumModulo modulo, Collection<Long> idsPerfilUsuario)
+    {
+        Map<Long, Map<String, Integer>> usuarios = modulos.get(modulo);
+        if (usuarios == null || idsPerfilUsuario == null)
+        {
+            return Collections.emptySet();
+        }
+        long limite = System.currentTimeMillis() - expiracionMillis;
+        Set<String> destinos = new HashSet<>();
+        for (Long id : idsPerfilUsuario)
+        {
+            Map<String, Integer> conexiones = id == null ? null : usuarios.get(id);
+            if (conexiones != null)
+            {
+                for (String destino : conexiones.keySet())
+                {
+                    if (vistos.getOrDefault(destino, 0L) >= limite)
+                    {
+                        destinos.add(destino);
+                    }
+                }
+            }
+        }
+        return destinos;
+    }
+
+    /**
+     * @param modulo
+     * @param idsPerfilUsuario
+     * @return true si todos los usuarios tienen conexiones en algun destino vigente del directorio
+     */
+    public boolean conocidos(EnumModulo modulo, Collection<Long> idsPerfilUsuario)
+    {
+        Map<Long, Map<String, Integer>> usuarios = modulos.get(modulo);
+        if (usuarios == null || idsPerfilUsuario == null)
+        {
+            return false;
+        }
+        long limite = System.currentTimeMillis() - expiracionMillis;
+        for (Long id : idsPerfilUsuario)
+        {
+            Map<String, Integer> conexiones = id == null ? null : usuarios.get(id);
+            if (conexiones == null
+                    || conexiones.keySet().stream().noneMatch(d -> vistos.getOrDefault(d, 0L) >= limite))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Conexiones del usuario en los destinos vigentes, sin contar uno.
+     * @param modulo
+     * @param idPerfilUsuario
+     * @param excluir
+     *            destino a no contar, normalmente el de esta instancia
+     * @return
+     */
+    public int conexiones(EnumModulo modulo, Long idPerfilUsuario, String excluir)
+    {
+        Map<Long, Map<String, Integer>> usuarios = modulos.get(modulo);
+        Map<String, Integer> conexiones = usuarios == null || idPerfilUsuario == null ? null
+                : usuarios.get(idPerfilUsuario);
+        if (conexiones == null)
+        {
+            return 0;
+        }
+        long limite = System.currentTimeMillis() - expiracionMillis;
+        int total = 0;
+        for (Map.Entry<String, Integer> conexion : conexiones.entrySet())
+        {
+            if (!conexion.getKey().equals(excluir) && vistos.getOrDefault(conexion.getKey(), 0L) >= limite)
+            {
+                total += conexion.getValue();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Quita los destinos que no enviaron fotos en el tiempo de expiracion.
+     * @return usuarios por modulo que tenian conexiones en los destinos quitados
+     */
+    public Map<EnumModulo, Set<Long>> purgar()
+    {
+        long limite = System.currentTimeMillis() - expiracionMillis;
+        Map<EnumModulo, Set<Long>> afectados = new HashMap<>();
+        vistos.entrySet().removeIf(e -> {
+            if (e.getValue() >= limite)
+            {
+                return false;
+            }
+            log.info("[STREAM] Se quita del directorio el destino {} por falta de actualizaciones", e.getKey());
+            modulos.forEach((modulo, usuarios) -> {
+                usuarios.forEach((id, destinos) -> {
+                    if (destinos.containsKey(e.getKey()))
+                        afectados.computeIfAbsent(modulo, m -> new HashSet<>()).add(id);
+                });
+                reemplazar(usuarios, e.getKey(), Collections.emptyMap());
+            });
+            return true;
+        });
+        return afectados;
+    }
+
+    private static void reemplazar(Map<Long, Map<String, Integer>> usuarios, String destino,
+            Map<Long, Integer> conexiones)
+    {
+        for (Long id : usuarios.keySet())
+        {
+            if (!conexiones.containsKey(id))
+            {
+                usuarios.computeIfPresent(id, (k, destinos) -> {
+                    destinos.remove(destino);
+                    return destinos.isEmpty() ? null : destinos;
+                });
+            }
+        }
+        conexiones.forEach((id, cantidad) -> {
+            if (cantidad != null && cantidad > 0)
+            {
+                usuarios.computeIfAbsent(id, k -> new ConcurrentHashMap<>()).put(destino, cantidad);
+            }
+        });
+    }
+}
@@ -0,0 +1,289 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ejecutor dedicado al envio de mensajes stream. Reemplaza el uso de {@code parallelStream()} sobre el ForkJoinPool
+ * comun, donde las escrituras bloqueantes a los sockets competian con el resto de la aplicacion.
+ * <p>
+ * Usa hilos virtuales cuando la JVM los soporta y se solicitan, o en su defecto un pool acotado de hilos de plataforma.
+ * Bajo el umbral de destinatarios el envio se hace de forma secuencial en el hilo que llama.
+ * <p>
+ * Las tareas de {@link #execute(Runnable)} (los escritores de los suscriptores) nunca corren en el hilo que llama: con
+ * el ejecutor saturado quedan diferidas y las toma el primer hilo que se libere. Cada suscriptor tiene a lo sumo un
+ * escritor, por lo que las diferidas estan acotadas por la cantidad de conexiones, y mientras esperan la cola de salida
+ * de cada cliente sigue aplicando su politica.
+ */
+@Slf4j
+public class StreamDeliveryExecutor
+{
+
+    private final ExecutorService executor;
+
+    private final boolean virtual;
+
+    private final int parallelThreshold;
+
+    /**
+     * Tramos en que se reparte un {@link #forEach}: los hilos del pool, o los procesadores con hilos virtuales.
+     */
+    private final int paralelismo;
+
+    /**
+     * Cantidad maxima de escritores en curso. Para hilos virtuales acota la concurrencia, para el pool de plataforma es
+     * el tamano de la cola.
+     */
+    private final int capacity;
+
+    private final Semaphore inFlight;
+
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    private final Queue<Runnable> diferidas = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong totalDiferidas = new AtomicLong();
+
+    public StreamDeliveryExecutor(boolean useVirtualThreads, int poolSize, int capacity, int parallelThreshold)
+    {
+        this.parallelThreshold = Math.max(1, parallelThreshold);
+        this.capacity = Math.max(1, capacity);
+        this.inFlight = new Semaphore(this.capacity);
+        ExecutorService virtualExecutor = useVirtualThreads ? newVirtualExecutor() : null;
+        if (virtualExecutor != null)
+        {
+            this.executor = virtualExecutor;
+            this.virtual = true;
+            this.paralelismo = Runtime.getRuntime().availableProcessors();
+        }
+        else
+        {
+            int threads = Math.max(1, poolSize);
+            this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(this.capacity), new DeliveryThreadFactory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            ((ThreadPoolExecutor) this.executor).allowCoreThreadTimeOut(true);
+            this.virtual = false;
+            this.paralelismo = threads;
+        }
+        log.info("[STREAM] Ejecutor de envio con {} capacidad:{} umbral paralelo:{}",
+                virtual ? "hilos virtuales" : "pool de " + poolSize + " hilos", this.capacity, this.parallelThreshold);
+    }
+
+    /**
+     * Aplica la accion a todos los destinatarios y espera a que termine. La accion es barata (encolar en la cola de
+     * salida de cada cliente), por lo que los destinatarios se reparten en tramos de al menos el umbral, uno por tarea
+     * y a lo sumo uno por hilo disponible; el ultimo tramo lo recorre el hilo que llama. Estas tareas no ocupan los
+     * permisos de los escritores. Si el ejecutor esta saturado el tramo se recorre en el hilo que llama, frenando al
+     * productor en vez de acumular trabajo.
+     * @param <T>
+     * @param destinatarios
+     * @param accion
+     */
+    public <T> void forEach(Collection<T> destinatarios, Consumer<T> accion)
+    {
+        int total = destinatarios.size();
+        if (total < parallelThreshold)
+        {
+            destinatarios.forEach(accion);
+            return;
+        }
+        List<T> lista = destinatarios instanceof List ? (List<T>) destinatarios : new ArrayList<>(destinatarios);
+        int tramo = Math.max(parallelThreshold, (total + paralelismo - 1) / paralelismo);
+        List<CompletableFuture<Void>> pendientes = new ArrayList<>(total / tramo + 1);
+        int desde = 0;
+        for (; desde + tramo < total; desde += tramo)
+        {
+            List<T> parte = lista.subList(desde, desde + tramo);
+            CompletableFuture<Void> future = submit(() -> parte.forEach(accion));
+            if (future != null)
+            {
+                pendientes.add(future);
+            }
+        }
+        lista.subList(desde, total).forEach(accion);
+        CompletableFuture.allOf(pendientes.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * Ejecuta la tarea en forma asincronica. Si el ejecutor esta saturado queda diferida hasta que se libere un hilo,
+     * nunca se ejecuta en el hilo que llama.
+     * @param tarea
+     */
+    public void execute(Runnable tarea)
+    {
+        if (!inFlight.tryAcquire())
+        {
+            diferidas.add(tarea);
+            totalDiferidas.incrementAndGet();
+            reintentar();
+            return;
+        }
+        lanzar(tarea);
+    }
+
+    /**
+     * Lanza la tarea con un permiso ya tomado. Al terminar, el mismo hilo sigue con las diferidas.
+     */
+    private void lanzar(Runnable tarea)
+    {
+        try
+        {
+            executor.execute(() -> correr(tarea));
+        }
+        catch (RejectedExecutionException e)
+        {
+            inFlight.release();
+            log.warn("[STREAM] Ejecutor de envio detenido, se descarta una tarea");
+        }
+    }
+
+    private void correr(Runnable tarea)
+    {
+        Runnable actual = tarea;
+        while (actual != null)
+        {
+            try
+            {
+                actual.run();
+            }
+            catch (RuntimeException e)
+            {
+                log.error("[STREAM] Problema en una tarea de envio", e);
+            }
+            actual = diferidas.poll();
+        }
+        inFlight.release();
+        // Una tarea diferida entre el ultimo poll y el release no encontro permiso: se lanza aca
+        reintentar();
+    }
+
+    private void reintentar()
+    {
+        while (!diferidas.isEmpty() && inFlight.tryAcquire())
+        {
+            Runnable tarea = diferidas.poll();
+            if (tarea == null)
+            {
+                inFlight.release();
+            }
+            else
+            {
+                lanzar(tarea);
+            }
+        }
+    }
+
+    /**
+     * Envia un tramo de {@link #forEach} al ejecutor. Devuelve null si se ejecuto en el hilo que llama.
+     * @param tarea
+     * @return
+     */
+    private CompletableFuture<Void> submit(Runnable tarea)
+    {
+        try
+        {
+            return CompletableFuture.runAsync(tarea, executor);
+        }
+        catch (RejectedExecutionException e)
+        {
+            callerRuns.incrementAndGet();
+            tarea.run();
+            return null;
+        }
+    }
+
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * @return escritores en curso o en cola
+     */
+    public int getInFlight()
+    {
+        return capacity - inFlight.availablePermits();
+    }
+
+    /**
+     * @return fraccion de la capacidad ocupada, entre 0 y 1
+     */
+    public double getSaturation()
+    {
+        return (double) getInFlight() / capacity;
+    }
+
+    /**
+     * @return escritores esperando un hilo por saturacion del ejecutor
+     */
+    public int getDiferidas()
+    {
+        return diferidas.size();
+    }
+
+    /**
+     * @return cantidad de escritores que tuvieron que esperar un hilo por saturacion del ejecutor
+     */
+    public long getTotalDiferidas()
+    {
+        return totalDiferidas.get();
+    }
+
+    /**
+     * @return cantidad de tramos de {@link #forEach} que se ejecutaron en el hilo que llama por saturacion del
+     *         ejecutor
+     */
+    public long getCallerRuns()
+    {
+        return callerRuns.get();
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private static ExecutorService newVirtualExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            log.warn("[STREAM] La JVM no soporta hilos virtuales, se usa un pool de hilos de plataforma");
+            return null;
+        }
+    }
+
+    private static final class DeliveryThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "stream-delivery-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Envio de deltas para los UPDATE de las clases registradas con {@code AbstractEventService.delta}. Por cada
+ * (ambito, entidad) recuerda el ultimo objeto enviado y su version, y arma para el siguiente UPDATE un parche
+ * RFC 6902 contra esa version junto con el objeto completo.
+ * <p>
+ * El campo {@code data} de los mensajes de estas clases es {@code {"version":n,"full":objeto}} o
+ * {@code {"version":n,"base":m,"patch":[...]}}. El escritor de cada cliente elige al enviar: el parche si la ultima
+ * version que le escribio de la entidad es la base, el completo si es nuevo o quedo atrasado (por un mensaje
+ * descartado o conflacionado). Las versiones son unicas en la instancia, por lo que una version vieja nunca coincide
+ * con la base de una entidad recreada.
+ * <p>
+ * La version se asigna aca pero el frame se encola despues, fuera del lock, por lo que dos UPDATE concurrentes de una
+ * entidad pueden llegar invertidos a un cliente: su escritor descarta el de version menor a la ultima que escribio.
+ */
+public class StreamDeltaTracker
+{
+
+    private final ObjectMapper mapper;
+
+    private final Map<String, Estado> estados;
+
+    private long version;
+
+    /**
+     * @param mapper
+     * @param maxEntidades
+     *            entidades recordadas, las menos usadas se olvidan y su siguiente UPDATE va completo
+     */
+    public StreamDeltaTracker(ObjectMapper mapper, int maxEntidades)
+    {
+        this.mapper = mapper;
+        int maximo = Math.max(1, maxEntidades);
+        this.estados = new LinkedHashMap<String, Estado>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Estado> eldest)
+            {
+                return size() > maximo;
+            }
+        };
+    }
+
+    /**
+     * @param ambito
+     *            destinatarios del mensaje (equipo, ejercicio, unidades...)
+     * @param entidad
+     * @param msg
+     *            mensaje con el objeto completo en {@code data}
+     * @return frame a encolar, con la informacion de version para el escritor de cada cliente
+     * @throws IOException
+     */
+    public SseFrame frame(String ambito, StreamEntityKey entidad, MessageSendToClient msg) throws IOException
+    {
+        String clave = ambito + "|" + entidad.getClave();
+        Object conflacion = entidad.getClaveConflacion();
+        if (EnumOperacion.DELETE.equals(msg.getOperacion()))
+        {
+            synchronized (estados)
+            {
+                estados.remove(clave);
+            }
+            return SseFrame.of(mapper, msg, conflacion).withDelta(clave, 0, 0, null);
+        }
+        if (!EnumOperacion.UPDATE.equals(msg.getOperacion()) && !EnumOperacion.CREATE.equals(msg.getOperacion()))
+        {
+            return SseFrame.of(mapper, msg, conflacion);
+        }
+
+        JsonNode nuevo = mapper.readTree(msg.getData());
+        long actual;
+        Estado anterior;
+        synchronized (estados)
+        {
+            actual = ++version;
+            anterior = estados.put(clave, new Estado(actual, nuevo));
+        }
+        ObjectNode full = mapper.createObjectNode();
+        full.put("version", actual);
+        full.set("full", nuevo);
+        SseFrame completo = SseFrame.of(mapper, copia(msg, mapper.writeValueAsString(full)), conflacion);
+        if (anterior == null || EnumOperacion.CREATE.equals(msg.getOperacion()))
+        {
+            return completo.withDelta(clave, actual, 0, null);
+        }
+
+        ObjectNode delta = mapper.createObjectNode();
+        delta.put("version", actual);
+        delta.put("base", anterior.version);
+        delta.set("patch", diff(anterior.json, nuevo));
+        SseFrame parche = SseFrame.of(mapper, copia(msg, mapper.writeValueAsString(delta)), conflacion);
+        if (parche.getPayload().length >= completo.getPayload().length)
+        {
+            return completo.withDelta(clave, actual, 0, null);
+        }
+        return parche.withDelta(clave, actual, anterior.version, completo);
+    }
+
+    public int size()
+    {
+        synchronized (estados)
+        {
+            return estados.size();
+        }
+    }
+
+    private static MessageSendToClient copia(MessageSendToClient msg, String data)
+    {
+        return MessageSendToClient.builder().modulo(msg.getModulo()).operacion(msg.getOperacion())
+                .clazz(msg.getClazz()).data(data).build();
+    }
+
+    /**
+     * Parche RFC 6902 que lleva de {@code origen} a {@code destino}. Recorre los objetos campo a campo; los arreglos y
+     * valores distintos se reemplazan enteros.
+     */
+    ArrayNode diff(JsonNode origen, JsonNode destino)
+    {
+        ArrayNode operaciones = mapper.createArrayNode();
+        diff("", origen, destino, operaciones);
+        return operaciones;
+    }
+
+    private void diff(String path, JsonNode origen, JsonNode destino, ArrayNode operaciones)
+    {
+        if (origen.equals(destino))
+        {
+            return;
+        }
+        if (!origen.isObject() || !destino.isObject())
+        {
+            operaciones.addObject().put("op", "replace").put("path", path).set("value", destino);
+            return;
+        }
+        for (Iterator<String> it = origen.fieldNames(); it.hasNext();)
+        {
+            String campo = it.next();
+            if (!destino.has(campo))
+            {
+                operaciones.addObject().put("op", "remove").put("path", path + "/" + escapar(campo));
+            }
+        }
+        for (Iterator<Map.Entry<String, JsonNode>> it = destino.fields(); it.hasNext();)
+        {
+            Map.Entry<String, JsonNode> campo = it.next();
+            String hijo = path + "/" + escapar(campo.getKey());
+            JsonNode valor = origen.get(campo.getKey());
+            if (valor == null)
+            {
+                operaciones.addObject().put("op", "add").put("path", hijo).set("value", campo.getValue());
+            }
+            else
+            {
+                diff(hijo, valor, campo.getValue(), operaciones);
+            }
+        }
+    }
+
+    /**
+     * Escape de JSON Pointer (RFC 6901).
+     */
+    private static String escapar(String campo)
+    {
+        return campo.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static final class Estado
+    {
+        private final long version;
+
+        private final JsonNode json;
+
+        private Estado(long version, JsonNode json)
+        {
+            this.version = version;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package backend.core.lib.commons.stream;
+
+import java.util.Map;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Foto del estado de un servicio stream, para pruebas de carga y soak: comparando las fotos de varias instancias se
+ * puede ver si los mensajes llegaron a todas y si la lista de emitters crece sin que crezcan los registrados.
+ */
+@Data
+@NoArgsConstructor
+public class StreamDiagnostico
+{
+    private Long instance;
+
+    private String destino;
+
+    /**
+     * Tamano de la lista de emitters. Solo contiene clientes SSE: si difiere de {@link #registradosSse} hay emitters
+     * que no se limpiaron.
+     */
+    private int emitters;
+
+    private int registrados;
+
+    /**
+     * Suscriptores indexados por transporte. Suman {@link #registrados}.
+     */
+    private int registradosSse;
+
+    private int registradosReactivos;
+
+    private int registradosWebSocket;
+
+    private int enHeartbeat;
+
+    private int eventosReplay;
+
+    /**
+     * Mensajes de replicacion publicados por esta instancia.
+     */
+    private long publicadosJms;
+
+    /**
+     * Mensajes de replicacion que no se pudieron publicar.
+     */
+    private long fallidosJms;
+
+    /**
+     * Lotes de replicacion esperando un hilo de envio.
+     */
+    private int pendientesPublicacionJms;
+
+    /**
+     * Mensajes replicados por otras instancias aplicados en esta.
+     */
+    private long aplicadosJms;
+
+    /**
+     * Totales de las colas de salida de los clientes conectados.
+     */
+    private long encolados;
+
+    private long enviados;
+
+    private long descartados;
+
+    private long conflacionados;
+
+    private int pendientes;
+
+    private int enviosEnCurso;
+
+    private int enviosPrioritariosEnCurso;
+
+    private Map<String, Integer> backlogJms;
+
+    /**
+     * Usuarios esperando el fin de la ventana de gracia de presencia.
+     */
+    private int presenciasPendientes;
+
+    private long presenciasPublicadas;
+
+    /**
+     * @return true si la lista de emitters o el heartbeat retienen clientes que ya no estan indexados. El heartbeat
+     *         puede tener menos, no incluye los modulos sin heartbeat.
+     */
+    public boolean isPerdidas()
+    {
+        return emitters != registradosSse || enHeartbeat > registrados;
+    }
+}
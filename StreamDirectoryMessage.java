@@ -0,0 +1,37 @@
+package backend.core.lib.commons.stream;
+
+import java.util.Map;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Mensaje de replicacion del directorio de conexiones. Informa que usuarios estan conectados a que destino JMS (una
+ * instancia de un servicio stream), ya sea como cambio individual o como foto completa de un modulo.
+ */
+@Data
+@NoArgsConstructor
+public class StreamDirectoryMessage
+{
+    public static final String TIPO = "DIRECTORIO";
+
+    private String tipo = TIPO;
+
+    private Long instance;
+
+    /**
+     * Cola directa del servicio que tiene la conexion.
+     */
+    private String destino;
+
+    private EnumModulo modulo;
+
+    private Long idPerfilUsuario;
+
+    private boolean conectado;
+
+    /**
+     * Foto completa de conexiones por usuario del modulo en el destino, null en los cambios individuales.
+     */
+    private Map<Long, Integer> usuarios;
+}
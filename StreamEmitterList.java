@@ -0,0 +1,92 @@
+package backend.core.lib.commons.stream;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Vista como {@link List} del conjunto de emitters SSE de {@link AbstractEventService}, para las subclases que usan
+ * {@code emitters} como lista. Agregar, quitar, buscar y recorrer van directo al conjunto; el acceso por indice recorre
+ * el conjunto y el orden es el de iteracion del conjunto, no el de conexion.
+ */
+final class StreamEmitterList extends AbstractList<MarteSseClient>
+{
+
+    private final Set<MarteSseClient> emitters;
+
+    StreamEmitterList(Set<MarteSseClient> emitters)
+    {
+        this.emitters = emitters;
+    }
+
+    @Override
+    public MarteSseClient get(int index)
+    {
+        if (index >= 0)
+        {
+            int i = 0;
+            for (MarteSseClient emitter : emitters)
+            {
+                if (i++ == index)
+                {
+                    return emitter;
+                }
+            }
+        }
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + emitters.size());
+    }
+
+    @Override
+    public int size()
+    {
+        return emitters.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return emitters.isEmpty();
+    }
+
+    /**
+     * El indice se ignora, el conjunto no tiene orden.
+     */
+    @Override
+    public void add(int index, MarteSseClient emitter)
+    {
+        emitters.add(emitter);
+    }
+
+    @Override
+    public MarteSseClient remove(int index)
+    {
+        MarteSseClient emitter = get(index);
+        emitters.remove(emitter);
+        return emitter;
+    }
+
+    @Override
+    public boolean remove(Object emitter)
+    {
+        return emitters.remove(emitter);
+    }
+
+    @Override
+    public boolean contains(Object emitter)
+    {
+        return emitters.contains(emitter);
+    }
+
+    @Override
+    public void clear()
+    {
+        emitters.clear();
+    }
+
+    @Override
+    public Iterator<MarteSseClient> iterator()
+    {
+        return emitters.iterator();
+    }
+}
@@ -0,0 +1,173 @@
+package backend.core.lib.commons.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Codificacion negociada por un cliente stream: formato y compresion gzip opcional para los payloads que superan el
+ * umbral. Se negocia con valores {@code json}, {@code cbor}, {@code json+gzip} o {@code cbor+gzip}.
+ * <p>
+ * Todo lo que no es JSON sin comprimir es binario y por WebSocket viaja en frames binarios. Por SSE, que es texto, solo
+ * los payloads comprimidos viajan en base64; los que quedan bajo el umbral se envian como el JSON original, ya que un
+ * CBOR en base64 ocupa mas que el JSON. El cliente los distingue por el primer caracter, '{' nunca aparece en base64,
+ * y reconoce el gzip por su encabezado (0x1f 0x8b).
+ * <p>
+ * Se codifica con el {@link ObjectMapper} de la aplicacion y un mapper CBOR copiado de el, de modo que todos los
+ * formatos usan la misma configuracion.
+ */
+@Getter
+public final class StreamEncoding
+{
+
+    /**
+     * JSON sin comprimir, nunca se recodifica por lo que no usa mappers.
+     */
+    public static final StreamEncoding JSON = new StreamEncoding(EnumStreamCodec.JSON, false, 0, null, null);
+
+    private final EnumStreamCodec codec;
+
+    private final boolean gzip;
+
+    private final int umbralGzip;
+
+    @Getter(AccessLevel.NONE)
+    private final ObjectMapper jsonMapper;
+
+    @Getter(AccessLevel.NONE)
+    private final ObjectMapper cborMapper;
+
+    private StreamEncoding(EnumStreamCodec codec, boolean gzip, int umbralGzip, ObjectMapper jsonMapper,
+            ObjectMapper cborMapper)
+    {
+        this.codec = codec;
+        this.gzip = gzip;
+        this.umbralGzip = umbralGzip;
+        this.jsonMapper = jsonMapper;
+        this.cborMapper = cborMapper;
+    }
+
+    /**
+     * Mapper CBOR con la configuracion del de la aplicacion, para pasarlo a {@link #of}.
+     * @param mapper
+     *            ObjectMapper del contexto
+     * @return
+     */
+    public static ObjectMapper cbor(ObjectMapper mapper)
+    {
+        return mapper.copyWith(new CBORFactory());
+    }
+
+    /**
+     * @param valor
+     *            codificacion pedida por el cliente, null o desconocida para JSON
+     * @param umbralGzip
+     *            bytes a partir de los cuales se comprime
+     * @param jsonMapper
+     *            ObjectMapper del contexto
+     * @param cborMapper
+     *            mapper creado con {@link #cbor(ObjectMapper)}
+     * @return
+     */
+    public static StreamEncoding of(String valor, int umbralGzip, ObjectMapper jsonMapper, ObjectMapper cborMapper)
+    {
+        if (valor == null || valor.isEmpty())
+        {
+            return JSON;
+        }
+        String normalizado = valor.trim().toLowerCase(Locale.ROOT);
+        boolean gzip = normalizado.endsWith("+gzip");
+        EnumStreamCodec codec = normalizado.startsWith("cbor") ? EnumStreamCodec.CBOR : EnumStreamCodec.JSON;
+        if (codec == EnumStreamCodec.JSON && !gzip)
+        {
+            return JSON;
+        }
+        return new StreamEncoding(codec, gzip, umbralGzip, jsonMapper, cborMapper);
+    }
+
+    /**
+     * @return true si el payload es el JSON original en texto
+     */
+    public boolean isTexto()
+    {
+        return codec == EnumStreamCodec.JSON && !gzip;
+    }
+
+    /**
+     * @param codificado
+     *            payload en esta codificacion
+     * @return true si el payload quedo comprimido con gzip
+     */
+    public boolean isComprimido(byte[] codificado)
+    {
+        return gzip && codificado != null && codificado.length >= 2 && codificado[0] == (byte) 0x1f
+                && codificado[1] == (byte) 0x8b;
+    }
+
+    /**
+     * Posicion de la codificacion en la cache de {@link SseFrame}.
+     */
+    int indice()
+    {
+        return codec.ordinal() * 2 + (gzip ? 1 : 0);
+    }
+
+    static int cantidad()
+    {
+        return EnumStreamCodec.values().length * 2;
+    }
+
+    /**
+     * @param json
+     *            JSON del {@link MessageSendToClient}
+     * @return payload en esta codificacion
+     * @throws IOException
+     */
+    byte[] codificar(byte[] json) throws IOException
+    {
+        byte[] resultado = json;
+        if (codec == EnumStreamCodec.CBOR)
+        {
+            JsonNode nodo = jsonMapper.readTree(json);
+            JsonNode data = nodo.get("data");
+            if (data != null && data.isTextual() && nodo instanceof ObjectNode)
+            {
+                // data es el objeto ya serializado a JSON, en binario se envia como objeto
+                try
+                {
+                    ((ObjectNode) nodo).set("data", jsonMapper.readTree(data.textValue()));
+                }
+                catch (IOException e)
+                {
+                    // No era JSON, queda como string
+                }
+            }
+            resultado = cborMapper.writeValueAsBytes(nodo);
+        }
+        if (gzip && resultado.length >= umbralGzip)
+        {
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(resultado.length / 2 + 16);
+            try (GZIPOutputStream comprimido = new GZIPOutputStream(salida))
+            {
+                comprimido.write(resultado);
+            }
+            resultado = salida.toByteArray();
+        }
+        return resultado;
+    }
+
+    @Override
+    public String toString()
+    {
+        return codec.name().toLowerCase(Locale.ROOT) + (gzip ? "+gzip" : "");
+    }
+}
@@ -0,0 +1,47 @@
+package backend.core.lib.commons.stream;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.Getter;
+
+/**
+ * Entidad a la que se refiere un mensaje (modulo, clase, id) y que tratamientos por entidad corresponden: conflacion
+ * de UPDATE en la cola del cliente y envio de deltas. Viaja en {@link StreamAudienceMessage} para que la instancia que
+ * recibe la replicacion aplique los mismos tratamientos.
+ */
+@Getter
+public final class StreamEntityKey
+{
+
+    private final String clave;
+
+    private final boolean conflacion;
+
+    private final boolean delta;
+
+    @JsonCreator
+    public StreamEntityKey(@JsonProperty("clave") String clave, @JsonProperty("conflacion") boolean conflacion,
+            @JsonProperty("delta") boolean delta)
+    {
+        this.clave = clave;
+        this.conflacion = conflacion;
+        this.delta = delta;
+    }
+
+    /**
+     * @return clave para la conflacion, null si no corresponde
+     */
+    @JsonIgnore
+    public Object getClaveConflacion()
+    {
+        return conflacion ? clave : null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return clave;
+    }
+}
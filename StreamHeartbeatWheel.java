@@ -0,0 +1,241 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Heartbeat de los clientes stream sobre una rueda de tiempos (hashed timer wheel). Un unico hilo avanza la rueda un
+ * casillero por tick y atiende solo a los clientes que vencen en ese casillero, sin una tarea programada por cliente.
+ * <p>
+ * En cada vencimiento, si el cliente no recibio nada desde el anterior se le encola un comentario SSE de ping. Si
+ * tiene mensajes pendientes y no se pudo escribir ninguno desde el vencimiento anterior se cuenta como falla, y al
+ * llegar a {@code maxFallos} fallas seguidas la conexion se considera muerta y se cierra. Los errores de escritura del
+ * ping cierran la conexion en el escritor del suscriptor, igual que con cualquier otro mensaje.
+ * <p>
+ * El hilo de la rueda nunca escribe ni cierra conexiones: encola los pings y delega los cierres en
+ * {@link StreamSubscriber#desalojar(Throwable)}, de modo que un cliente trabado no demora al resto.
+ */
+@Slf4j
+public class StreamHeartbeatWheel
+{
+
+    private final long tickMillis;
+
+    private final ToLongFunction<EnumModulo> intervaloPorModulo;
+
+    private final int maxFallos;
+
+    private final StreamMetrics metricas;
+
+    private final List<Entrada>[] casilleros;
+
+    /**
+     * Altas pendientes de ubicar en la rueda. Solo el hilo de la rueda toca los casilleros.
+     */
+    private final Queue<Entrada> nuevas = new ConcurrentLinkedQueue<>();
+
+    private final Map<StreamSubscriber, Entrada> entradas = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong pings = new AtomicLong();
+
+    private final AtomicLong desalojados = new AtomicLong();
+
+    private long tick;
+
+    /**
+     * @param tickMillis
+     *            duracion de un casillero, precision del heartbeat
+     * @param casilleros
+     *            cantidad de casilleros de la rueda
+     * @param intervaloPorModulo
+     *            intervalo de heartbeat de cada modulo en milisegundos, 0 lo desactiva
+     * @param maxFallos
+     *            vencimientos seguidos sin poder escribir antes de cerrar la conexion
+     * @param metricas
+     */
+    @SuppressWarnings("unchecked")
+    public StreamHeartbeatWheel(long tickMillis, int casilleros, ToLongFunction<EnumModulo> intervaloPorModulo,
+            int maxFallos, StreamMetrics metricas)
+    {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.intervaloPorModulo = intervaloPorModulo;
+        this.maxFallos = Math.max(1, maxFallos);
+        this.metricas = metricas;
+        this.casilleros = new List[Math.max(1, casilleros)];
+        for (int i = 0; i < this.casilleros.length; i++)
+        {
+            this.casilleros[i] = new ArrayList<>();
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stream-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.scheduleAtFixedRate(this::avanzar, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(StreamSubscriber subscriber)
+    {
+        long intervalo = intervaloPorModulo.applyAsLong(subscriber.getModulo());
+        if (intervalo <= 0)
+        {
+            return;
+        }
+        Entrada entrada = new Entrada(subscriber, Math.max(1, (intervalo + tickMillis - 1) / tickMillis));
+        entradas.put(subscriber, entrada);
+        nuevas.add(entrada);
+    }
+
+    /**
+     * Saca al suscriptor de la rueda. La entrada se descarta cuando vuelve a vencer.
+     * @param subscriber
+     */
+    public void remove(StreamSubscriber subscriber)
+    {
+        Entrada entrada = entradas.remove(subscriber);
+        if (entrada != null)
+        {
+            entrada.cancelada = true;
+        }
+    }
+
+    public int size()
+    {
+        return entradas.size();
+    }
+
+    public long getPings()
+    {
+        return pings.get();
+    }
+
+    /**
+     * @return conexiones cerradas por no poder escribirles
+     */
+    public long getDesalojados()
+    {
+        return desalojados.get();
+    }
+
+    public void shutdown()
+    {
+        timer.shutdown();
+    }
+
+    private void avanzar()
+    {
+        try
+        {
+            tick++;
+            Entrada nueva;
+            while ((nueva = nuevas.poll()) != null)
+            {
+                ubicar(nueva);
+            }
+            List<Entrada> casillero = casilleros[(int) (tick % casilleros.length)];
+            List<Entrada> vencidas = new ArrayList<>();
+            for (Iterator<Entrada> it = casillero.iterator(); it.hasNext();)
+            {
+                Entrada entrada = it.next();
+                if (entrada.cancelada)
+                {
+                    it.remove();
+                }
+                else if (entrada.vence <= tick)
+                {
+                    it.remove();
+                    vencidas.add(entrada);
+                }
+            }
+            for (Entrada entrada : vencidas)
+            {
+                if (latir(entrada))
+                {
+                    ubicar(entrada);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.error("[STREAM] Problema en el heartbeat de clientes", e);
+        }
+    }
+
+    private void ubicar(Entrada entrada)
+    {
+        entrada.vence = tick + entrada.ticks;
+        casilleros[(int) (entrada.vence % casilleros.length)].add(entrada);
+    }
+
+    /**
+     * @return true si el cliente sigue en la rueda
+     */
+    private boolean latir(Entrada entrada)
+    {
+        StreamSubscriber subscriber = entrada.subscriber;
+        if (subscriber.isCerrado())
+        {
+            entradas.remove(subscriber, entrada);
+            return false;
+        }
+        long escrituras = subscriber.getEscrituras();
+        boolean avanzo = escrituras != entrada.escrituras;
+        entrada.escrituras = escrituras;
+        if (subscriber.getPendientes() > 0 && !avanzo)
+        {
+            if (++entrada.fallos >= maxFallos)
+            {
+                log.warn("[STREAM] Conexion sin respuesta, usuario {} modulo {} pendientes {}",
+                        subscriber.getIdPerfilUsuario(), subscriber.getModulo(), subscriber.getPendientes());
+                entradas.remove(subscriber, entrada);
+                desalojados.incrementAndGet();
+                metricas.desalojo(subscriber.getModulo(), "heartbeat");
+                // Se cierra en el ejecutor de cierres: el escritor trabado tiene tomado el cliente
+                subscriber.desalojar(null);
+                return false;
+            }
+            return true;
+        }
+        entrada.fallos = 0;
+        if (!avanzo && subscriber.offer(SseFrame.ping()))
+        {
+            pings.incrementAndGet();
+        }
+        return true;
+    }
+
+    private static final class Entrada
+    {
+        private final StreamSubscriber subscriber;
+
+        private final long ticks;
+
+        private long vence;
+
+        private long escrituras;
+
+        private int fallos;
+
+        private volatile boolean cancelada;
+
+        private Entrada(StreamSubscriber subscriber, long ticks)
+        {
+            this.subscriber = subscriber;
+            this.ticks = ticks;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package backend.core.lib.commons.stream;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metricas Micrometer del envio stream y de la replicacion JMS. Se publican por Actuator con el prefijo
+ * {@code sisdef.stream} y la etiqueta {@code servicio} con el nombre del bean, y por modulo cuando corresponde.
+ * <p>
+ * Los medidores por modulo se crean la primera vez que se usan y se guardan, para que el camino de envio no pase por
+ * los builders de Micrometer en cada mensaje.
+ */
+public class StreamMetrics
+{
+
+    private static final String PREFIJO = "sisdef.stream.";
+
+    private final MeterRegistry registry;
+
+    private final String servicio;
+
+    private final Map<EnumModulo, Timer> fanoutLatencia = new ConcurrentHashMap<>();
+
+    private final Map<EnumModulo, DistributionSummary> fanoutDestinatarios = new ConcurrentHashMap<>();
+
+    private final Map<EnumModulo, Counter> fallasEnvio = new ConcurrentHashMap<>();
+
+    private final Map<EnumModulo, Counter> descartados = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> desalojos = new ConcurrentHashMap<>();
+
+    private final Map<String, Timer> jmsEnvio = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> jmsErrores = new ConcurrentHashMap<>();
+
+    private final Map<EnumPrioridad, Timer> entregas = new ConcurrentHashMap<>();
+
+    private final ToLongFunction<EnumPrioridad> sloMillis;
+
+    private final Timer replicacionLag;
+
+    /**
+     * @param registry
+     * @param servicio
+     * @param sloMillis
+     *            latencia objetivo de entrega de cada prioridad
+     */
+    public StreamMetrics(MeterRegistry registry, String servicio, ToLongFunction<EnumPrioridad> sloMillis)
+    {
+        this.registry = registry;
+        this.servicio = servicio;
+        this.sloMillis = sloMillis;
+        this.replicacionLag = Timer.builder(PREFIJO + "replication.lag")
+                .description("Tiempo desde la publicacion en la instancia de origen hasta la recepcion local")
+                .tag("servicio", servicio).publishPercentileHistogram().register(registry);
+    }
+
+    /**
+     * Registra los medidores del ejecutor de envio, la rueda de heartbeat, el buffer de reanudacion y los carriles de
+     * replicacion. Los valores se leen al momento de publicar.
+     */
+    public void bind(AbstractEventService service)
+    {
+        StreamDeliveryExecutor executor = service.getDeliveryExecutor();
+        Gauge.builder(PREFIJO + "delivery.inflight", executor, StreamDeliveryExecutor::getInFlight)
+                .tag("servicio", servicio).register(registry);
+        Gauge.builder(PREFIJO + "delivery.saturation", executor, StreamDeliveryExecutor::getSaturation)
+                .tag("servicio", servicio).register(registry);
+        FunctionCounter.builder(PREFIJO + "delivery.caller.runs", executor, StreamDeliveryExecutor::getCallerRuns)
+                .tag("servicio", servicio).register(registry);
+        Gauge.builder(PREFIJO + "delivery.deferred", executor, StreamDeliveryExecutor::getDiferidas)
+                .tag("servicio", servicio).register(registry);
+        Gauge.builder(PREFIJO + "delivery.priority.inflight", service.getPriorityDeliveryExecutor(),
+                StreamDeliveryExecutor::getInFlight).tag("servicio", servicio).register(registry);
+        FunctionCounter.builder(PREFIJO + "heartbeat.pings", service.getHeartbeat(), StreamHeartbeatWheel::getPings)
+                .tag("servicio", servicio).register(registry);
+        Gauge.builder(PREFIJO + "replay.events", service, AbstractEventService::getReplaySize)
+                .tag("servicio", servicio).register(registry);
+        Gauge.builder(PREFIJO + "jms.outbox", service, AbstractEventService::getJmsPendientesPublicacion)
+                .tag("servicio", servicio).register(registry);
+        Gauge.builder(PREFIJO + "replication.backlog", service,
+                s -> s.getJmsBacklog().values().stream().mapToInt(Integer::intValue).sum())
+                .tag("servicio", servicio).register(registry);
+    }
+
+    /**
+     * Registra el gauge de clientes conectados del modulo. Se puede llamar mas de una vez.
+     * @param modulo
+     * @param clientes
+     */
+    public void bindModulo(EnumModulo modulo, StreamClientRegistry clientes)
+    {
+        Gauge.builder(PREFIJO + "clients", clientes, c -> c.porModulo(modulo).size()).tag("servicio", servicio)
+                .tag("modulo", modulo.name()).register(registry);
+    }
+
+    /**
+     * Registra un envio a clientes locales.
+     * @param modulo
+     * @param destinatarios
+     * @param nanos
+     *            tiempo en encolar el mensaje a todos los destinatarios
+     */
+    public void fanout(EnumModulo modulo, int destinatarios, long nanos)
+    {
+        fanoutDestinatarios.computeIfAbsent(modulo,
+                m -> DistributionSummary.builder(PREFIJO + "fanout.recipients").tag("servicio", servicio)
+                        .tag("modulo", m.name()).publishPercentileHistogram().register(registry))
+                .record(destinatarios);
+        fanoutLatencia.computeIfAbsent(modulo,
+                m -> Timer.builder(PREFIJO + "fanout.latency").tag("servicio", servicio).tag("modulo", m.name())
+                        .publishPercentileHistogram().register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registra la escritura de un mensaje al cliente. El histograma publica el conteo bajo la latencia objetivo de la
+     * prioridad, para medir el cumplimiento del SLO por clase.
+     * @param prioridad
+     * @param nanos
+     *            tiempo desde que el mensaje se encolo al cliente hasta que se termino de escribir
+     */
+    public void entrega(EnumPrioridad prioridad, long nanos)
+    {
+        entregas.computeIfAbsent(prioridad,
+                p -> Timer.builder(PREFIJO + "delivery.latency").tag("servicio", servicio)
+                        .tag("prioridad", p.name())
+                        .serviceLevelObjectives(Duration.ofMillis(Math.max(1, sloMillis.applyAsLong(p))))
+                        .publishPercentileHistogram().register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void fallaEnvio(EnumModulo modulo)
+    {
+        fallasEnvio.computeIfAbsent(modulo, m -> Counter.builder(PREFIJO + "send.failures").tag("servicio", servicio)
+                .tag("modulo", m.name()).register(registry)).increment();
+    }
+
+    /**
+     * Mensaje descartado por cola de salida llena.
+     * @param modulo
+     */
+    public void descartado(EnumModulo modulo)
+    {
+        descartados.computeIfAbsent(modulo, m -> Counter.builder(PREFIJO + "outbox.dropped")
+                .tag("servicio", servicio).tag("modulo", m.name()).register(registry)).increment();
+    }
+
+    /**
+     * Conexion cerrada por el servidor.
+     * @param modulo
+     * @param causa
+     *            {@code slow-consumer} o {@code heartbeat}
+     */
+    public void desalojo(EnumModulo modulo, String causa)
+    {
+        desalojos.computeIfAbsent(modulo.name() + ":" + causa, k -> Counter.builder(PREFIJO + "evictions")
+                .tag("servicio", servicio).tag("modulo", modulo.name()).tag("causa", causa).register(registry))
+                .increment();
+    }
+
+    /**
+     * Publicacion de un mensaje o lote en un topico de replicacion.
+     * @param topico
+     * @param nanos
+     * @param error
+     */
+    public void jms(String topico, long nanos, boolean error)
+    {
+        String tag = etiquetaTopico(topico);
+        jmsEnvio.computeIfAbsent(tag, t -> Timer.builder(PREFIJO + "jms.send").tag("servicio", servicio)
+                .tag("topico", t).publishPercentileHistogram().register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+        if (error)
+        {
+            jmsErrores.computeIfAbsent(tag, t -> Counter.builder(PREFIJO + "jms.errors").tag("servicio", servicio)
+                    .tag("topico", t).register(registry)).increment();
+        }
+    }
+
+    /**
+     * @param millis
+     *            tiempo desde que la instancia de origen publico el mensaje
+     */
+    public void replicacion(long millis)
+    {
+        replicacionLag.record(Math.max(0, millis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Las colas directas llevan el id de la instancia; se agrupan en una sola etiqueta para no crear una serie por
+     * arranque.
+     */
+    private static String etiquetaTopico(String topico)
+    {
+        return topico.startsWith("STREAM.") ? "DIRECTO" : topico;
+    }
+}
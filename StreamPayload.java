@@ -0,0 +1,69 @@
+package backend.core.lib.commons.stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Contenido de un mensaje stream que se serializa recien cuando alguien lo va a usar: un destinatario local, el buffer
+ * de reanudacion o la replicacion JMS. El JSON se arma una sola vez y se comparte entre el envio local y el mensaje de
+ * replicacion. No es thread-safe, vive dentro de un unico envio.
+ */
+public final class StreamPayload
+{
+
+    private final ObjectMapper mapper;
+
+    private final Object objeto;
+
+    private String json;
+
+    private StreamPayload(ObjectMapper mapper, Object objeto, String json)
+    {
+        this.mapper = mapper;
+        this.objeto = objeto;
+        this.json = json;
+    }
+
+    /**
+     * @param mapper
+     * @param objeto
+     *            objeto a serializar cuando se pida el JSON
+     * @return
+     */
+    public static StreamPayload of(ObjectMapper mapper, Object objeto)
+    {
+        return new StreamPayload(mapper, objeto, null);
+    }
+
+    /**
+     * @param json
+     *            JSON ya serializado, por ejemplo el recibido por JMS
+     * @return
+     */
+    public static StreamPayload of(String json)
+    {
+        return new StreamPayload(null, null, json);
+    }
+
+    /**
+     * @return JSON del objeto, serializado la primera vez que se pide
+     * @throws JsonProcessingException
+     */
+    public String get() throws JsonProcessingException
+    {
+        if (json == null)
+        {
+            json = mapper.writeValueAsString(objeto);
+        }
+        return json;
+    }
+
+    /**
+     * No fuerza la serializacion, para poder usarlo en los logs.
+     */
+    @Override
+    public String toString()
+    {
+        return json != null ? json : String.valueOf(objeto);
+    }
+}
@@ -0,0 +1,242 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import backend.core.lib.commons.stream.ot.OTConectado;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Presencia de usuarios por equipo, con antirrebote y consciente del cluster. Las conexiones y desconexiones no se
+ * publican en el momento: el usuario queda pendiente durante la ventana de gracia y al vencer se compara su estado con
+ * el ultimo publicado. El estado es la suma de sus conexiones en esta instancia (todas las pestanas) y en las demas
+ * segun el directorio del cluster, de modo que una desconexion no se informa si el usuario sigue conectado en otra
+ * pestana u otra instancia, y un cliente que se cae y reconecta dentro de la ventana no genera mensajes.
+ * <p>
+ * Cada cambio se publica al equipo como un {@link OTConectado}, igual que antes de la ventana de gracia. Con
+ * {@code sisdef.stream.presence.batch} los cambios que vencen juntos se publican en un solo mensaje por equipo con
+ * {@code clazz} {@code OTConectado[]} y un arreglo en {@code data}; es un cambio de protocolo para los clientes, que
+ * deben entender ambos formatos antes de habilitarlo. Las instancias aceptan los dos formatos al replicar.
+ * <p>
+ * El ultimo estado publicado es el mismo en todas las instancias: los cambios que publica otra instancia se aplican con
+ * {@link #remoto(EnumModulo, Long, Long, Long, boolean)}, de modo que un usuario que se conecto en una instancia y se
+ * desconecto en otra no queda como conectado en la primera. Si una instancia cae sin informar las desconexiones de
+ * sus usuarios, las demas los reevaluan con {@link #revisar(EnumModulo, Collection)} cuando el directorio la descarta.
+ * <p>
+ * Contar las conexiones de otras instancias requiere el directorio del cluster ({@code sisdef.stream.directory.enable},
+ * deshabilitado por defecto). Sin el, cada instancia cuenta solo sus conexiones locales: con varias instancias una
+ * desconexion se informa aunque el usuario siga conectado en otra, y al reconectar se vuelve a informar la conexion.
+ */
+@Slf4j
+public class StreamPresence
+{
+
+    /**
+     * Publica los cambios de presencia de un equipo.
+     */
+    @FunctionalInterface
+    public interface Publicador
+    {
+        void publicar(EnumModulo modulo, Long idEquipo, List<OTConectado> cambios);
+    }
+
+    /**
+     * Cuenta las conexiones del usuario en el modulo en todo el cluster.
+     */
+    @FunctionalInterface
+    public interface Conexiones
+    {
+        int contar(EnumModulo modulo, Long idPerfilUsuario);
+    }
+
+    private final long graciaMillis;
+
+    private final Conexiones conexiones;
+
+    private final Publicador publicador;
+
+    /**
+     * Usuarios con cambios sin evaluar y el momento en que vence su ventana de gracia.
+     */
+    private final Map<Clave, Long> pendientes = new ConcurrentHashMap<>();
+
+    /**
+     * Usuarios cuyo ultimo estado conocido es conectado. Los ausentes se consideran desconectados.
+     */
+    private final Set<Clave> conectados = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong publicados = new AtomicLong();
+
+    /**
+     * @param graciaMillis
+     *            tiempo que se espera desde el primer cambio antes de evaluar el estado del usuario
+     * @param conexiones
+     * @param publicador
+     */
+    public StreamPresence(long graciaMillis, Conexiones conexiones, Publicador publicador)
+    {
+        this.graciaMillis = Math.max(0, graciaMillis);
+        this.conexiones = conexiones;
+        this.publicador = publicador;
+    }
+
+    /**
+     * Registra que el suscriptor se conecto o desconecto. La ventana de gracia corre desde el primer cambio pendiente,
+     * para que un cliente que rebota sin parar no posponga la evaluacion indefinidamente.
+     * @param subscriber
+     */
+    public void cambio(StreamSubscriber subscriber)
+    {
+        if (subscriber.getIdPerfilUsuario() == null || subscriber.getIdEquipo() == null)
+        {
+            return;
+        }
+        pendientes.putIfAbsent(new Clave(subscriber), System.currentTimeMillis() + graciaMillis);
+    }
+
+    /**
+     * Evalua los usuarios cuya ventana vencio y publica los cambios agrupados por equipo. Se llama periodicamente.
+     */
+    public void procesar()
+    {
+        try
+        {
+            long ahora = System.currentTimeMillis();
+            Map<Clave, List<OTConectado>> porEquipo = new LinkedHashMap<>();
+            for (Iterator<Map.Entry<Clave, Long>> it = pendientes.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry<Clave, Long> pendiente = it.next();
+                if (pendiente.getValue() > ahora)
+                {
+                    continue;
+                }
+                it.remove();
+                Clave clave = pendiente.getKey();
+                boolean conectado = conexiones.contar(clave.modulo, clave.idPerfilUsuario) > 0;
+                boolean cambio = conectado ? conectados.add(clave) : conectados.remove(clave);
+                if (cambio)
+                {
+                    porEquipo.computeIfAbsent(new Clave(clave.modulo, clave.idEquipo, null, null),
+                            k -> new ArrayList<>())
+                            .add(OTConectado.builder().conectado(conectado).idEjercicio(clave.idEjercicio)
+                                    .idEquipo(clave.idEquipo).idUsuario(clave.idPerfilUsuario).build());
+                }
+            }
+            porEquipo.forEach((equipo, cambios) -> {
+                publicados.addAndGet(cambios.size());
+                publicador.publicar(equipo.modulo, equipo.idEquipo, cambios);
+            });
+        }
+        catch (RuntimeException e)
+        {
+            log.error("[STREAM] Problema al publicar la presencia de usuarios", e);
+        }
+    }
+
+    /**
+     * Aplica un cambio de presencia publicado por otra instancia al ultimo estado publicado.
+     * @param modulo
+     * @param idEquipo
+     * @param idEjercicio
+     * @param idPerfilUsuario
+     * @param conectado
+     */
+    public void remoto(EnumModulo modulo, Long idEquipo, Long idEjercicio, Long idPerfilUsuario, boolean conectado)
+    {
+        if (idPerfilUsuario == null || idEquipo == null)
+        {
+            return;
+        }
+        Clave clave = new Clave(modulo, idEquipo, idEjercicio, idPerfilUsuario);
+        if (conectado)
+            conectados.add(clave);
+        else
+            conectados.remove(clave);
+    }
+
+    /**
+     * Deja pendientes de evaluacion a los usuarios conectados segun el ultimo estado publicado, por ejemplo porque la
+     * instancia donde estaban dejo de responder.
+     * @param modulo
+     * @param idsPerfilUsuario
+     */
+    public void revisar(EnumModulo modulo, Collection<Long> idsPerfilUsuario)
+    {
+        long vencimiento = System.currentTimeMillis() + graciaMillis;
+        for (Clave clave : conectados)
+        {
+            if (clave.modulo == modulo && idsPerfilUsuario.contains(clave.idPerfilUsuario))
+            {
+                pendientes.putIfAbsent(clave, vencimiento);
+            }
+        }
+    }
+
+    /**
+     * @return usuarios esperando el fin de su ventana de gracia
+     */
+    public int getPendientes()
+    {
+        return pendientes.size();
+    }
+
+    /**
+     * @return cambios de presencia publicados
+     */
+    public long getPublicados()
+    {
+        return publicados.get();
+    }
+
+    private static final class Clave
+    {
+        private final EnumModulo modulo;
+
+        private final Long idEquipo;
+
+        private final Long idEjercicio;
+
+        private final Long idPerfilUsuario;
+
+        private Clave(StreamSubscriber subscriber)
+        {
+            this(subscriber.getModulo(), subscriber.getIdEquipo(), subscriber.getIdEjercicio(),
+                    subscriber.getIdPerfilUsuario());
+        }
+
+        private Clave(EnumModulo modulo, Long idEquipo, Long idEjercicio, Long idPerfilUsuario)
+        {
+            this.modulo = modulo;
+            this.idEquipo = idEquipo;
+            this.idEjercicio = idEjercicio;
+            this.idPerfilUsuario = idPerfilUsuario;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Clave))
+            {
+                return false;
+            }
+            Clave otra = (Clave) obj;
+            return modulo == otra.modulo && Objects.equals(idEquipo, otra.idEquipo)
+                    && Objects.equals(idEjercicio, otra.idEjercicio)
+                    && Objects.equals(idPerfilUsuario, otra.idPerfilUsuario);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(modulo, idEquipo, idEjercicio, idPerfilUsuario);
+        }
+    }
+}
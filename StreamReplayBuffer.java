@@ -0,0 +1,327 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ultimos eventos enviados por modulo y ejercicio, para que un cliente que se reconecta con {@code Last-Event-ID}
+ * reciba solo lo que se perdio en vez de volver a pedir todo el estado.
+ * <p>
+ * Cada evento registrado recibe un id {@code <instancia>-<secuencia>} con una secuencia creciente en la instancia. Los
+ * mensajes a un ejercicio se guardan en el anillo del ejercicio y el resto en el anillo general del modulo; junto con
+ * cada evento se guarda a quienes iba dirigido, para reenviarlo solo si el cliente que se reconecta era destinatario.
+ * Si el id es de otra instancia o alguno de los eventos posteriores dirigidos al cliente ya salio del anillo no se
+ * puede reanudar y el cliente debe volver a sincronizar.
+ * <p>
+ * De cada evento que sale del anillo se conserva solo su secuencia y sus destinatarios, para que la salida de eventos
+ * de otros clientes no obligue a resincronizar. {@link #purgar()} descarta periodicamente los eventos vencidos y quita
+ * los anillos que quedan vacios, de modo que un ejercicio sin actividad no retiene memoria.
+ */
+@Slf4j
+public class StreamReplayBuffer
+{
+
+    /**
+     * Valor de {@code clazz} del mensaje CONNECTED cuando se reenviaron los eventos perdidos.
+     */
+    public static final String REANUDADO = "RESUMED";
+
+    /**
+     * Valor de {@code clazz} del mensaje CONNECTED cuando no se pudo reanudar y el cliente debe pedir el estado
+     * completo.
+     */
+    public static final String RESINCRONIZAR = "RESYNC";
+
+    private final String prefijo;
+
+    private final ToIntFunction<EnumModulo> capacidadPorModulo;
+
+    private final long maxEdadMillis;
+
+    private final AtomicLong secuencia = new AtomicLong();
+
+    private final Map<EnumModulo, Integer> capacidades = new ConcurrentHashMap<>();
+
+    private final Map<String, Anillo> anillos = new ConcurrentHashMap<>();
+
+    /**
+     * Mayor secuencia descartada de cada anillo quitado, para no reanudar desde antes de ella.
+     */
+    private final Map<String, Long> retirados = new ConcurrentHashMap<>();
+
+    /**
+     * @param instancia
+     *            identificador de la instancia, prefijo de los ids
+     * @param capacidadPorModulo
+     *            eventos que se guardan por anillo en cada modulo, 0 desactiva la reanudacion
+     * @param maxEdadMillis
+     *            antiguedad maxima de un evento para reenviarlo
+     */
+    public StreamReplayBuffer(Long instancia, ToIntFunction<EnumModulo> capacidadPorModulo, long maxEdadMillis)
+    {
+        this.prefijo = instancia + "-";
+        this.capacidadPorModulo = capacidadPorModulo;
+        this.maxEdadMillis = maxEdadMillis;
+    }
+
+    public boolean isHabilitado(EnumModulo modulo)
+    {
+        return capacidad(modulo) > 0;
+    }
+
+    /**
+     * Asigna id al frame y lo guarda en el anillo que corresponde.
+     * @param modulo
+     * @param idEjercicio
+     *            ejercicio del mensaje, null si no va dirigido a un ejercicio
+     * @param destino
+     *            indica si un suscriptor era destinatario del mensaje
+     * @param frame
+     * @return el frame con id, o el mismo frame si el modulo no guarda eventos
+     */
+    public SseFrame registrar(EnumModulo modulo, Long idEjercicio, Predicate<StreamSubscriber> destino, SseFrame frame)
+    {
+        int capacidad = capacidad(modulo);
+        if (capacidad <= 0)
+        {
+            return frame;
+        }
+        String clave = clave(modulo, idEjercicio);
+        while (true)
+        {
+            Anillo anillo = anillos.computeIfAbsent(clave, k -> {
+                Long retirado = retirados.remove(k);
+                return new Anillo(capacidad, retirado == null ? 0 : retirado);
+            });
+            synchronized (anillo)
+            {
+                if (anillo.retirado)
+                {
+                    // Lo quito purgar() entre la busqueda y el bloqueo
+                    continue;
+                }
+                // La secuencia se toma con el anillo bloqueado para que cada anillo quede ordenado
+                long id = secuencia.incrementAndGet();
+                SseFrame conId = frame.withId(prefijo + id, id);
+                anillo.eventos.addLast(new Evento(conId, destino, System.currentTimeMillis()));
+                while (anillo.eventos.size() > capacidad)
+                {
+                    anillo.descartar();
+                }
+                return conId;
+            }
+        }
+    }
+
+    /**
+     * Descarta los eventos vencidos de todos los anillos y quita los que quedan vacios. Se llama periodicamente.
+     */
+    public void purgar()
+    {
+        long limite = System.currentTimeMillis() - maxEdadMillis;
+        for (Map.Entry<String, Anillo> entrada : anillos.entrySet())
+        {
+            Anillo anillo = entrada.getValue();
+            synchronized (anillo)
+            {
+                anillo.vencer(limite);
+                if (anillo.eventos.isEmpty())
+                {
+                    anillo.retirado = true;
+                    retirados.merge(entrada.getKey(), anillo.ultimoDescartado(), Math::max);
+                    anillos.remove(entrada.getKey(), anillo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Eventos posteriores a {@code lastEventId} dirigidos al suscriptor, ordenados por id.
+     * @param lastEventId
+     *            ultimo id que recibio el cliente
+     * @param subscriber
+     * @return eventos a reenviar, o null si no se puede reanudar
+     */
+    public List<SseFrame> desde(String lastEventId, StreamSubscriber subscriber)
+    {
+        long ultimo = secuencia(lastEventId);
+        if (ultimo < 0 || ultimo > secuencia.get() || !isHabilitado(subscriber.getModulo()))
+        {
+            log.debug("[STREAM] No se puede reanudar desde {} en {}", lastEventId, prefijo);
+            return null;
+        }
+        List<SseFrame> perdidos = new ArrayList<>();
+        for (String clave : new String[] { clave(subscriber.getModulo(), null),
+                clave(subscriber.getModulo(), subscriber.getIdEjercicio()) })
+        {
+            Anillo anillo = anillos.get(clave);
+            boolean completo = anillo != null ? anillo.desde(ultimo, subscriber, perdidos)
+                    : retirados.getOrDefault(clave, 0L) <= ultimo;
+            if (!completo)
+            {
+                return null;
+            }
+        }
+        perdidos.sort(Comparator.comparingLong(SseFrame::getSecuencia));
+        return perdidos;
+    }
+
+    /**
+     * @return cantidad de eventos guardados en todos los anillos
+     */
+    public int size()
+    {
+        int total = 0;
+        for (Anillo anillo : anillos.values())
+        {
+            synchronized (anillo)
+            {
+                total += anillo.eventos.size();
+            }
+        }
+        return total;
+    }
+
+    private int capacidad(EnumModulo modulo)
+    {
+        return capacidades.computeIfAbsent(modulo, capacidadPorModulo::applyAsInt);
+    }
+
+    /**
+     * Secuencia del id si fue generado por esta instancia, -1 en otro caso.
+     */
+    private long secuencia(String lastEventId)
+    {
+        if (lastEventId == null || !lastEventId.startsWith(prefijo))
+        {
+            return -1;
+        }
+        try
+        {
+            return Long.parseLong(lastEventId.substring(prefijo.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static String clave(EnumModulo modulo, Long idEjercicio)
+    {
+        return modulo.name() + ":" + (idEjercicio == null ? "*" : idEjercicio);
+    }
+
+    private final class Anillo
+    {
+        private final ArrayDeque<Evento> eventos = new ArrayDeque<>();
+
+        /**
+         * Secuencia y destinatarios de los ultimos eventos que salieron del anillo, sin el frame.
+         */
+        private final ArrayDeque<Descartado> descartados = new ArrayDeque<>();
+
+        private final int maxDescartados;
+
+        /**
+         * Mayor secuencia que salio tambien de {@link #descartados}: no se sabe a quien iba.
+         */
+        private long descartadoHasta;
+
+        private boolean retirado;
+
+        private Anillo(int capacidad, long descartadoHasta)
+        {
+            this.maxDescartados = capacidad * 4;
+            this.descartadoHasta = descartadoHasta;
+        }
+
+        private void descartar()
+        {
+            Evento evento = eventos.pollFirst();
+            descartados.addLast(new Descartado(evento.frame.getSecuencia(), evento.destino));
+            while (descartados.size() > maxDescartados)
+            {
+                descartadoHasta = descartados.pollFirst().secuencia;
+            }
+        }
+
+        private void vencer(long limite)
+        {
+            while (!eventos.isEmpty() && eventos.peekFirst().registrado < limite)
+            {
+                descartar();
+            }
+        }
+
+        private long ultimoDescartado()
+        {
+            return descartados.isEmpty() ? descartadoHasta : descartados.peekLast().secuencia;
+        }
+
+        /**
+         * Agrega a {@code perdidos} los eventos del suscriptor posteriores a {@code ultimo}.
+         * @return false si alguno de los eventos del suscriptor posteriores a {@code ultimo} ya fue descartado
+         */
+        private synchronized boolean desde(long ultimo, StreamSubscriber subscriber, List<SseFrame> perdidos)
+        {
+            vencer(System.currentTimeMillis() - maxEdadMillis);
+            if (descartadoHasta > ultimo)
+            {
+                return false;
+            }
+            for (Descartado descartado : descartados)
+            {
+                if (descartado.secuencia > ultimo && descartado.destino.test(subscriber))
+                {
+                    return false;
+                }
+            }
+            for (Evento evento : eventos)
+            {
+                if (evento.frame.getSecuencia() > ultimo && evento.destino.test(subscriber))
+                {
+                    perdidos.add(evento.frame);
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Descartado
+    {
+        private final long secuencia;
+
+        private final Predicate<StreamSubscriber> destino;
+
+        private Descartado(long secuencia, Predicate<StreamSubscriber> destino)
+        {
+            this.secuencia = secuencia;
+            this.destino = destino;
+        }
+    }
+
+    private static final class Evento
+    {
+        private final SseFrame frame;
+
+        private final Predicate<StreamSubscriber> destino;
+
+        private final long registrado;
+
+        private Evento(SseFrame frame, Predicate<StreamSubscriber> destino, long registrado)
+        {
+            this.frame = frame;
+            this.destino = destino;
+            this.registrado = registrado;
+        }
+    }
+}
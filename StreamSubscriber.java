@@ -0,0 +1,759 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cliente stream registrado en {@link AbstractEventService}, sobre cualquier {@link IStreamClient}. Cada suscriptor
+ * tiene una cola de salida acotada que es vaciada por un unico escritor, de modo que quien publica nunca escribe
+ * directamente en el socket y dos mensajes al mismo cliente no se intercalan. Cuando la cola se llena se aplica la
+ * {@link EnumPoliticaConsumidorLento} del modulo.
+ * <p>
+ * La cola tiene un tramo por {@link EnumPrioridad} y el escritor siempre toma el mensaje mas viejo de la prioridad mas
+ * alta. Con la cola llena, un mensaje se hace lugar descartando el mas viejo de una prioridad menor antes de aplicar la
+ * politica, de modo que el trafico masivo nunca deja afuera ni demora a una alarma.
+ * <p>
+ * Los frames con id de reanudacion no se reordenan: el cliente reanuda desde el ultimo id que recibio, por lo que un
+ * frame con id escrito antes que otro anterior haria que al reconectarse se saltee el anterior. Cuando el siguiente
+ * frame de la prioridad mas alta tiene id se escriben primero los pendientes encolados antes que el. El mensaje
+ * CONNECTED y los eventos reenviados al reanudar van en un tramo inicial que se escribe antes que todos.
+ */
+@Slf4j
+public class StreamSubscriber
+{
+
+    @Getter
+    private final IStreamClient client;
+
+    @Getter
+    private final EnumModulo modulo;
+
+    @Getter
+    private final Long idEquipo;
+
+    @Getter
+    private final Long idEjercicio;
+
+    @Getter
+    private final Long idUnidad;
+
+    @Getter
+    private final Long idUnidadJdn;
+
+    @Getter
+    private final Long idPerfilUsuario;
+
+    @Getter
+    private final Long idClientSession;
+
+    @Getter
+    private final EnumPoliticaConsumidorLento politica;
+
+    @Getter
+    private final StreamEncoding encoding;
+
+    @Getter
+    private final int capacidad;
+
+    private final long bloqueoMaximoMillis;
+
+    private final Function<EnumPrioridad, StreamDeliveryExecutor> writers;
+
+    private final StreamMetrics metricas;
+
+    private final Executor cierres;
+
+    private final ArrayDeque<Pendiente>[] colas;
+
+    /**
+     * Mensaje CONNECTED y eventos reenviados, se escriben antes que los tramos por prioridad.
+     */
+    private final ArrayDeque<Pendiente> inicio = new ArrayDeque<>();
+
+    /**
+     * Orden de llegada del proximo pendiente, para no reordenar los frames con id.
+     */
+    private long orden;
+
+    /**
+     * Total de pendientes en todos los tramos de la cola.
+     */
+    private int pendientes;
+
+    /**
+     * UPDATE pendientes por clave de entidad, para reemplazarlos en la cola en vez de encolar versiones intermedias.
+     */
+    private final Map<Object, Pendiente> pendientesPorClave = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition hayLugar = lock.newCondition();
+
+    private boolean escribiendo;
+
+    /**
+     * Ultima version escrita de cada entidad con deltas. Solo la usa el escritor.
+     */
+    private final Map<String, Long> versionesDelta = new HashMap<>();
+
+    /**
+     * Frames recibidos mientras el cliente se reanuda, se encolan detras de los eventos reenviados.
+     */
+    private List<SseFrame> retenidos;
+
+    private volatile boolean cerrado;
+
+    private final AtomicLong encolados = new AtomicLong();
+
+    private final AtomicLong enviados = new AtomicLong();
+
+    private final AtomicLong escrituras = new AtomicLong();
+
+    private final AtomicLong descartados = new AtomicLong();
+
+    private final AtomicLong conflacionados = new AtomicLong();
+
+    private volatile int maximoPendientes;
+
+    /**
+     * @param client
+     * @param writers
+     *            ejecutor donde corre el escritor segun la prioridad del mensaje que lo despierta
+     * @param metricas
+     * @param cierres
+     *            ejecutor donde se termina la conexion de los clientes desalojados
+     * @param politica
+     * @param encoding
+     * @param capacidad
+     * @param bloqueoMaximoMillis
+     */
+    @SuppressWarnings("unchecked")
+    public StreamSubscriber(IStreamClient client, Function<EnumPrioridad, StreamDeliveryExecutor> writers,
+            StreamMetrics metricas, Executor cierres, EnumPoliticaConsumidorLento politica, StreamEncoding encoding,
+            int capacidad, long bloqueoMaximoMillis)
+    {
+        this.client = client;
+        this.modulo = client.getModulo();
+        this.idEquipo = client.getIdEquipo();
+        this.idEjercicio = client.getIdEjercicio();
+        this.idUnidad = client.getIdUnidad();
+        this.idUnidadJdn = client.getIdUnidadJdn();
+        this.idPerfilUsuario = client.getIdPerfilUsuario();
+        this.idClientSession = client.getIdClientSession();
+        this.writers = writers;
+        this.metricas = metricas;
+        this.cierres = cierres;
+        this.politica = politica;
+        this.encoding = encoding;
+        this.capacidad = Math.max(1, capacidad);
+        this.bloqueoMaximoMillis = bloqueoMaximoMillis;
+        this.colas = new ArrayDeque[EnumPrioridad.values().length];
+        for (int i = 0; i < colas.length; i++)
+        {
+            colas[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Encola el frame para el cliente. No escribe en el socket, la escritura la hace el escritor del suscriptor.
+     * @param frame
+     * @return true si el frame quedo encolado
+     */
+    public boolean offer(SseFrame frame)
+    {
+        if (cerrado)
+        {
+            return false;
+        }
+        boolean iniciarEscritor = false;
+        boolean desconectar = false;
+        lock.lock();
+        try
+        {
+            if (retenidos != null)
+            {
+                retenidos.add(frame);
+                return true;
+            }
+            if (conflacionar(frame))
+            {
+                return true;
+            }
+            if (pendientes >= capacidad && descartarMenor(frame.getPrioridad().ordinal() + 1))
+            {
+                descartados.incrementAndGet();
+                metricas.descartado(modulo);
+            }
+            else if (pendientes >= capacidad)
+            {
+                switch (politica)
+                {
+                    case DROP_OLDEST:
+                        descartados.incrementAndGet();
+                        metricas.descartado(modulo);
+                        // Solo quedan pendientes de igual o mayor prioridad: se descarta uno igual o el nuevo
+                        if (!descartarMenor(frame.getPrioridad().ordinal()))
+                        {
+                            return false;
+                        }
+                        break;
+                    case BLOCK:
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(bloqueoMaximoMillis);
+                        while (pendientes >= capacidad && nanos > 0 && !cerrado)
+                        {
+                            nanos = hayLugar.awaitNanos(nanos);
+                        }
+                        if (pendientes >= capacidad || cerrado)
+                        {
+                            descartados.incrementAndGet();
+                            metricas.descartado(modulo);
+                            return false;
+                        }
+                        break;
+                    case DISCONNECT:
+                    default:
+                        descartados.incrementAndGet();
+                        metricas.descartado(modulo);
+                        desconectar = true;
+                        break;
+                }
+            }
+            if (desconectar)
+            {
+                cerrado = true;
+            }
+            else if (!cerrado)
+            {
+                Pendiente pendiente = new Pendiente(frame, System.nanoTime(), orden++);
+                colas[frame.getPrioridad().ordinal()].addLast(pendiente);
+                pendientes++;
+                if (frame.getClave() != null)
+                {
+                    // CREATE, DELETE y los frames con id cortan la conflacion: un UPDATE posterior se encola detras
+                    if (frame.isConflacionable() && frame.getId() == null)
+                        pendientesPorClave.put(frame.getClave(), pendiente);
+                    else
+                        pendientesPorClave.remove(frame.getClave());
+                }
+                encolados.incrementAndGet();
+                maximoPendientes = Math.max(maximoPendientes, pendientes);
+                // Sin demanda del cliente el escritor lo inicia demanda()
+                if (!escribiendo && client.isListo())
+                {
+                    escribiendo = true;
+                    iniciarEscritor = true;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            descartados.incrementAndGet();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (desconectar)
+        {
+            log.warn("[STREAM] Cliente lento desconectado, usuario {} modulo {} pendientes {}", idPerfilUsuario, modulo,
+                    capacidad);
+            metricas.desalojo(modulo, "slow-consumer");
+            desalojar(null);
+            return false;
+        }
+        if (iniciarEscritor)
+        {
+            EnumPrioridad carril = frame.getPrioridad();
+            writers.apply(carril).execute(() -> drain(carril));
+        }
+        return !cerrado;
+    }
+
+    /**
+     * Retiene los frames que lleguen hasta {@link #conectar(List)}. Se llama antes de registrar el suscriptor.
+     */
+    public void retener()
+    {
+        lock.lock();
+        try
+        {
+            retenidos = new ArrayList<>();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encola en el tramo inicial el mensaje CONNECTED y los eventos reenviados, sin orden de prioridad, y luego los
+     * retenidos mientras tanto, salteando los que ya estaban entre los reenviados.
+     * @param frames
+     *            mensaje CONNECTED seguido de los eventos perdidos, en orden
+     */
+    public void conectar(List<SseFrame> frames)
+    {
+        EnumPrioridad carril = null;
+        lock.lock();
+        try
+        {
+            List<SseFrame> enEspera = retenidos;
+            retenidos = null;
+            long ultimo = 0;
+            for (SseFrame frame : frames)
+            {
+                if (cerrado)
+                {
+                    return;
+                }
+                inicio.addLast(new Pendiente(frame, System.nanoTime(), orden++));
+                pendientes++;
+                encolados.incrementAndGet();
+                ultimo = Math.max(ultimo, frame.getSecuencia());
+            }
+            maximoPendientes = Math.max(maximoPendientes, pendientes);
+            if (!inicio.isEmpty() && !escribiendo && client.isListo())
+            {
+                escribiendo = true;
+                carril = inicio.peekFirst().frame.getPrioridad();
+            }
+            if (enEspera != null)
+            {
+                for (SseFrame frame : enEspera)
+                {
+                    if (frame.getSecuencia() == 0 || frame.getSecuencia() > ultimo)
+                    {
+                        offer(frame);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (carril != null)
+        {
+            EnumPrioridad prioridad = carril;
+            writers.apply(prioridad).execute(() -> drain(prioridad));
+        }
+    }
+
+    /**
+     * Retoma el escritor de un cliente con control de flujo que volvio a pedir eventos, si quedo detenido con
+     * pendientes. Ver {@link IStreamClient#isListo()}.
+     */
+    public void demanda()
+    {
+        EnumPrioridad carril = null;
+        lock.lock();
+        try
+        {
+            if (!escribiendo && !cerrado && pendientes > 0 && client.isListo())
+            {
+                carril = inicio.isEmpty() ? null : inicio.peekFirst().frame.getPrioridad();
+                for (int i = 0; carril == null && i < colas.length; i++)
+                {
+                    Pendiente pendiente = colas[i].peekFirst();
+                    if (pendiente != null)
+                    {
+                        carril = pendiente.frame.getPrioridad();
+                    }
+                }
+                escribiendo = true;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (carril != null)
+        {
+            EnumPrioridad prioridad = carril;
+            writers.apply(prioridad).execute(() -> drain(prioridad));
+        }
+    }
+
+    /**
+     * Reemplaza el UPDATE pendiente de la misma entidad por el nuevo frame. Los frames con id de reanudacion no se
+     * conflacionan: ocuparian el lugar en la cola de uno anterior y se escribirian antes que frames con ids menores.
+     * Se llama con el lock tomado.
+     * @param frame
+     * @return true si el frame reemplazo a uno pendiente
+     */
+    private boolean conflacionar(SseFrame frame)
+    {
+        if (cerrado || !frame.isConflacionable() || frame.getId() != null)
+        {
+            return false;
+        }
+        Pendiente pendiente = pendientesPorClave.get(frame.getClave());
+        if (pendiente == null)
+        {
+            return false;
+        }
+        pendiente.frame = frame;
+        conflacionados.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Descarta el pendiente mas viejo de la prioridad mas baja, si es igual o menor a {@code desde}. Se llama con el
+     * lock tomado.
+     * @param desde
+     *            ordinal de la prioridad mas alta que se puede descartar
+     * @return true si se descarto un pendiente
+     */
+    private boolean descartarMenor(int desde)
+    {
+        for (int i = colas.length - 1; i >= desde; i--)
+        {
+            Pendiente pendiente = colas[i].pollFirst();
+            if (pendiente != null)
+            {
+                pendientes--;
+                quitarClave(pendiente);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saca el pendiente mas viejo de la prioridad mas alta. Si tiene id de reanudacion saca en cambio el pendiente mas
+     * viejo de todos, para no escribirlo antes que otros encolados antes que el. Se llama con el lock tomado.
+     */
+    private Pendiente siguiente()
+    {
+        ArrayDeque<Pendiente> elegida = null;
+        for (ArrayDeque<Pendiente> cola : colas)
+        {
+            Pendiente primero = cola.peekFirst();
+            if (primero == null)
+            {
+                continue;
+            }
+            if (elegida == null)
+            {
+                elegida = cola;
+                if (primero.frame.getId() == null)
+                {
+                    break;
+                }
+            }
+            else if (primero.orden < elegida.peekFirst().orden)
+            {
+                elegida = cola;
+            }
+        }
+        Pendiente pendiente = elegida == null ? null : elegida.pollFirst();
+        if (pendiente != null)
+        {
+            pendientes--;
+        }
+        return pendiente;
+    }
+
+    private void quitarClave(Pendiente pendiente)
+    {
+        if (pendiente != null && pendiente.frame.getClave() != null)
+        {
+            pendientesPorClave.remove(pendiente.frame.getClave(), pendiente);
+        }
+    }
+
+    /**
+     * Escritor del suscriptor. Solo hay uno activo a la vez y termina cuando la cola queda vacia o el cliente deja de
+     * tener demanda. Si el siguiente mensaje corresponde a otro ejecutor, el escritor se traslada a ese ejecutor para
+     * no ocupar el de prioridad alta con trafico masivo.
+     * @param carril
+     *            prioridad con la que se eligio el ejecutor actual
+     */
+    private void drain(EnumPrioridad carril)
+    {
+        while (true)
+        {
+            Pendiente pendiente;
+            StreamDeliveryExecutor traslado = null;
+            lock.lock();
+            try
+            {
+                boolean listo = !cerrado && client.isListo();
+                pendiente = listo ? inicio.pollFirst() : null;
+                boolean inicial = pendiente != null;
+                if (inicial)
+                {
+                    pendientes--;
+                }
+                else if (listo)
+                {
+                    pendiente = siguiente();
+                }
+                if (pendiente == null)
+                {
+                    escribiendo = false;
+                    return;
+                }
+                EnumPrioridad prioridad = pendiente.frame.getPrioridad();
+                // El tramo inicial se escribe en el ejecutor que lo tomo
+                if (!inicial && writers.apply(prioridad) != writers.apply(carril))
+                {
+                    colas[prioridad.ordinal()].addFirst(pendiente);
+                    pendientes++;
+                    traslado = writers.apply(prioridad);
+                }
+                else
+                {
+                    quitarClave(pendiente);
+                    hayLugar.signalAll();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            if (traslado != null)
+            {
+                EnumPrioridad nuevo = pendiente.frame.getPrioridad();
+                traslado.execute(() -> drain(nuevo));
+                return;
+            }
+
+            try
+            {
+                SseFrame frame = versionar(pendiente.frame);
+                if (frame == null)
+                {
+                    conflacionados.incrementAndGet();
+                    continue;
+                }
+                client.send(frame, encoding);
+                escrituras.incrementAndGet();
+                if (!pendiente.frame.isPing())
+                {
+                    enviados.incrementAndGet();
+                    metricas.entrega(pendiente.frame.getPrioridad(), System.nanoTime() - pendiente.encolado);
+                }
+            }
+            catch (IOException | IllegalStateException e)
+            {
+                log.warn("error enviando mensaje {} al usuario {} error:{}", pendiente.frame.getClazz(),
+                        idPerfilUsuario, e.getMessage());
+                metricas.fallaEnvio(modulo);
+                close();
+                client.completeWithError(e);
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                // Sin desalojarlo el cliente quedaria registrado sin escritor y sin recibir mensajes
+                log.error("[STREAM] Error inesperado enviando {} al usuario {}, se desaloja el cliente",
+                        pendiente.frame.getClazz(), idPerfilUsuario, e);
+                metricas.fallaEnvio(modulo);
+                desalojar(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Elige entre el parche y el objeto completo segun la ultima version que se le escribio al cliente. Las versiones
+     * se asignan antes de encolar, por lo que dos UPDATE concurrentes de la misma entidad pueden llegar invertidos: el
+     * mas viejo se descarta para no volver al cliente a una version anterior.
+     * @param frame
+     * @return frame a escribir, null si el cliente ya recibio una version mas nueva
+     */
+    private SseFrame versionar(SseFrame frame)
+    {
+        SseFrame.Delta delta = frame.getDelta();
+        if (delta == null)
+        {
+            return frame;
+        }
+        if (delta.getVersion() == 0)
+        {
+            versionesDelta.remove(delta.getClave());
+            return frame;
+        }
+        Long escrita = versionesDelta.get(delta.getClave());
+        if (escrita != null && escrita >= delta.getVersion())
+        {
+            return null;
+        }
+        versionesDelta.put(delta.getClave(), delta.getVersion());
+        if (delta.getCompleto() != null && (escrita == null || escrita != delta.getBase()))
+        {
+            return delta.getCompleto();
+        }
+        return frame;
+    }
+
+    /**
+     * Descarta los mensajes pendientes y deja de aceptar nuevos.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            cerrado = true;
+            retenidos = null;
+            inicio.clear();
+            for (ArrayDeque<Pendiente> cola : colas)
+            {
+                cola.clear();
+            }
+            pendientes = 0;
+            pendientesPorClave.clear();
+            hayLugar.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Descarta los pendientes y termina la conexion en el ejecutor de cierres. Los clientes sincronizan
+     * {@code send} y {@code complete}, por lo que terminarla en el hilo que llama lo dejaria esperando a un escritor
+     * trabado en un socket muerto, justo el cliente que se quiere desalojar.
+     * @param error
+     *            causa del desalojo, o null para un cierre normal
+     */
+    public void desalojar(Throwable error)
+    {
+        close();
+        cierres.execute(() -> {
+            try
+            {
+                if (error == null)
+                    client.complete();
+                else
+                    client.completeWithError(error);
+            }
+            catch (RuntimeException e)
+            {
+                log.debug("[STREAM] Problema al cerrar la conexion de {}: {}", client, e.getMessage());
+            }
+        });
+    }
+
+    public boolean isCerrado()
+    {
+        return cerrado;
+    }
+
+    public int getPendientes()
+    {
+        lock.lock();
+        try
+        {
+            return pendientes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return antiguedad en milisegundos del mensaje pendiente mas viejo, 0 si no hay pendientes
+     */
+    public long getRetrasoMillis()
+    {
+        lock.lock();
+        try
+        {
+            long ahora = System.nanoTime();
+            long retraso = 0;
+            for (ArrayDeque<Pendiente> cola : colas)
+            {
+                Pendiente primero = cola.peekFirst();
+                if (primero != null)
+                {
+                    retraso = Math.max(retraso, ahora - primero.encolado);
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(retraso);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getEncolados()
+    {
+        return encolados.get();
+    }
+
+    public long getEnviados()
+    {
+        return enviados.get();
+    }
+
+    /**
+     * @return escrituras exitosas al socket, incluyendo los pings de heartbeat
+     */
+    public long getEscrituras()
+    {
+        return escrituras.get();
+    }
+
+    public long getDescartados()
+    {
+        return descartados.get();
+    }
+
+    /**
+     * @return cantidad de UPDATE que fueron reemplazados por una version mas nueva antes de enviarse
+     */
+    public long getConflacionados()
+    {
+        return conflacionados.get();
+    }
+
+    public int getMaximoPendientes()
+    {
+        return maximoPendientes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StreamSubscriber [modulo=" + modulo + ", idEquipo=" + idEquipo + ", idPerfilUsuario=" + idPerfilUsuario
+                + ", pendientes=" + pendientes + ", descartados=" + descartados + "]";
+    }
+
+    private static final class Pendiente
+    {
+        private SseFrame frame;
+
+        private final long encolado;
+
+        private final long orden;
+
+        private Pendiente(SseFrame frame, long encolado, long orden)
+        {
+            this.frame = frame;
+            this.encolado = encolado;
+            this.orden = orden;
+        }
+    }
+}
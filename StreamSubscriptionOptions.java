@@ -0,0 +1,26 @@
+package backend.core.lib.commons.stream;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Opciones que el cliente pide al conectarse, las arma el controlador o el handler con los datos de la peticion.
+ */
+@Getter
+@Builder
+@ToString
+public class StreamSubscriptionOptions
+{
+    public static final StreamSubscriptionOptions DEFAULT = StreamSubscriptionOptions.builder().build();
+
+    /**
+     * Ultimo id de evento recibido por el cliente, null en la primera conexion.
+     */
+    private final String lastEventId;
+
+    /**
+     * Codificacion pedida ({@code json}, {@code cbor}, {@code json+gzip}, {@code cbor+gzip}), null para JSON.
+     */
+    private final String codec;
+}
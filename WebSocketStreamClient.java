@@ -0,0 +1,137 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cliente stream sobre WebSocket. Cada mensaje se envia como un frame binario con el payload en la
+ * {@link StreamEncoding} del cliente, por defecto el JSON del {@link MessageSendToClient} en UTF-8; si el cliente y el
+ * contenedor negociaron {@code permessage-deflate} el frame viaja comprimido. Los pings de heartbeat son frames ping de
+ * WebSocket.
+ */
+@Slf4j
+public class WebSocketStreamClient implements IStreamClient
+{
+
+    @Getter
+    private final WebSocketSession session;
+
+    @Getter
+    private final EnumModulo modulo;
+
+    @Getter
+    private final Long idEquipo;
+
+    @Getter
+    private final Long idPerfilUsuario;
+
+    @Getter
+    private final Long idUnidad;
+
+    @Getter
+    private final Long idUnidadJdn;
+
+    @Getter
+    private final Long idEjercicio;
+
+    @Getter
+    private final Long idClientSession;
+
+    private volatile Runnable onTermination;
+
+    private boolean terminado;
+
+    public WebSocketStreamClient(WebSocketSession session, EnumModulo modulo, Long idEquipo, Long idPerfilUsuario,
+            Long idUnidad, Long idUnidadJdn, Long idEjercicio, Long idClientSession)
+    {
+        this.session = session;
+        this.modulo = modulo;
+        this.idEquipo = idEquipo;
+        this.idPerfilUsuario = idPerfilUsuario;
+        this.idUnidad = idUnidad;
+        this.idUnidadJdn = idUnidadJdn;
+        this.idEjercicio = idEjercicio;
+        this.idClientSession = idClientSession;
+    }
+
+    /**
+     * Accion a ejecutar cuando se cierra la sesion, por el cliente o por el servidor.
+     * @param callback
+     */
+    public void onTermination(Runnable callback)
+    {
+        this.onTermination = callback;
+    }
+
+    /**
+     * Lo llama el handler cuando el contenedor informa el cierre de la sesion. Ejecuta el callback una sola vez.
+     */
+    public void terminar()
+    {
+        synchronized (this)
+        {
+            if (terminado)
+            {
+                return;
+            }
+            terminado = true;
+        }
+        Runnable callback = onTermination;
+        if (callback != null)
+        {
+            callback.run();
+        }
+    }
+
+    @Override
+    public synchronized void send(SseFrame frame, StreamEncoding encoding) throws IOException
+    {
+        if (frame.isPing())
+        {
+            session.sendMessage(new PingMessage());
+        }
+        else
+        {
+            session.sendMessage(new BinaryMessage(ByteBuffer.wrap(frame.getPayload(encoding))));
+        }
+    }
+
+    @Override
+    public synchronized void complete()
+    {
+        cerrar(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public synchronized void completeWithError(Throwable e)
+    {
+        cerrar(CloseStatus.SERVER_ERROR);
+    }
+
+    private void cerrar(CloseStatus status)
+    {
+        try
+        {
+            session.close(status);
+        }
+        catch (IOException e)
+        {
+            log.debug("[STREAM] Error cerrando sesion websocket {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WebSocketStreamClient [session=" + session.getId() + ", modulo=" + modulo + ", idEquipo=" + idEquipo
+                + ", idPerfilUsuario=" + idPerfilUsuario + "]";
+    }
+}
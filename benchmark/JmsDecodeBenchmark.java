@@ -0,0 +1,160 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Costo de recibir un mensaje de replicacion de otra instancia: decodificar el cuerpo, resolver el tipo y despacharlo a
+ * su carril. La instancia no tiene clientes ni reanudacion, por lo que el carril lo descarta sin serializar y se mide
+ * solo la decodificacion.
+ * <p>
+ * Se ejecuta con {@code java -jar benchmarks.jar JmsDecodeBenchmark -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class JmsDecodeBenchmark
+{
+
+    /**
+     * Instancia de origen de los mensajes, distinta de la del contexto.
+     */
+    private static final long ORIGEN = 1L;
+
+    private static final int TAMANO_LOTE = 32;
+
+    @Param({ "AUDIENCIA", "MENSAJE_EQUIPO", "MENSAJE_EQUIPO_USUARIOS", "MENSAJE_UNIDADES", "MENSAJE_USUARIOS",
+            "DIRECTORIO", "LOTE" })
+    public String tipo;
+
+    @Param({ "JSON", "SMILE" })
+    public EnumJmsCodec codec;
+
+    private AnnotationConfigApplicationContext contexto;
+
+    private StreamBenchmarkSupport.CargaEventService servicio;
+
+    private String texto;
+
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void iniciar() throws IOException
+    {
+        contexto = StreamBenchmarkSupport.contexto("decode",
+                Collections.singletonMap("sisdef.stream.replay.capacity", 0), null);
+        servicio = contexto.getBean(StreamBenchmarkSupport.CargaEventService.class);
+        ObjectMapper mapper = servicio.mapper;
+        Object mensaje;
+        if (tipo.equals(AbstractEventService.JMS_TIPO_LOTE))
+        {
+            ArrayNode lote = mapper.createArrayNode();
+            for (int i = 0; i < TAMANO_LOTE; i++)
+            {
+                lote.add(mensaje(mapper, StreamAudienceMessage.TIPO, i));
+            }
+            mensaje = lote;
+        }
+        else
+        {
+            mensaje = mensaje(mapper, tipo, 0);
+        }
+        Object codificado = new JmsStreamCodec(codec, mapper).encode(mensaje);
+        if (codificado instanceof byte[])
+        {
+            bytes = (byte[]) codificado;
+        }
+        else
+        {
+            texto = (String) codificado;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar()
+    {
+        contexto.close();
+    }
+
+    @Benchmark
+    public void processJmsMessage()
+    {
+        if (bytes != null)
+        {
+            servicio.recibir(bytes);
+        }
+        else
+        {
+            servicio.recibir(texto);
+        }
+    }
+
+    /**
+     * Mensaje de replicacion del tipo con los campos con que lo publica una instancia, incluidos los
+     * {@code JmsStreamMessage*} de las instancias anteriores.
+     */
+    private static ObjectNode mensaje(ObjectMapper mapper, String tipo, int indice)
+    {
+        ObjectNode nodo = mapper.createObjectNode();
+        nodo.put("tipo", tipo);
+        nodo.put("instance", ORIGEN);
+        nodo.put("modulo", StreamBenchmarkSupport.MODULO.name());
+        if (StreamDirectoryMessage.TIPO.equals(tipo))
+        {
+            nodo.put("destino", "STREAM." + ORIGEN + ".cargaEventService");
+            nodo.put("idPerfilUsuario", 1000L + indice);
+            nodo.put("conectado", true);
+            return nodo;
+        }
+        nodo.put("operacion", EnumOperacion.UPDATE.name());
+        nodo.put("clazz", "Posicion");
+        nodo.put("message", "{\"id\":" + indice + ",\"latitud\":-34.6,\"longitud\":-58.4}");
+        switch (tipo)
+        {
+            case StreamAudienceMessage.TIPO:
+                nodo.set("audiencia", mapper.valueToTree(
+                        StreamAudience.equipo(7L).y(StreamAudience.usuarios(Arrays.asList(1L, 2L, 3L)))));
+                break;
+            case "MENSAJE_EQUIPO":
+                nodo.put("teamId", 7L);
+                break;
+            case "MENSAJE_EQUIPO_USUARIOS":
+                nodo.put("teamId", 7L);
+                nodo.set("usersId", mapper.valueToTree(Arrays.asList(1L, 2L, 3L)));
+                break;
+            case "MENSAJE_UNIDADES":
+                nodo.set("unitId", mapper.valueToTree(Arrays.asList(10L, 11L, 12L)));
+                break;
+            case "MENSAJE_USUARIOS":
+                nodo.set("ids", mapper.valueToTree(Arrays.asList(1L, 2L, 3L)));
+                break;
+            default:
+                throw new IllegalArgumentException(tipo);
+        }
+        return nodo;
+    }
+}
@@ -0,0 +1,236 @@
+package backend.core.lib.commons.stream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Piezas comunes de los benchmarks JMH y del harness de carga: un contexto de Spring con un servicio stream real y
+ * clientes SSE que escriben a un sumidero nulo. Las fuentes de {@code benchmark/} no forman parte de la libreria y se
+ * compilan aparte, con JMH y ActiveMQ en el classpath.
+ */
+public final class StreamBenchmarkSupport
+{
+
+    public static final EnumModulo MODULO = EnumModulo.CHAT;
+
+    private StreamBenchmarkSupport()
+    {
+    }
+
+    /**
+     * Levanta un contexto con un {@link CargaEventService}. Sin {@code connectionFactory} el servicio funciona sin
+     * ActiveMQ; con ella se replica por el broker y hay que habilitar {@code sisdef.activemq.enable}.
+     * @param nombre
+     *            nombre del contexto, aparece en los hilos del servicio
+     * @param propiedades
+     *            propiedades {@code sisdef.*} que reemplazan a las de por defecto
+     * @param connectionFactory
+     *            conexion al broker, o null
+     * @param configuraciones
+     *            clases de configuracion adicionales
+     * @return contexto ya iniciado
+     */
+    public static AnnotationConfigApplicationContext contexto(String nombre, Map<String, Object> propiedades,
+            ConnectionFactory connectionFactory, Class<?>... configuraciones)
+    {
+        AnnotationConfigApplicationContext contexto = new AnnotationConfigApplicationContext();
+        contexto.setDisplayName(nombre);
+        Map<String, Object> todas = new HashMap<>();
+        // Sin heartbeat ni presencia para medir solo el reparto, salvo que se pidan
+        todas.put("sisdef.stream.heartbeat.interval-ms", 0);
+        todas.put("sisdef.stream.presence." + MODULO.name(), false);
+        todas.putAll(propiedades);
+        contexto.getEnvironment().getPropertySources().addFirst(new MapPropertySource(nombre, todas));
+        if (connectionFactory != null)
+        {
+            contexto.registerBean(ConnectionFactory.class, () -> connectionFactory);
+        }
+        contexto.register(Configuracion.class);
+        if (configuraciones.length > 0)
+        {
+            contexto.register(configuraciones);
+        }
+        contexto.refresh();
+        return contexto;
+    }
+
+    /**
+     * Espera a que los clientes hayan recibido {@code esperados} escrituras.
+     * @param recibidos
+     *            contador de los clientes
+     * @param esperados
+     * @param timeoutMillis
+     * @return false si se cumplio el tiempo maximo
+     */
+    public static boolean esperar(LongAdder recibidos, long esperados, long timeoutMillis)
+    {
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (recibidos.sum() < esperados)
+        {
+            if (System.nanoTime() > limite)
+            {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @Configuration
+    static class Configuracion
+    {
+        @Bean
+        static PropertySourcesPlaceholderConfigurer propiedades()
+        {
+            return new PropertySourcesPlaceholderConfigurer();
+        }
+
+        @Bean
+        ObjectMapper objectMapper()
+        {
+            return new ObjectMapper();
+        }
+
+        @Bean
+        JmsTemplate jmsTemplate(ObjectProvider<ConnectionFactory> connectionFactory)
+        {
+            JmsTemplate template = new JmsTemplate();
+            connectionFactory.ifAvailable(template::setConnectionFactory);
+            template.setPubSubDomain(true);
+            return template;
+        }
+
+        @Bean
+        CargaEventService cargaEventService()
+        {
+            return new CargaEventService();
+        }
+    }
+
+    /**
+     * Servicio stream de las pruebas. El listener del topico del modulo solo se activa en los contextos con
+     * {@code @EnableJms}, ver {@link StreamLoadHarness}.
+     */
+    public static class CargaEventService extends AbstractEventService
+    {
+        private final LongAdder desconectados = new LongAdder();
+
+        @JmsListener(destination = "CHAT", selector = AbstractEventService.JMS_SELECTOR)
+        public void recibir(Message message)
+        {
+            processJmsMessage(message);
+        }
+
+        /**
+         * Acceso a la decodificacion de replicacion para {@link JmsDecodeBenchmark}.
+         */
+        public void recibir(String message)
+        {
+            processJmsMessage(message);
+        }
+
+        public void recibir(byte[] message)
+        {
+            processJmsMessage(message);
+        }
+
+        @Override
+        public void disconnected(MarteSseClient emitter)
+        {
+            desconectados.increment();
+        }
+
+        public long getDesconectados()
+        {
+            return desconectados.sum();
+        }
+    }
+
+    /**
+     * Cliente SSE que descarta lo que se le escribe y solo cuenta las escrituras. Como no hay contenedor de servlets,
+     * al terminar la conexion ejecuta el mismo el callback de finalizacion.
+     */
+    public static class ClienteNulo extends MarteSseClient
+    {
+        private final LongAdder recibidos;
+
+        private final AtomicBoolean terminado = new AtomicBoolean();
+
+        private volatile Runnable alCompletar;
+
+        public ClienteNulo(Long idEquipo, Long idUsuario, Long idUnidad, Long idUnidadJdn, Long idEjercicio,
+                Long idClientSession, LongAdder recibidos)
+        {
+            super(MODULO, idEquipo, idUsuario, idUnidad, idUnidadJdn, idEjercicio, idClientSession);
+            this.recibidos = recibidos;
+        }
+
+        @Override
+        public void onCompletion(Runnable callback)
+        {
+            super.onCompletion(callback);
+            alCompletar = callback;
+        }
+
+        @Override
+        public void complete()
+        {
+            super.complete();
+            terminar();
+        }
+
+        @Override
+        public void completeWithError(Throwable ex)
+        {
+            super.completeWithError(ex);
+            terminar();
+        }
+
+        public boolean isTerminado()
+        {
+            return terminado.get();
+        }
+
+        private void terminar()
+        {
+            Runnable callback = alCompletar;
+            if (callback != null && terminado.compareAndSet(false, true))
+            {
+                callback.run();
+            }
+        }
+
+        @Override
+        public void send(SseEmitter.SseEventBuilder builder)
+        {
+            recibir(builder);
+            recibidos.increment();
+        }
+
+        /**
+         * Punto de extension para los clientes que inspeccionan el evento.
+         * @param builder
+         */
+        protected void recibir(SseEmitter.SseEventBuilder builder)
+        {
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package backend.core.lib.commons.stream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import lombok.Data;
+
+/**
+ * Costo de repartir un mensaje entre los clientes conectados a una instancia, desde la publicacion hasta que el
+ * escritor de cada destinatario lo entrego. Los clientes son {@link StreamBenchmarkSupport.ClienteNulo}, por lo que
+ * se mide el servicio y no el socket.
+ * <p>
+ * Se ejecuta con {@code java -jar benchmarks.jar StreamFanoutBenchmark -prof gc}: throughput en ops/s, la asignacion
+ * por operacion del perfilador de GC y la distribucion de latencia (p99) de {@link Mode#SampleTime}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class StreamFanoutBenchmark
+{
+
+    private static final long EQUIPOS = 50;
+
+    private static final long UNIDADES = 500;
+
+    private static final long EJERCICIO = 1L;
+
+    private static final long EQUIPO = 0L;
+
+    private static final long TIMEOUT_MS = 30000;
+
+    @Param({ "1000", "10000", "50000" })
+    public int clientes;
+
+    private AnnotationConfigApplicationContext contexto;
+
+    private AbstractEventService servicio;
+
+    private final LongAdder recibidos = new LongAdder();
+
+    private long esperados;
+
+    private List<Long> unidades;
+
+    private List<Long> usuariosEquipo;
+
+    private int destinatariosEquipo;
+
+    private int destinatariosUnidades;
+
+    private int destinatariosEquipoUsuarios;
+
+    private final Posicion posicion = new Posicion();
+
+    @Setup(Level.Trial)
+    public void iniciar()
+    {
+        contexto = StreamBenchmarkSupport.contexto("fanout", Collections.emptyMap(), null);
+        servicio = contexto.getBean(AbstractEventService.class);
+        unidades = new ArrayList<>();
+        for (long unidad = 0; unidad < 10; unidad++)
+        {
+            unidades.add(unidad);
+        }
+        Set<Long> conjuntoUnidades = new HashSet<>(unidades);
+        usuariosEquipo = new ArrayList<>();
+        for (long i = 0; i < clientes; i++)
+        {
+            long equipo = i % EQUIPOS;
+            long unidad = i % UNIDADES;
+            long usuario = i + 1;
+            servicio.register(new StreamBenchmarkSupport.ClienteNulo(equipo, usuario, unidad, null, EJERCICIO,
+                    usuario, recibidos));
+            if (equipo == EQUIPO)
+            {
+                destinatariosEquipo++;
+                if (usuariosEquipo.size() < 100)
+                {
+                    usuariosEquipo.add(usuario);
+                }
+            }
+            if (conjuntoUnidades.contains(unidad))
+            {
+                destinatariosUnidades++;
+            }
+        }
+        destinatariosEquipoUsuarios = usuariosEquipo.size();
+        // Los mensajes CONNECTED
+        esperados = clientes;
+        esperar();
+        posicion.setId(1L);
+        posicion.setLatitud(-34.6);
+        posicion.setLongitud(-58.4);
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar()
+    {
+        contexto.close();
+    }
+
+    @Benchmark
+    public void mensajeEquipo()
+    {
+        servicio.mensajeEquipo(StreamBenchmarkSupport.MODULO, EnumOperacion.UPDATE, EQUIPO, Posicion.class, posicion);
+        esperados += destinatariosEquipo;
+        esperar();
+    }
+
+    @Benchmark
+    public void mensajeUnidades()
+    {
+        servicio.mensajeUnidades(StreamBenchmarkSupport.MODULO, EnumOperacion.UPDATE, unidades, Posicion.class,
+                posicion);
+        esperados += destinatariosUnidades;
+        esperar();
+    }
+
+    @Benchmark
+    public void mensajeEquipoUsuarios()
+    {
+        servicio.mensajeEquipoUsuarios(StreamBenchmarkSupport.MODULO, EnumOperacion.UPDATE, EQUIPO, usuariosEquipo,
+                Posicion.class, posicion);
+        esperados += destinatariosEquipoUsuarios;
+        esperar();
+    }
+
+    private void esperar()
+    {
+        if (!StreamBenchmarkSupport.esperar(recibidos, esperados, TIMEOUT_MS))
+        {
+            throw new IllegalStateException("Se esperaban " + esperados + " escrituras y llegaron " + recibidos.sum());
+        }
+    }
+
+    @Data
+    public static class Posicion
+    {
+        private Long id;
+
+        private double latitud;
+
+        private double longitud;
+    }
+}
@@ -0,0 +1,411 @@
+package backend.core.lib.commons.stream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jms.ConnectionFactory;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jms.annotation.EnableJms;
+import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Prueba de carga de punta a punta de varias instancias del servicio stream en una sola JVM y sin red: cada instancia
+ * es un contexto de Spring con su {@link StreamBenchmarkSupport.CargaEventService}, replicando con
+ * {@code sisdef.activemq.enable=true} por un broker ActiveMQ embebido ({@code vm://}). Los clientes SSE se arman con
+ * {@link AbstractEventController#configureSseClient(StreamConfig, EnumModulo)} y se reparten entre las instancias.
+ * <p>
+ * Cada ronda conecta los clientes, publica sondas a los equipos desde instancias al azar durante el tiempo pedido,
+ * espera que se entreguen y desconecta a todos. Informa:
+ * <ul>
+ * <li>latencia de entrega, desde la publicacion hasta la escritura al cliente, p50, p99 y maxima;</li>
+ * <li>completitud: sondas recibidas contra las esperadas por cada cliente, con faltantes y duplicadas;</li>
+ * <li>perdidas: al final de cada ronda ninguna instancia debe retener clientes, ver
+ * {@link StreamDiagnostico#isPerdidas()}.</li>
+ * </ul>
+ * Se configura con propiedades de sistema {@code harness.*}, por ejemplo
+ * {@code -Dharness.instancias=3 -Dharness.clientes=6000 -Dharness.rondas=20} para un soak.
+ */
+@Slf4j
+public final class StreamLoadHarness
+{
+
+    private static final String SONDA = "Sonda";
+
+    private final int instancias = Integer.getInteger("harness.instancias", 2);
+
+    private final int clientes = Integer.getInteger("harness.clientes", 3000);
+
+    private final int equipos = Integer.getInteger("harness.equipos", 30);
+
+    private final int mensajesPorSegundo = Integer.getInteger("harness.mensajes-por-segundo", 200);
+
+    private final long duracionMillis = Long.getLong("harness.duracion-ms", 30000L);
+
+    private final long esperaMillis = Long.getLong("harness.espera-ms", 30000L);
+
+    private final int rondas = Integer.getInteger("harness.rondas", 1);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final List<AnnotationConfigApplicationContext> contextos = new ArrayList<>();
+
+    private final List<StreamBenchmarkSupport.CargaEventService> servicios = new ArrayList<>();
+
+    private final CargaEventController controlador = new CargaEventController();
+
+    private final Latencias latencias = new Latencias();
+
+    private BrokerService broker;
+
+    public static void main(String[] args) throws Exception
+    {
+        StreamLoadHarness harness = new StreamLoadHarness();
+        boolean ok;
+        try
+        {
+            harness.iniciar();
+            ok = harness.ejecutar();
+        }
+        finally
+        {
+            harness.terminar();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private void iniciar() throws Exception
+    {
+        broker = new BrokerService();
+        broker.setBrokerName("harness");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        ConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://harness?create=false");
+        Map<String, Object> propiedades = new HashMap<>();
+        propiedades.put("sisdef.activemq.enable", true);
+        for (int i = 0; i < instancias; i++)
+        {
+            AnnotationConfigApplicationContext contexto = StreamBenchmarkSupport.contexto("instancia-" + i,
+                    propiedades, connectionFactory, ConfiguracionJms.class);
+            contextos.add(contexto);
+            servicios.add(contexto.getBean(StreamBenchmarkSupport.CargaEventService.class));
+        }
+    }
+
+    private void terminar() throws Exception
+    {
+        for (AnnotationConfigApplicationContext contexto : contextos)
+        {
+            contexto.close();
+        }
+        if (broker != null)
+        {
+            broker.stop();
+        }
+    }
+
+    /**
+     * @return true si todas las rondas entregaron todas las sondas y no dejaron clientes retenidos
+     */
+    private boolean ejecutar() throws InterruptedException
+    {
+        boolean ok = true;
+        for (int ronda = 1; ronda <= rondas; ronda++)
+        {
+            ok &= ronda(ronda);
+        }
+        return ok;
+    }
+
+    private boolean ronda(int ronda) throws InterruptedException
+    {
+        latencias.reiniciar();
+        LongAdder recibidos = new LongAdder();
+        List<ClienteSonda> conectados = new ArrayList<>();
+        for (int i = 0; i < clientes; i++)
+        {
+            StreamConfig ctx = new StreamConfig();
+            ctx.setIdEquipo((long) (i % equipos));
+            ctx.setIdUsuario((long) i + 1);
+            ctx.setIdUnidad((long) i);
+            ctx.setIdUnidadJdn((long) i + 100000);
+            ctx.setIdEjercicio(1L);
+            ctx.setIdClientSession((long) ronda * clientes + i);
+            ClienteSonda cliente = new ClienteSonda(controlador.conectar(ctx), recibidos);
+            servicios.get(i % instancias).register(cliente);
+            conectados.add(cliente);
+        }
+        if (!StreamBenchmarkSupport.esperar(recibidos, clientes, esperaMillis))
+        {
+            log.error("[HARNESS] Ronda {}: solo {} de {} clientes recibieron CONNECTED", ronda, recibidos.sum(),
+                    clientes);
+        }
+
+        long[] porEquipo = publicar();
+        long esperadas = 0;
+        for (ClienteSonda cliente : conectados)
+        {
+            esperadas += porEquipo[cliente.getIdEquipo().intValue()];
+        }
+        long limite = System.currentTimeMillis() + esperaMillis;
+        while (sondas(conectados) < esperadas && System.currentTimeMillis() < limite)
+        {
+            Thread.sleep(50);
+        }
+
+        long faltantes = 0;
+        long duplicadas = 0;
+        int incompletos = 0;
+        for (ClienteSonda cliente : conectados)
+        {
+            long diferencia = cliente.getSondas().get() - porEquipo[cliente.getIdEquipo().intValue()];
+            if (diferencia < 0)
+            {
+                faltantes -= diferencia;
+                incompletos++;
+            }
+            else
+            {
+                duplicadas += diferencia;
+            }
+        }
+        log.info("[HARNESS] Ronda {}: {} clientes en {} instancias, {} sondas esperadas, {} faltantes en {} clientes, "
+                + "{} duplicadas", ronda, clientes, instancias, esperadas, faltantes, incompletos, duplicadas);
+        log.info("[HARNESS] Ronda {}: latencia p50 {} ms, p99 {} ms, maxima {} ms", ronda, latencias.percentil(0.50),
+                latencias.percentil(0.99), latencias.getMaxima());
+
+        for (ClienteSonda cliente : conectados)
+        {
+            cliente.complete();
+        }
+        boolean limpias = esperarLimpieza(ronda);
+        return faltantes == 0 && duplicadas == 0 && limpias;
+    }
+
+    /**
+     * Publica sondas a equipos al azar desde instancias al azar, al ritmo pedido.
+     * @return sondas enviadas a cada equipo
+     */
+    private long[] publicar() throws InterruptedException
+    {
+        long[] porEquipo = new long[equipos];
+        long periodo = TimeUnit.SECONDS.toNanos(1) / Math.max(1, mensajesPorSegundo);
+        long inicio = System.nanoTime();
+        long fin = inicio + TimeUnit.MILLISECONDS.toNanos(duracionMillis);
+        long secuencia = 0;
+        while (System.nanoTime() < fin)
+        {
+            long proximo = inicio + secuencia * periodo;
+            long demora = proximo - System.nanoTime();
+            if (demora > 0)
+            {
+                TimeUnit.NANOSECONDS.sleep(demora);
+            }
+            int equipo = (int) Math.floorMod(secuencia * 7919, equipos);
+            Sonda sonda = new Sonda();
+            sonda.setSecuencia(secuencia);
+            sonda.setEnviado(System.nanoTime());
+            servicios.get((int) (secuencia % instancias)).mensajeEquipo(StreamBenchmarkSupport.MODULO,
+                    EnumOperacion.CREATE, (long) equipo, SONDA, sonda);
+            porEquipo[equipo]++;
+            secuencia++;
+        }
+        return porEquipo;
+    }
+
+    /**
+     * Espera que las instancias suelten a los clientes desconectados y compara el diagnostico de cada una.
+     * @return false si alguna retiene clientes
+     */
+    private boolean esperarLimpieza(int ronda) throws InterruptedException
+    {
+        long limite = System.currentTimeMillis() + esperaMillis;
+        boolean limpias = false;
+        while (!limpias && System.currentTimeMillis() < limite)
+        {
+            Thread.sleep(100);
+            limpias = true;
+            for (StreamBenchmarkSupport.CargaEventService servicio : servicios)
+            {
+                StreamDiagnostico diagnostico = servicio.getDiagnostico();
+                limpias &= diagnostico.getRegistrados() == 0 && !diagnostico.isPerdidas();
+            }
+        }
+        for (StreamBenchmarkSupport.CargaEventService servicio : servicios)
+        {
+            StreamDiagnostico diagnostico = servicio.getDiagnostico();
+            log.info("[HARNESS] Ronda {}: instancia {} emitters {}, registrados {} (sse {}, reactivos {}, "
+                    + "websocket {}), heartbeat {}, replicados publicados {} aplicados {} fallidos {}", ronda,
+                    diagnostico.getInstance(), diagnostico.getEmitters(), diagnostico.getRegistrados(),
+                    diagnostico.getRegistradosSse(), diagnostico.getRegistradosReactivos(),
+                    diagnostico.getRegistradosWebSocket(), diagnostico.getEnHeartbeat(),
+                    diagnostico.getPublicadosJms(), diagnostico.getAplicadosJms(), diagnostico.getFallidosJms());
+        }
+        if (!limpias)
+        {
+            log.error("[HARNESS] Ronda {}: hay instancias que retienen clientes desconectados", ronda);
+        }
+        return limpias;
+    }
+
+    private static long sondas(List<ClienteSonda> clientes)
+    {
+        long total = 0;
+        for (ClienteSonda cliente : clientes)
+        {
+            total += cliente.getSondas().get();
+        }
+        return total;
+    }
+
+    @Configuration
+    @EnableJms
+    static class ConfiguracionJms
+    {
+        @Bean
+        DefaultJmsListenerContainerFactory jmsListenerContainerFactory(ConnectionFactory connectionFactory)
+        {
+            DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
+            factory.setConnectionFactory(connectionFactory);
+            factory.setPubSubDomain(true);
+            return factory;
+        }
+    }
+
+    /**
+     * Controlador de la prueba, arma los clientes igual que los controladores de los modulos.
+     */
+    static class CargaEventController extends AbstractEventController
+    {
+        MarteSseClient conectar(StreamConfig ctx)
+        {
+            return configureSseClient(ctx, StreamBenchmarkSupport.MODULO);
+        }
+    }
+
+    @Data
+    public static class Sonda
+    {
+        private long secuencia;
+
+        /**
+         * {@link System#nanoTime()} de la publicacion, comparable porque todas las instancias corren en la JVM.
+         */
+        private long enviado;
+    }
+
+    /**
+     * Cliente con los identificadores que armo el controlador, que mide la latencia de las sondas que recibe.
+     */
+    class ClienteSonda extends StreamBenchmarkSupport.ClienteNulo
+    {
+        @Getter
+        private final AtomicLong sondas = new AtomicLong();
+
+        ClienteSonda(MarteSseClient conexion, LongAdder recibidos)
+        {
+            super(conexion.getIdEquipo(), conexion.getIdPerfilUsuario(), conexion.getIdUnidad(),
+                    conexion.getIdUnidadJdn(), conexion.getIdEjercicio(), conexion.getIdClientSession(), recibidos);
+        }
+
+        @Override
+        protected void recibir(SseEmitter.SseEventBuilder builder)
+        {
+            long recibido = System.nanoTime();
+            for (ResponseBodyEmitter.DataWithMediaType dato : builder.build())
+            {
+                if (!(dato.getData() instanceof byte[]))
+                {
+                    continue;
+                }
+                try
+                {
+                    JsonNode mensaje = mapper.readTree((byte[]) dato.getData());
+                    if (!SONDA.equals(mensaje.path("clazz").asText()))
+                    {
+                        continue;
+                    }
+                    JsonNode data = mensaje.path("data");
+                    Sonda sonda = mapper.readValue(data.isTextual() ? data.asText() : data.toString(), Sonda.class);
+                    latencias.registrar(TimeUnit.NANOSECONDS.toMillis(recibido - sonda.getEnviado()));
+                    sondas.incrementAndGet();
+                }
+                catch (IOException e)
+                {
+                    log.error("[HARNESS] No se pudo leer el evento", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Histograma de latencias con casilleros de un milisegundo.
+     */
+    static class Latencias
+    {
+        private final AtomicLongArray casilleros = new AtomicLongArray(60001);
+
+        private final AtomicLong maxima = new AtomicLong();
+
+        void registrar(long millis)
+        {
+            casilleros.incrementAndGet((int) Math.min(Math.max(0, millis), casilleros.length() - 1));
+            maxima.accumulateAndGet(millis, Math::max);
+        }
+
+        long percentil(double percentil)
+        {
+            long total = 0;
+            for (int i = 0; i < casilleros.length(); i++)
+            {
+                total += casilleros.get(i);
+            }
+            long objetivo = (long) Math.ceil(total * percentil);
+            long acumulado = 0;
+            for (int i = 0; i < casilleros.length(); i++)
+            {
+                acumulado += casilleros.get(i);
+                if (acumulado >= objetivo && acumulado > 0)
+                {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        long getMaxima()
+        {
+            return maxima.get();
+        }
+
+        void reiniciar()
+        {
+            for (int i = 0; i < casilleros.length(); i++)
+            {
+                casilleros.set(i, 0);
+            }
+            maxima.set(0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package backend.core.lib.commons.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class JmsReplicationBatcherTest
+{
+
+    private static final long TIMEOUT = 5000;
+
+    private static final JmsQos QOS = new JmsQos(false, 4, 0);
+
+    private final List<Publicado> publicados = new CopyOnWriteArrayList<>();
+
+    private JmsReplicationBatcher batcher;
+
+    private JmsReplicationBatcher batcher(int maxMensajes, long maxEsperaMillis)
+    {
+        batcher = new JmsReplicationBatcher(maxMensajes, maxEsperaMillis, 1, 1, 10,
+                (topico, mensajes, qos) -> publicados.add(new Publicado(topico, mensajes, qos)));
+        return batcher;
+    }
+
+    @AfterEach
+    void detener()
+    {
+        if (batcher != null)
+        {
+            batcher.shutdown();
+        }
+    }
+
+    private List<Object> mensajes(String topico)
+    {
+        List<Object> mensajes = new ArrayList<>();
+        for (Publicado publicado : publicados)
+        {
+            if (publicado.topico.equals(topico))
+            {
+                mensajes.addAll(publicado.mensajes);
+            }
+        }
+        return mensajes;
+    }
+
+    @Test
+    void publicaAlCompletarElLote()
+    {
+        batcher(3, 60000);
+
+        batcher.add("A", 1, QOS);
+        batcher.add("A", 2, QOS);
+        assertTrue(publicados.isEmpty());
+        batcher.add("A", 3, QOS);
+
+        assertTrue(StreamTestSupport.esperar(() -> publicados.size() == 1, TIMEOUT));
+        assertEquals(Arrays.asList(1, 2, 3), publicados.get(0).mensajes);
+    }
+
+    @Test
+    void publicaAlVencerLaEspera()
+    {
+        batcher(100, 20);
+
+        batcher.add("A", 1, QOS);
+        batcher.add("A", 2, QOS);
+
+        assertTrue(StreamTestSupport.esperar(() -> publicados.size() == 1, TIMEOUT));
+        assertEquals(Arrays.asList(1, 2), publicados.get(0).mensajes);
+    }
+
+    @Test
+    void inmediatoPublicaConLosQueEsperabanDelante()
+    {
+        batcher(100, 60000);
+
+        batcher.add("A", 1, QOS);
+        batcher.add("A", 2, QOS, true);
+
+        assertTrue(StreamTestSupport.esperar(() -> publicados.size() == 1, TIMEOUT));
+        assertEquals(Arrays.asList(1, 2), publicados.get(0).mensajes);
+    }
+
+    @Test
+    void lotesPorTopicoConLaQosCombinada()
+    {
+        batcher(100, 60000);
+        JmsQos persistente = new JmsQos(true, 7, 0);
+
+        batcher.add("A", 1, QOS);
+        batcher.add("B", 2, QOS);
+        batcher.add("A", 3, persistente);
+        batcher.flush();
+
+        assertEquals(Arrays.asList(1, 3), mensajes("A"));
+        assertEquals(Arrays.asList(2), mensajes("B"));
+        for (Publicado publicado : publicados)
+        {
+            assertEquals(publicado.topico.equals("A") ? persistente : QOS, publicado.qos);
+        }
+    }
+
+    @Test
+    void mantieneElOrdenDentroDelTopico()
+    {
+        batcher(7, 5);
+        List<Object> enviados = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+        {
+            batcher.add("A", i, QOS);
+            enviados.add(i);
+        }
+
+        assertTrue(StreamTestSupport.esperar(() -> mensajes("A").size() == enviados.size(), TIMEOUT));
+        assertEquals(enviados, mensajes("A"));
+        for (Publicado publicado : publicados)
+        {
+            assertTrue(publicado.mensajes.size() <= 7);
+        }
+    }
+
+    @Test
+    void unTopicoSigueFuncionandoDespuesDeVaciarse()
+    {
+        batcher(2, 60000);
+
+        batcher.add("A", 1, QOS);
+        batcher.add("A", 2, QOS);
+        assertTrue(StreamTestSupport.esperar(() -> mensajes("A").size() == 2, TIMEOUT));
+        batcher.add("A", 3, QOS);
+        batcher.add("A", 4, QOS);
+
+        assertTrue(StreamTestSupport.esperar(() -> mensajes("A").size() == 4, TIMEOUT));
+        assertEquals(Arrays.asList(1, 2, 3, 4), mensajes("A"));
+    }
+
+    @Test
+    void despuesDeDetenerPublicaEnElHiloQueLlama()
+    {
+        batcher(100, 60000);
+        batcher.add("A", 1, QOS);
+
+        batcher.shutdown();
+        assertEquals(Arrays.asList(1), mensajes("A"));
+
+        batcher.add("A", 2, QOS);
+        assertEquals(Arrays.asList(1, 2), mensajes("A"));
+    }
+
+    private static final class Publicado
+    {
+        private final String topico;
+
+        private final List<Object> mensajes;
+
+        private final JmsQos qos;
+
+        private Publicado(String topico, List<Object> mensajes, JmsQos qos)
+        {
+            this.topico = topico;
+            this.mensajes = new ArrayList<>(mensajes);
+            this.qos = qos;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package backend.core.lib.commons.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import org.junit.jupiter.api.Test;
+
+import backend.core.lib.commons.stream.StreamTestSupport.ClientePrueba;
+
+class StreamAudienceTest
+{
+
+    private static StreamSubscriber suscriptor(Long idEquipo, Long idEjercicio, Long idUnidad, Long idPerfilUsuario)
+    {
+        return StreamTestSupport.suscriptor(new ClientePrueba(idEquipo, idEjercicio, idUnidad, idPerfilUsuario));
+    }
+
+    @Test
+    void equipoYUsuariosAceptaSoloLosUsuariosDelEquipo()
+    {
+        StreamAudience audiencia = StreamAudience.equipo(3L).y(StreamAudience.usuarios(Arrays.asList(7L, 9L)));
+
+        assertTrue(audiencia.test(suscriptor(3L, 1L, 1L, 7L)));
+        assertFalse(audiencia.test(suscriptor(3L, 1L, 1L, 8L)));
+        assertFalse(audiencia.test(suscriptor(4L, 1L, 1L, 7L)));
+    }
+
+    @Test
+    void alternativasAceptanCualquierCriterio()
+    {
+        StreamAudience audiencia = StreamAudience.unidad(5L).o(StreamAudience.usuario(7L));
+
+        assertTrue(audiencia.test(suscriptor(1L, 1L, 5L, 8L)));
+        assertTrue(audiencia.test(suscriptor(1L, 1L, 6L, 7L)));
+        assertFalse(audiencia.test(suscriptor(1L, 1L, 6L, 8L)));
+    }
+
+    @Test
+    void suscriptorSinElIdentificadorNoEsDestinatario()
+    {
+        assertFalse(StreamAudience.equipo(3L).test(suscriptor(null, 1L, 1L, 7L)));
+        assertFalse(StreamAudience.usuarios(Collections.emptyList()).test(suscriptor(3L, 1L, 1L, 7L)));
+    }
+
+    @Test
+    void todosEsNeutroEnYyAbsorbeEnO()
+    {
+        StreamAudience equipo = StreamAudience.equipo(3L);
+
+        assertEquals(equipo, StreamAudience.todos().y(equipo));
+        assertSame(StreamAudience.todos(), equipo.o(StreamAudience.todos()));
+        assertSame(StreamAudience.todos(), StreamAudience.todas());
+    }
+
+    @Test
+    void combinacionesDelMismoTipoSeAplanan()
+    {
+        StreamAudience anidada = StreamAudience.equipo(3L).y(StreamAudience.ejercicio(1L))
+                .y(StreamAudience.usuario(7L));
+        StreamAudience plana = StreamAudience.todas(StreamAudience.equipo(3L), StreamAudience.ejercicio(1L),
+                StreamAudience.usuario(7L));
+
+        assertEquals(plana, anidada);
+        assertEquals("Y(EQUIPO:[3],EJERCICIO:[1],USUARIO:[7])", anidada.toString());
+    }
+
+    @Test
+    void idsOrdenadosSinRepetidosNiNulos()
+    {
+        StreamAudience audiencia = StreamAudience.usuarios(Arrays.asList(9L, null, 7L, 9L));
+
+        assertEquals(Arrays.asList(7L, 9L), audiencia.getIds());
+        assertEquals("USUARIO:[7, 9]", audiencia.toString());
+    }
+
+    @Test
+    void usuariosDeLaAudiencia()
+    {
+        StreamAudience pocos = StreamAudience.usuarios(Arrays.asList(7L));
+        StreamAudience muchos = StreamAudience.usuarios(Arrays.asList(7L, 8L, 9L));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList(7L)), StreamAudience.todas(muchos, pocos).getUsuarios());
+        assertEquals(new LinkedHashSet<>(Arrays.asList(7L, 8L, 9L)), StreamAudience.alguna(muchos, pocos)
+                .getUsuarios());
+        assertNull(StreamAudience.alguna(pocos, StreamAudience.equipo(3L)).getUsuarios());
+        assertNull(StreamAudience.equipo(3L).getUsuarios());
+    }
+
+    @Test
+    void claveDeOrdenPorEquipoOEjercicio()
+    {
+        assertEquals(3L, StreamAudience.ejercicio(1L).y(StreamAudience.equipo(3L)).getClaveOrden());
+        assertEquals(1L, StreamAudience.ejercicio(1L).y(StreamAudience.usuario(7L)).getClaveOrden());
+        assertEquals("UNIDAD:[5, 6]", StreamAudience.unidades(Arrays.asList(5L, 6L)).getClaveOrden());
+        assertEquals(1L, StreamAudience.ejercicio(1L).getIdEjercicio());
+        assertNull(StreamAudience.ejercicio(1L).o(StreamAudience.usuario(7L)).getIdEjercicio());
+    }
+
+    @Test
+    void seReplicaPorJson() throws Exception
+    {
+        StreamAudience audiencia = StreamAudience.equipo(3L)
+                .y(StreamAudience.usuarios(Arrays.asList(7L, 9L)).o(StreamAudience.unidadJdn(2L)));
+
+        String json = StreamTestSupport.MAPPER.writeValueAsString(audiencia);
+        StreamAudience leida = StreamTestSupport.MAPPER.readValue(json, StreamAudience.class);
+
+        assertEquals(audiencia, leida);
+        assertEquals(audiencia.hashCode(), leida.hashCode());
+        assertTrue(leida.test(suscriptor(3L, 1L, 1L, 9L)));
+    }
+}
@@ -0,0 +1,173 @@
+package backend.core.lib.commons.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+class StreamDeltaTrackerTest
+{
+
+    private static final String AMBITO = "EQUIPO:[3]";
+
+    private static final String GRANDE = "{\"id\":1,\"nombre\":\"unidad de prueba con un nombre largo\","
+            + "\"posicion\":{\"lat\":10,\"lon\":20},\"estado\":\"ACTIVA\",\"tags\":[\"a\",\"b\"]}";
+
+    private final StreamDeltaTracker tracker = new StreamDeltaTracker(StreamTestSupport.MAPPER, 10);
+
+    private static StreamEntityKey entidad(String id)
+    {
+        return new StreamEntityKey("Unidad:" + id, true, true);
+    }
+
+    private static MessageSendToClient mensaje(EnumOperacion operacion, String data)
+    {
+        return MessageSendToClient.builder().modulo(StreamTestSupport.MODULO).operacion(operacion).clazz("Unidad")
+                .data(data).build();
+    }
+
+    /**
+     * @return campo {@code data} del mensaje del frame
+     */
+    private static JsonNode data(SseFrame frame) throws Exception
+    {
+        JsonNode msg = StreamTestSupport.MAPPER.readTree(frame.getPayload());
+        return StreamTestSupport.MAPPER.readTree(msg.get("data").asText());
+    }
+
+    private SseFrame update(String ambito, String id, String data) throws Exception
+    {
+        return tracker.frame(ambito, entidad(id), mensaje(EnumOperacion.UPDATE, data));
+    }
+
+    @Test
+    void primerUpdateVaCompleto() throws Exception
+    {
+        SseFrame frame = update(AMBITO, "1", GRANDE);
+
+        SseFrame.Delta delta = frame.getDelta();
+        assertTrue(delta.getVersion() > 0);
+        assertEquals(0, delta.getBase());
+        assertNull(delta.getCompleto());
+        assertEquals(delta.getVersion(), data(frame).get("version").asLong());
+        assertEquals(StreamTestSupport.MAPPER.readTree(GRANDE), data(frame).get("full"));
+        assertEquals("Unidad:1", frame.getClave());
+    }
+
+    @Test
+    void siguienteUpdateVaComoParcheContraLaVersionAnterior() throws Exception
+    {
+        SseFrame primero = update(AMBITO, "1", GRANDE);
+        SseFrame segundo = update(AMBITO, "1", GRANDE.replace("ACTIVA", "BAJA"));
+
+        SseFrame.Delta delta = segundo.getDelta();
+        assertEquals(primero.getDelta().getVersion(), delta.getBase());
+        assertTrue(delta.getVersion() > delta.getBase());
+        JsonNode parche = data(segundo);
+        assertEquals(delta.getBase(), parche.get("base").asLong());
+        assertEquals("/estado", parche.get("patch").get(0).get("path").asText());
+        assertEquals("BAJA", parche.get("patch").get(0).get("value").asText());
+
+        assertNotNull(delta.getCompleto());
+        assertEquals(delta.getVersion(), delta.getCompleto().getDelta().getVersion());
+        assertEquals("BAJA", data(delta.getCompleto()).get("full").get("estado").asText());
+    }
+
+    @Test
+    void parcheMasGrandeQueElCompletoVaCompleto() throws Exception
+    {
+        update(AMBITO, "1", "{\"a\":1}");
+        SseFrame segundo = update(AMBITO, "1", "{\"b\":2}");
+
+        assertEquals(0, segundo.getDelta().getBase());
+        assertNotNull(data(segundo).get("full"));
+    }
+
+    @Test
+    void deleteOlvidaLaEntidad() throws Exception
+    {
+        update(AMBITO, "1", GRANDE);
+
+        SseFrame borrado = tracker.frame(AMBITO, entidad("1"), mensaje(EnumOperacion.DELETE, "{\"id\":1}"));
+        assertEquals(0, borrado.getDelta().getVersion());
+        assertEquals(0, tracker.size());
+
+        SseFrame recreado = update(AMBITO, "1", GRANDE);
+        assertEquals(0, recreado.getDelta().getBase());
+    }
+
+    @Test
+    void createVaCompletoAunqueHayaUnaVersionAnterior() throws Exception
+    {
+        update(AMBITO, "1", GRANDE);
+
+        SseFrame create = tracker.frame(AMBITO, entidad("1"), mensaje(EnumOperacion.CREATE, GRANDE));
+
+        assertEquals(0, create.getDelta().getBase());
+        assertNotNull(data(create).get("full"));
+    }
+
+    @Test
+    void ambitosIndependientes() throws Exception
+    {
+        update(AMBITO, "1", GRANDE);
+
+        SseFrame otroAmbito = update("EQUIPO:[4]", "1", GRANDE.replace("ACTIVA", "BAJA"));
+
+        assertEquals(0, otroAmbito.getDelta().getBase());
+        assertEquals("EQUIPO:[4]|Unidad:1", otroAmbito.getDelta().getClave());
+        assertEquals(2, tracker.size());
+    }
+
+    @Test
+    void olvidaLasEntidadesMenosUsadas() throws Exception
+    {
+        StreamDeltaTracker chico = new StreamDeltaTracker(StreamTestSupport.MAPPER, 1);
+        chico.frame(AMBITO, entidad("1"), mensaje(EnumOperacion.UPDATE, GRANDE));
+        chico.frame(AMBITO, entidad("2"), mensaje(EnumOperacion.UPDATE, GRANDE));
+
+        SseFrame frame = chico.frame(AMBITO, entidad("1"), mensaje(EnumOperacion.UPDATE, GRANDE));
+
+        assertEquals(0, frame.getDelta().getBase());
+        assertEquals(1, chico.size());
+    }
+
+    @Test
+    void versionesUnicasEnLaInstancia() throws Exception
+    {
+        long primera = update(AMBITO, "1", GRANDE).getDelta().getVersion();
+        long segunda = update(AMBITO, "2", GRANDE).getDelta().getVersion();
+
+        assertTrue(segunda > primera);
+    }
+
+    @Test
+    void otrasOperacionesNoLlevanVersion() throws Exception
+    {
+        SseFrame frame = tracker.frame(AMBITO, entidad("1"), mensaje(EnumOperacion.CONNECTED, "{}"));
+
+        assertNull(frame.getDelta());
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    void diffRecorreLosObjetosCampoACampo() throws Exception
+    {
+        JsonNode origen = StreamTestSupport.MAPPER
+                .readTree("{\"a\":1,\"b\":{\"c\":1,\"d\":2},\"x/y\":1,\"l\":[1,2]}");
+        JsonNode destino = StreamTestSupport.MAPPER
+                .readTree("{\"a\":1,\"b\":{\"c\":3,\"e\":4},\"x/y\":2,\"l\":[1]}");
+
+        JsonNode parche = tracker.diff(origen, destino);
+
+        assertEquals(StreamTestSupport.MAPPER.readTree("[{\"op\":\"remove\",\"path\":\"/b/d\"},"
+                + "{\"op\":\"replace\",\"path\":\"/b/c\",\"value\":3},"
+                + "{\"op\":\"add\",\"path\":\"/b/e\",\"value\":4},"
+                + "{\"op\":\"replace\",\"path\":\"/x~1y\",\"value\":2},"
+                + "{\"op\":\"replace\",\"path\":\"/l\",\"value\":[1]}]"), parche);
+    }
+}
@@ -0,0 +1,132 @@
+package backend.core.lib.commons.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import backend.core.lib.commons.stream.StreamTestSupport.ClientePrueba;
+
+class StreamReplayBufferTest
+{
+
+    private static final Long INSTANCIA = 7L;
+
+    private final StreamSubscriber subscriber = StreamTestSupport.suscriptor(new ClientePrueba(3L, 1L, 5L, 10L));
+
+    private final StreamSubscriber otro = StreamTestSupport.suscriptor(new ClientePrueba(4L, 2L, 6L, 20L));
+
+    private final Predicate<StreamSubscriber> aTodos = s -> true;
+
+    private final Predicate<StreamSubscriber> alOtro = s -> s == otro;
+
+    private final Predicate<StreamSubscriber> alSuscriptor = s -> s == subscriber;
+
+    private static StreamReplayBuffer buffer(int capacidad, long maxEdadMillis)
+    {
+        return new StreamReplayBuffer(INSTANCIA, m -> capacidad, maxEdadMillis);
+    }
+
+    private static SseFrame frame(int n) throws Exception
+    {
+        return StreamTestSupport.frame("{\"n\":" + n + "}");
+    }
+
+    @Test
+    void asignaIdsConLaInstanciaYReenviaLosPosteriores() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(10, 60000);
+
+        SseFrame primero = buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame(1));
+        SseFrame segundo = buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame(2));
+
+        assertEquals("7-1", primero.getId());
+        assertEquals(2, segundo.getSecuencia());
+        assertEquals(Arrays.asList(segundo), buffer.desde("7-1", subscriber));
+        assertEquals(Collections.emptyList(), buffer.desde("7-2", subscriber));
+        assertEquals(2, buffer.size());
+    }
+
+    @Test
+    void reenviaSoloLoDirigidoAlSuscriptor() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(10, 60000);
+
+        buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame(0));
+        SseFrame propio = buffer.registrar(StreamTestSupport.MODULO, null, alSuscriptor, frame(1));
+        buffer.registrar(StreamTestSupport.MODULO, null, alOtro, frame(2));
+        // Un ejercicio al que el suscriptor no pertenece
+        buffer.registrar(StreamTestSupport.MODULO, 2L, aTodos, frame(3));
+        SseFrame ejercicio = buffer.registrar(StreamTestSupport.MODULO, 1L, aTodos, frame(4));
+
+        assertEquals(Arrays.asList(propio, ejercicio), buffer.desde("7-1", subscriber));
+    }
+
+    @Test
+    void sinCapacidadNoGuarda() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(0, 60000);
+        SseFrame frame = frame(1);
+
+        assertFalse(buffer.isHabilitado(StreamTestSupport.MODULO));
+        assertSame(frame, buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame));
+        assertNull(buffer.desde("7-0", subscriber));
+    }
+
+    @Test
+    void noReanudaIdsDeOtraInstanciaNiFuturos() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(10, 60000);
+        buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame(1));
+
+        assertNull(buffer.desde("8-1", subscriber));
+        assertNull(buffer.desde("7-5", subscriber));
+        assertNull(buffer.desde("7-x", subscriber));
+        assertNull(buffer.desde(null, subscriber));
+    }
+
+    @Test
+    void resincronizaSiPerdioUnEventoPropio() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(1, 60000);
+
+        buffer.registrar(StreamTestSupport.MODULO, null, alSuscriptor, frame(1));
+        buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame(2));
+
+        assertNull(buffer.desde("7-0", subscriber));
+    }
+
+    @Test
+    void eventosDescartadosDeOtrosNoObliganAResincronizar() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(1, 60000);
+
+        buffer.registrar(StreamTestSupport.MODULO, null, alOtro, frame(1));
+        SseFrame propio = buffer.registrar(StreamTestSupport.MODULO, null, alSuscriptor, frame(2));
+
+        assertEquals(1, buffer.size());
+        assertEquals(Arrays.asList(propio), buffer.desde("7-0", subscriber));
+        assertNull(buffer.desde("7-0", otro));
+    }
+
+    @Test
+    void purgarQuitaLosAnillosVencidosSinPerderLaSecuencia() throws Exception
+    {
+        StreamReplayBuffer buffer = buffer(10, 1);
+
+        buffer.registrar(StreamTestSupport.MODULO, null, aTodos, frame(1));
+        buffer.registrar(StreamTestSupport.MODULO, 1L, alOtro, frame(2));
+        Thread.sleep(10);
+        buffer.purgar();
+
+        assertEquals(0, buffer.size());
+        assertNull(buffer.desde("7-0", subscriber));
+        assertEquals(Collections.emptyList(), buffer.desde("7-2", subscriber));
+    }
+}
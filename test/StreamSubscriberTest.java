@@ -0,0 +1,300 @@
+package backend.core.lib.commons.stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import backend.core.lib.commons.stream.StreamTestSupport.ClientePrueba;
+
+class StreamSubscriberTest
+{
+
+    private static final long TIMEOUT = 5000;
+
+    private final ClientePrueba cliente = new ClientePrueba(3L, 1L, 5L, 7L);
+
+    /**
+     * Deja escribir al cliente y espera a que el escritor vacie la cola.
+     */
+    private List<SseFrame> vaciar(StreamSubscriber subscriber, int esperados)
+    {
+        cliente.setListo(true);
+        subscriber.demanda();
+        assertTrue(StreamTestSupport.esperar(() -> cliente.getRecibidos().size() >= esperados, TIMEOUT));
+        assertTrue(StreamTestSupport.esperar(() -> subscriber.getPendientes() == 0, TIMEOUT));
+        return cliente.getRecibidos();
+    }
+
+    @Test
+    void escribeLoEncolado() throws Exception
+    {
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame frame = StreamTestSupport.frame("{}");
+
+        assertTrue(subscriber.offer(frame));
+
+        assertTrue(StreamTestSupport.esperar(() -> cliente.getRecibidos().size() == 1, TIMEOUT));
+        assertSame(frame, cliente.getRecibidos().get(0));
+        assertTrue(StreamTestSupport.esperar(() -> subscriber.getEnviados() == 1, TIMEOUT));
+    }
+
+    @Test
+    void updatePendienteSeReemplazaPorElNuevo() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame primero = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":1}", "Prueba:1");
+        SseFrame otro = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":1}", "Prueba:2");
+        SseFrame segundo = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":2}", "Prueba:1");
+
+        subscriber.offer(primero);
+        subscriber.offer(otro);
+        subscriber.offer(segundo);
+
+        assertEquals(2, subscriber.getPendientes());
+        assertEquals(1, subscriber.getConflacionados());
+        // El reemplazo conserva el lugar en la cola del primero
+        assertEquals(Arrays.asList(segundo, otro), vaciar(subscriber, 2));
+    }
+
+    @Test
+    void frameConIdNoSeConflaciona() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame primero = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":1}", "Prueba:1");
+        SseFrame segundo = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":2}", "Prueba:1")
+                .withId("1-1", 1);
+
+        subscriber.offer(primero);
+        subscriber.offer(segundo);
+
+        assertEquals(2, subscriber.getPendientes());
+        assertEquals(0, subscriber.getConflacionados());
+        assertEquals(Arrays.asList(primero, segundo), vaciar(subscriber, 2));
+    }
+
+    @Test
+    void createCortaLaConflacion() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame update = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":1}", "Prueba:1");
+        SseFrame create = StreamTestSupport.frame(EnumOperacion.CREATE, "Prueba", "{\"v\":2}", "Prueba:1");
+        SseFrame posterior = StreamTestSupport.frame(EnumOperacion.UPDATE, "Prueba", "{\"v\":3}", "Prueba:1");
+
+        subscriber.offer(update);
+        subscriber.offer(create);
+        subscriber.offer(posterior);
+
+        assertEquals(3, subscriber.getPendientes());
+        assertEquals(Arrays.asList(update, create, posterior), vaciar(subscriber, 3));
+    }
+
+    @Test
+    void escribePrimeroLaPrioridadMasAlta() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame normal = StreamTestSupport.frame("{\"n\":1}");
+        SseFrame baja = StreamTestSupport.frame("{\"n\":2}").withPrioridad(EnumPrioridad.BAJA);
+        SseFrame alta = StreamTestSupport.frame("{\"n\":3}").withPrioridad(EnumPrioridad.ALTA);
+
+        subscriber.offer(normal);
+        subscriber.offer(baja);
+        subscriber.offer(alta);
+
+        assertEquals(Arrays.asList(alta, normal, baja), vaciar(subscriber, 3));
+    }
+
+    @Test
+    void frameConIdNoSeAdelantaAPendientesAnteriores() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame normal = StreamTestSupport.frame("{\"n\":1}").withId("1-1", 1);
+        SseFrame alta = StreamTestSupport.frame("{\"n\":2}").withId("1-2", 2).withPrioridad(EnumPrioridad.ALTA);
+
+        subscriber.offer(normal);
+        subscriber.offer(alta);
+
+        assertEquals(Arrays.asList(normal, alta), vaciar(subscriber, 2));
+    }
+
+    @Test
+    void dropOldestDescartaElMasViejo() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente, EnumPoliticaConsumidorLento.DROP_OLDEST,
+                2);
+        SseFrame primero = StreamTestSupport.frame("{\"n\":1}");
+        SseFrame segundo = StreamTestSupport.frame("{\"n\":2}");
+        SseFrame tercero = StreamTestSupport.frame("{\"n\":3}");
+
+        assertTrue(subscriber.offer(primero));
+        assertTrue(subscriber.offer(segundo));
+        assertTrue(subscriber.offer(tercero));
+
+        assertEquals(1, subscriber.getDescartados());
+        assertEquals(Arrays.asList(segundo, tercero), vaciar(subscriber, 2));
+    }
+
+    @Test
+    void dropOldestNoDescartaPrioridadMayorPorUnaMenor() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente, EnumPoliticaConsumidorLento.DROP_OLDEST,
+                1);
+        SseFrame alta = StreamTestSupport.frame("{\"n\":1}").withPrioridad(EnumPrioridad.ALTA);
+
+        assertTrue(subscriber.offer(alta));
+        assertFalse(subscriber.offer(StreamTestSupport.frame("{\"n\":2}").withPrioridad(EnumPrioridad.BAJA)));
+
+        assertEquals(1, subscriber.getDescartados());
+        assertEquals(Arrays.asList(alta), vaciar(subscriber, 1));
+    }
+
+    @Test
+    void colaLlenaHaceLugarDescartandoPrioridadMenor() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente, EnumPoliticaConsumidorLento.DISCONNECT,
+                1);
+        SseFrame alta = StreamTestSupport.frame("{\"n\":2}").withPrioridad(EnumPrioridad.ALTA);
+
+        assertTrue(subscriber.offer(StreamTestSupport.frame("{\"n\":1}").withPrioridad(EnumPrioridad.BAJA)));
+        assertTrue(subscriber.offer(alta));
+
+        assertFalse(subscriber.isCerrado());
+        assertEquals(1, subscriber.getDescartados());
+        assertEquals(Arrays.asList(alta), vaciar(subscriber, 1));
+    }
+
+    @Test
+    void disconnectDesalojaAlClienteLento() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente, EnumPoliticaConsumidorLento.DISCONNECT,
+                1);
+
+        assertTrue(subscriber.offer(StreamTestSupport.frame("{\"n\":1}")));
+        assertFalse(subscriber.offer(StreamTestSupport.frame("{\"n\":2}")));
+
+        assertTrue(subscriber.isCerrado());
+        assertTrue(cliente.isCompletado());
+        assertEquals(0, subscriber.getPendientes());
+        assertFalse(subscriber.offer(StreamTestSupport.frame("{\"n\":3}")));
+    }
+
+    @Test
+    void blockDescartaAlVencerLaEspera() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente, EnumPoliticaConsumidorLento.BLOCK, 1);
+
+        assertTrue(subscriber.offer(StreamTestSupport.frame("{\"n\":1}")));
+        assertFalse(subscriber.offer(StreamTestSupport.frame("{\"n\":2}")));
+
+        assertFalse(subscriber.isCerrado());
+        assertEquals(1, subscriber.getDescartados());
+    }
+
+    @Test
+    void conectarEscribeElTramoInicialYLuegoLosRetenidos() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame conectado = StreamTestSupport.frame(EnumOperacion.CONNECTED, "Prueba", "{}", null);
+        SseFrame perdido = StreamTestSupport.frame("{\"n\":1}").withId("1-1", 1);
+        SseFrame repetido = StreamTestSupport.frame("{\"n\":1}").withId("1-1", 1);
+        SseFrame nuevo = StreamTestSupport.frame("{\"n\":2}").withId("1-2", 2);
+        SseFrame alta = StreamTestSupport.frame("{\"n\":3}").withPrioridad(EnumPrioridad.ALTA);
+
+        subscriber.retener();
+        subscriber.offer(repetido);
+        subscriber.offer(nuevo);
+        subscriber.offer(alta);
+        subscriber.conectar(Arrays.asList(conectado, perdido));
+
+        // El repetido ya estaba entre los reenviados; el de prioridad alta no pasa delante del tramo inicial
+        assertEquals(Arrays.asList(conectado, perdido, alta, nuevo), vaciar(subscriber, 4));
+    }
+
+    @Test
+    void deltaEscribeElParcheSiElClienteTieneLaBase() throws Exception
+    {
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame v1 = StreamTestSupport.frame("{\"v\":1}").withDelta("E", 1, 0, null);
+        SseFrame completo2 = StreamTestSupport.frame("{\"v\":2}").withDelta("E", 2, 0, null);
+        SseFrame parche2 = StreamTestSupport.frame("{\"p\":2}").withDelta("E", 2, 1, completo2);
+
+        subscriber.offer(v1);
+        subscriber.offer(parche2);
+
+        assertTrue(StreamTestSupport.esperar(() -> cliente.getRecibidos().size() == 2, TIMEOUT));
+        assertEquals(Arrays.asList(v1, parche2), cliente.getRecibidos());
+    }
+
+    @Test
+    void deltaEscribeElCompletoSiElClienteNoTieneLaBase() throws Exception
+    {
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame v1 = StreamTestSupport.frame("{\"v\":1}").withDelta("E", 1, 0, null);
+        SseFrame completo3 = StreamTestSupport.frame("{\"v\":3}").withDelta("E", 3, 0, null);
+        SseFrame parche3 = StreamTestSupport.frame("{\"p\":3}").withDelta("E", 3, 2, completo3);
+        SseFrame completoOtra = StreamTestSupport.frame("{\"v\":4}").withDelta("F", 4, 0, null);
+        SseFrame parcheOtra = StreamTestSupport.frame("{\"p\":4}").withDelta("F", 4, 1, completoOtra);
+
+        subscriber.offer(v1);
+        subscriber.offer(parche3);
+        subscriber.offer(parcheOtra);
+
+        assertTrue(StreamTestSupport.esperar(() -> cliente.getRecibidos().size() == 3, TIMEOUT));
+        assertEquals(Arrays.asList(v1, completo3, completoOtra), cliente.getRecibidos());
+    }
+
+    @Test
+    void deltaDescartaVersionesAnterioresALaEscrita() throws Exception
+    {
+        cliente.setListo(false);
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(cliente);
+        SseFrame v2 = StreamTestSupport.frame("{\"v\":2}").withDelta("E", 2, 0, null);
+        SseFrame v1 = StreamTestSupport.frame("{\"v\":1}").withDelta("E", 1, 0, null);
+        SseFrame borrado = StreamTestSupport.frame(EnumOperacion.DELETE, "Prueba", "{}", null)
+                .withDelta("E", 0, 0, null);
+        SseFrame recreado = StreamTestSupport.frame("{\"v\":1}").withDelta("E", 3, 0, null);
+
+        subscriber.offer(v2);
+        subscriber.offer(v1);
+        subscriber.offer(borrado);
+        subscriber.offer(recreado);
+
+        assertEquals(Arrays.asList(v2, borrado, recreado), vaciar(subscriber, 3));
+        assertEquals(1, subscriber.getConflacionados());
+    }
+
+    @Test
+    void errorDeEnvioCierraAlCliente() throws Exception
+    {
+        ClientePrueba roto = new ClientePrueba(3L, 1L, 5L, 7L)
+        {
+            @Override
+            public void send(SseFrame frame, StreamEncoding encoding)
+            {
+                throw new IllegalStateException("conexion cerrada");
+            }
+        };
+        StreamSubscriber subscriber = StreamTestSupport.suscriptor(roto);
+
+        subscriber.offer(StreamTestSupport.frame("{}"));
+
+        assertTrue(StreamTestSupport.esperar(subscriber::isCerrado, TIMEOUT));
+        assertTrue(StreamTestSupport.esperar(roto::isCompletado, TIMEOUT));
+    }
+}
@@ -0,0 +1,199 @@
+package backend.core.lib.commons.stream;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Piezas comunes de las pruebas unitarias: un cliente en memoria que guarda los frames que recibe y fabricas de
+ * suscriptores y frames. Las fuentes de {@code test/} no forman parte de la libreria.
+ */
+final class StreamTestSupport
+{
+
+    static final EnumModulo MODULO = EnumModulo.CHAT;
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private StreamTestSupport()
+    {
+    }
+
+    /**
+     * Suscriptor sobre el cliente, con un escritor de un hilo y los cierres en el hilo que llama.
+     * @param cliente
+     * @param politica
+     * @param capacidad
+     * @return
+     */
+    static StreamSubscriber suscriptor(ClientePrueba cliente, EnumPoliticaConsumidorLento politica, int capacidad)
+    {
+        StreamDeliveryExecutor writer = new StreamDeliveryExecutor(false, 1, 16, 1);
+        StreamMetrics metricas = new StreamMetrics(new SimpleMeterRegistry(), "test", EnumPrioridad::getSloMillis);
+        return new StreamSubscriber(cliente, p -> writer, metricas, Runnable::run, politica, StreamEncoding.JSON,
+                capacidad, 100);
+    }
+
+    static StreamSubscriber suscriptor(ClientePrueba cliente)
+    {
+        return suscriptor(cliente, EnumPoliticaConsumidorLento.DROP_OLDEST, 16);
+    }
+
+    /**
+     * @param operacion
+     * @param clazz
+     * @param data
+     * @param clave
+     *            clave de conflacion, o null
+     * @return
+     * @throws JsonProcessingException
+     */
+    static SseFrame frame(EnumOperacion operacion, String clazz, String data, Object clave)
+            throws JsonProcessingException
+    {
+        return SseFrame.of(MAPPER,
+                MessageSendToClient.builder().modulo(MODULO).operacion(operacion).clazz(clazz).data(data).build(),
+                clave);
+    }
+
+    static SseFrame frame(String data) throws JsonProcessingException
+    {
+        return frame(EnumOperacion.UPDATE, "Prueba", data, null);
+    }
+
+    /**
+     * Espera a que se cumpla la condicion.
+     * @param condicion
+     * @param timeoutMillis
+     * @return false si se cumplio el tiempo maximo
+     */
+    static boolean esperar(BooleanSupplier condicion, long timeoutMillis)
+    {
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!condicion.getAsBoolean())
+        {
+            if (System.nanoTime() > limite)
+            {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Cliente en memoria. Mientras no esta listo el escritor no le escribe y los frames esperan en la cola del
+     * suscriptor, lo que permite revisar la cola antes de vaciarla.
+     */
+    static class ClientePrueba implements IStreamClient
+    {
+        private final Long idEquipo;
+
+        private final Long idEjercicio;
+
+        private final Long idUnidad;
+
+        private final Long idPerfilUsuario;
+
+        private final List<SseFrame> recibidos = new CopyOnWriteArrayList<>();
+
+        private volatile boolean listo = true;
+
+        private volatile boolean completado;
+
+        ClientePrueba(Long idEquipo, Long idEjercicio, Long idUnidad, Long idPerfilUsuario)
+        {
+            this.idEquipo = idEquipo;
+            this.idEjercicio = idEjercicio;
+            this.idUnidad = idUnidad;
+            this.idPerfilUsuario = idPerfilUsuario;
+        }
+
+        @Override
+        public EnumModulo getModulo()
+        {
+            return MODULO;
+        }
+
+        @Override
+        public Long getIdEquipo()
+        {
+            return idEquipo;
+        }
+
+        @Override
+        public Long getIdEjercicio()
+        {
+            return idEjercicio;
+        }
+
+        @Override
+        public Long getIdUnidad()
+        {
+            return idUnidad;
+        }
+
+        @Override
+        public Long getIdUnidadJdn()
+        {
+            return null;
+        }
+
+        @Override
+        public Long getIdPerfilUsuario()
+        {
+            return idPerfilUsuario;
+        }
+
+        @Override
+        public Long getIdClientSession()
+        {
+            return idPerfilUsuario;
+        }
+
+        @Override
+        public void send(SseFrame frame, StreamEncoding encoding)
+        {
+            recibidos.add(frame);
+        }
+
+        @Override
+        public boolean isListo()
+        {
+            return listo;
+        }
+
+        void setListo(boolean listo)
+        {
+            this.listo = listo;
+        }
+
+        @Override
+        public void complete()
+        {
+            completado = true;
+        }
+
+        @Override
+        public void completeWithError(Throwable e)
+        {
+            completado = true;
+        }
+
+        List<SseFrame> getRecibidos()
+        {
+            return recibidos;
+        }
+
+        boolean isCompletado()
+        {
+            return completado;
+        }
+    }
+}